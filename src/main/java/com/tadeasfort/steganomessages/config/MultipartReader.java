@@ -0,0 +1,214 @@
+package com.tadeasfort.steganomessages.config;
+
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+/**
+ * Reads the parts of a {@code multipart/form-data} body one after another
+ * straight from its stream, keeping only a small window of it in memory.
+ * <p>
+ * {@link #next()} returns the headers of the next part, whose body
+ * {@link #transferTo} then copies wherever it should go. A body that is not
+ * transferred is skipped.
+ */
+final class MultipartReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+
+    private final InputStream input;
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private final long maxBytes;
+    private final long deadline;
+    private int pos;
+    private int limit;
+    private long bytesRead;
+    // The preamble before the first boundary counts as an unread body
+    private boolean inBody = true;
+    private boolean finished;
+
+    /**
+     * @param maxBytes most bytes read from {@code input} before the body is
+     *                 rejected as too large
+     * @param timeout  longest reading the whole body may take
+     */
+    MultipartReader(InputStream input, String boundary, long maxBytes, Duration timeout) {
+        this.input = input;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buffer = new byte[Math.max(BUFFER_SIZE, delimiter.length * 2)];
+        this.maxBytes = maxBytes;
+        this.deadline = System.nanoTime() + timeout.toNanos();
+        // The first boundary has no line break in front of it
+        buffer[limit++] = '\r';
+        buffer[limit++] = '\n';
+    }
+
+    /**
+     * Headers of the next part, or {@code null} after the closing boundary
+     */
+    Part next() throws IOException {
+        if (inBody) {
+            transferTo(OutputStream.nullOutputStream());
+        }
+        if (finished) {
+            return null;
+        }
+        require(2);
+        if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+            finished = true;
+            return null;
+        }
+        // Rest of the boundary line, which may only hold padding
+        int headerBytes = readLine().length();
+
+        String name = null;
+        String filename = null;
+        String contentType = null;
+        for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+            headerBytes += line.length();
+            if (headerBytes > MAX_HEADER_BYTES) {
+                throw new IOException("Multipart part headers are too long");
+            }
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String header = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (header.equalsIgnoreCase(HttpHeaders.CONTENT_DISPOSITION)) {
+                ContentDisposition disposition = ContentDisposition.parse(value);
+                name = disposition.getName();
+                filename = disposition.getFilename();
+            } else if (header.equalsIgnoreCase(HttpHeaders.CONTENT_TYPE)) {
+                contentType = value;
+            }
+        }
+        if (name == null) {
+            throw new IOException("Multipart part without a form field name");
+        }
+        inBody = true;
+        return new Part(name, filename, contentType);
+    }
+
+    /**
+     * Copies the body of the current part to {@code sink} up to the next
+     * boundary.
+     */
+    void transferTo(OutputStream sink) throws IOException {
+        if (!inBody) {
+            throw new IllegalStateException("No part body to read");
+        }
+        while (true) {
+            int found = indexOfDelimiter();
+            if (found >= 0) {
+                sink.write(buffer, pos, found - pos);
+                pos = found + delimiter.length;
+                inBody = false;
+                return;
+            }
+            // Keep what could be the start of a delimiter split across reads
+            int safe = Math.max(pos, limit - delimiter.length + 1);
+            sink.write(buffer, pos, safe - pos);
+            pos = safe;
+            if (!fill()) {
+                throw new IOException("Multipart body ended before its closing boundary");
+            }
+        }
+    }
+
+    private int indexOfDelimiter() {
+        int last = limit - delimiter.length;
+        for (int i = pos; i <= last; i++) {
+            if (buffer[i] != delimiter[0]) {
+                continue;
+            }
+            int j = 1;
+            while (j < delimiter.length && buffer[i + j] == delimiter[j]) {
+                j++;
+            }
+            if (j == delimiter.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads up to the next line break, which is consumed but not returned.
+     * Header values are taken as UTF-8, which is what browsers send file
+     * names in.
+     */
+    private String readLine() throws IOException {
+        while (true) {
+            for (int i = pos; i + 1 < limit; i++) {
+                if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+                    String line = new String(buffer, pos, i - pos, StandardCharsets.UTF_8);
+                    pos = i + 2;
+                    return line;
+                }
+            }
+            if (limit - pos >= MAX_HEADER_BYTES) {
+                throw new IOException("Multipart part headers are too long");
+            }
+            if (!fill()) {
+                throw new IOException("Multipart body ended inside part headers");
+            }
+        }
+    }
+
+    private void require(int bytes) throws IOException {
+        while (limit - pos < bytes) {
+            if (!fill()) {
+                throw new IOException("Multipart body ended before its closing boundary");
+            }
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the front of the buffer and reads more after
+     * them.
+     *
+     * @return {@code false} at the end of the stream
+     * @throws SocketTimeoutException if the body is taking longer than its
+     *                                timeout to arrive
+     */
+    private boolean fill() throws IOException {
+        if (System.nanoTime() - deadline > 0) {
+            throw new SocketTimeoutException("Multipart body was not received in time");
+        }
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        int read = input.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            return false;
+        }
+        limit += read;
+        bytesRead += read;
+        if (bytesRead > maxBytes) {
+            throw new MaxUploadSizeExceededException(maxBytes);
+        }
+        return true;
+    }
+
+    /**
+     * Headers of a part; {@code filename} is {@code null} for plain form fields.
+     */
+    record Part(String name, String filename, String contentType) {
+
+        boolean isFile() {
+            return filename != null;
+        }
+    }
+}
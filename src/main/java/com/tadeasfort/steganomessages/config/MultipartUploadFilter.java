@@ -0,0 +1,92 @@
+package com.tadeasfort.steganomessages.config;
+
+import com.tadeasfort.steganomessages.service.ServerBusyException;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.lang.NonNull;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartException;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.thymeleaf.ITemplateEngine;
+import org.thymeleaf.context.Context;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Parses multipart requests before Spring Security sees them, so the CSRF
+ * token sent inside an upload form is read from the parsed body instead of
+ * making the container parse it a second time.
+ * <p>
+ * Pages swap 503 responses into their result area, so an upload turned away
+ * for lack of memory is answered with a fragment saying so rather than the
+ * full error page.
+ */
+@Slf4j
+public class MultipartUploadFilter extends OncePerRequestFilter {
+
+    private final StreamingMultipartResolver multipartResolver;
+    private final ITemplateEngine templateEngine;
+
+    public MultipartUploadFilter(StreamingMultipartResolver multipartResolver, ITemplateEngine templateEngine) {
+        this.multipartResolver = multipartResolver;
+        this.templateEngine = templateEngine;
+    }
+
+    @Override
+    protected void doFilterInternal(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response,
+            @NonNull FilterChain filterChain) throws ServletException, IOException {
+        if (!multipartResolver.isMultipart(request)) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        // Memory is reserved by the declared length before the body is read
+        if (request.getContentLengthLong() < 0) {
+            response.sendError(HttpServletResponse.SC_LENGTH_REQUIRED, "Upload without a Content-Length");
+            return;
+        }
+
+        MultipartHttpServletRequest multipartRequest;
+        try {
+            multipartRequest = multipartResolver.resolveMultipart(request);
+        } catch (MaxUploadSizeExceededException e) {
+            log.debug("Rejected oversized upload to {}", request.getRequestURI());
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Upload is too large");
+            return;
+        } catch (MultipartException e) {
+            if (e.getCause() instanceof SocketTimeoutException) {
+                log.debug("Timed out receiving upload to {}", request.getRequestURI());
+                response.sendError(HttpServletResponse.SC_REQUEST_TIMEOUT, "Upload took too long");
+                return;
+            }
+            log.debug("Rejected malformed upload to {}", request.getRequestURI(), e);
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed upload");
+            return;
+        } catch (ServerBusyException e) {
+            log.info("Rejected upload to {}: {}", request.getRequestURI(), e.getMessage());
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterSeconds()));
+            response.setContentType(MediaType.TEXT_HTML_VALUE);
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            Context context = new Context(request.getLocale());
+            context.setVariable("error", e.getMessage());
+            templateEngine.process("fragments/server-busy", Set.of("server-busy"), context, response.getWriter());
+            return;
+        }
+
+        try {
+            filterChain.doFilter(multipartRequest, response);
+        } finally {
+            multipartResolver.cleanupMultipart(multipartRequest);
+        }
+    }
+}
@@ -61,7 +61,8 @@ public class SecurityConfig {
                                                 .requestMatchers("/dashboard/**", "/profile/**", "/messages/**")
                                                 .authenticated()
                                                 .requestMatchers("/api/messages/**", "/api/create-message",
-                                                                "/api/encode", "/download/**")
+                                                                "/api/encode", "/api/encode/jobs/**", "/api/capacity",
+                                                                "/download/**")
                                                 .authenticated()
 
                                                 // Admin endpoints
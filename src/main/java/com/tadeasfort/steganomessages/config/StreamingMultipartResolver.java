@@ -0,0 +1,564 @@
+package com.tadeasfort.steganomessages.config;
+
+import com.tadeasfort.steganomessages.service.RetainableUpload;
+import com.tadeasfort.steganomessages.service.ServerBusyException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpSession;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
+import org.springframework.lang.NonNull;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.StringUtils;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartException;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.multipart.MultipartResolver;
+import org.springframework.web.multipart.support.DefaultMultipartHttpServletRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses multipart uploads straight off the request body into memory.
+ * <p>
+ * The servlet container's own parsing writes every part above its threshold
+ * to a temp file, which was then read back to validate the upload and again
+ * to decode it. This resolver reads the body once, copying each part into
+ * memory while size-checking it, so uploads never touch the disk and can be
+ * re-read for free. Each request first reserves memory for its whole body,
+ * taken from its Content-Length, with a little room to spare. Parts are
+ * collected in chunks that start small and double up to 64 KiB; full chunks
+ * are kept rather than copied into bigger ones, and the last is trimmed once
+ * its part ends.
+ * Every chunk, and the trimmed copy, is charged to that reservation, so the
+ * parts of a request never hold more than it reserved, however many there
+ * are. The reservations of all uploads being
+ * received together stay within {@code app.upload.buffer-memory}; past that,
+ * further uploads wait, leaving their bytes in the socket rather than on the
+ * heap. A reservation is given back when its request ends, unless work that
+ * outlives the request has retained one of its files as a
+ * {@link RetainableUpload}; then it is given back once that work is done too.
+ * <p>
+ * This runs before Spring Security, so anyone can make an upload wait. The
+ * wait is bounded by {@code app.upload.buffer-wait}, after which the upload
+ * is refused with a {@link ServerBusyException}, and requests without a
+ * signed-in session share only {@code app.admission.anonymous-share} of the
+ * memory, leaving the rest to signed-in users. A reservation is taken before
+ * the body is read, so requests must declare their Content-Length, and the
+ * whole body must arrive within {@code app.upload.body-timeout}; a client
+ * trickling its upload cannot hold memory others are waiting for.
+ */
+@Slf4j
+public class StreamingMultipartResolver implements MultipartResolver {
+
+    // Memory permits are KiB so the budget can exceed 2 GiB
+    private static final int UNIT = 1024;
+    private static final int FIRST_CHUNK_SIZE = 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+    // Room for the slack of a part's last chunk and the copy trimming it
+    private static final int HEADROOM = 2 * MAX_CHUNK_SIZE;
+
+    private final long maxFileSize;
+    private final long maxRequestSize;
+    private final long maxFieldSize;
+    private final Semaphore memory;
+    private final int memoryUnits;
+    private final Semaphore anonymousMemory;
+    private final int anonymousUnits;
+    private final Duration maxWait;
+    private final Duration bodyTimeout;
+
+    /**
+     * @param maxFieldSize   most bytes all plain form fields of a request may
+     *                       hold together
+     * @param bufferMemory   bytes all uploads being received may buffer
+     *                       together
+     * @param anonymousShare share of {@code bufferMemory} uploads without a
+     *                       signed-in session may hold together
+     * @param maxWait        longest an upload waits for buffer memory
+     * @param bodyTimeout    longest reading an upload's body may take
+     */
+    public StreamingMultipartResolver(long maxFileSize, long maxRequestSize, long maxFieldSize, long bufferMemory,
+            double anonymousShare, Duration maxWait, Duration bodyTimeout) {
+        // Files must still fit in a single array for getBytes()
+        this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE - 8);
+        this.maxRequestSize = maxRequestSize;
+        this.maxFieldSize = Math.min(maxFieldSize, Integer.MAX_VALUE - 8);
+        this.memoryUnits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, bufferMemory / UNIT));
+        this.memory = new Semaphore(memoryUnits, true);
+        this.anonymousUnits = (int) Math.max(1, memoryUnits * Math.max(0, Math.min(1, anonymousShare)));
+        this.anonymousMemory = new Semaphore(anonymousUnits, true);
+        this.maxWait = maxWait;
+        this.bodyTimeout = bodyTimeout;
+    }
+
+    @Override
+    public boolean isMultipart(@NonNull HttpServletRequest request) {
+        return StringUtils.startsWithIgnoreCase(request.getContentType(), "multipart/");
+    }
+
+    /**
+     * Reads the whole body, waiting first for buffer memory to hold it.
+     *
+     * @throws MaxUploadSizeExceededException if the request or one of its
+     *                                        files is over the limit
+     * @throws ServerBusyException            if the memory is not freed in
+     *                                        time
+     * @throws MultipartException             if the request has no
+     *                                        Content-Length, is malformed or
+     *                                        its body arrives too slowly
+     */
+    @Override
+    @NonNull
+    public MultipartHttpServletRequest resolveMultipart(@NonNull HttpServletRequest request)
+            throws MultipartException {
+        String boundary = boundary(request);
+        long contentLength = request.getContentLengthLong();
+        if (contentLength < 0) {
+            throw new MultipartException("Multipart request without a Content-Length");
+        }
+        if (contentLength > maxRequestSize) {
+            throw new MaxUploadSizeExceededException(maxRequestSize);
+        }
+
+        boolean signedIn = isSignedIn(request);
+        int units = (int) Math.min(signedIn ? memoryUnits : anonymousUnits,
+                (contentLength + HEADROOM + UNIT - 1) / UNIT);
+        Reservation reservation = new Reservation(reserve(units, signedIn));
+        Runnable release = reservation.retain();
+
+        try {
+            return parse(request, boundary, new Allowance((long) units * UNIT), reservation, release);
+        } catch (IOException e) {
+            release.run();
+            throw new MultipartException("Failed to parse multipart request", e);
+        } catch (RuntimeException e) {
+            release.run();
+            throw e;
+        }
+    }
+
+    @Override
+    public void cleanupMultipart(@NonNull MultipartHttpServletRequest request) {
+        if (request instanceof BufferedMultipartRequest buffered) {
+            buffered.release();
+        }
+    }
+
+    /**
+     * Takes {@code units} of buffer memory, from the anonymous share first
+     * unless signed in, waiting at most {@link #maxWait} for both.
+     *
+     * @return what gives the memory back
+     */
+    private Runnable reserve(int units, boolean signedIn) {
+        try {
+            if (signedIn) {
+                if (!memory.tryAcquire(units, maxWait.toNanos(), TimeUnit.NANOSECONDS)) {
+                    throw busy();
+                }
+                return () -> memory.release(units);
+            }
+            long deadline = System.nanoTime() + maxWait.toNanos();
+            if (!anonymousMemory.tryAcquire(units, maxWait.toNanos(), TimeUnit.NANOSECONDS)) {
+                throw busy();
+            }
+            if (!memory.tryAcquire(units, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                anonymousMemory.release(units);
+                throw busy();
+            }
+            return () -> {
+                memory.release(units);
+                anonymousMemory.release(units);
+            };
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MultipartException("Interrupted while waiting for upload memory",
+                    new InterruptedIOException());
+        }
+    }
+
+    private ServerBusyException busy() {
+        return new ServerBusyException("The server is busy receiving other uploads. Please try again shortly.",
+                Math.max(1, maxWait.toSeconds()));
+    }
+
+    /**
+     * Whether the request belongs to a signed-in session. Spring Security
+     * has not run yet, so this reads the security context it stored in the
+     * session.
+     */
+    private static boolean isSignedIn(HttpServletRequest request) {
+        HttpSession session = request.getSession(false);
+        if (session == null) {
+            return false;
+        }
+        Object context = session.getAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY);
+        Authentication authentication = context instanceof SecurityContext securityContext
+                ? securityContext.getAuthentication()
+                : null;
+        return authentication != null && authentication.isAuthenticated()
+                && !(authentication instanceof AnonymousAuthenticationToken);
+    }
+
+    private MultipartHttpServletRequest parse(HttpServletRequest request, String boundary, Allowance allowance,
+            Reservation reservation, Runnable release) throws IOException {
+        Charset defaultCharset = request.getCharacterEncoding() != null
+                ? Charset.forName(request.getCharacterEncoding())
+                : StandardCharsets.UTF_8;
+        MultiValueMap<String, MultipartFile> files = new LinkedMultiValueMap<>();
+        Map<String, List<String>> fields = new LinkedHashMap<>();
+        Map<String, String> contentTypes = new LinkedHashMap<>();
+        long fieldBytes = 0;
+
+        MultipartReader reader = new MultipartReader(request.getInputStream(), boundary, maxRequestSize,
+                bodyTimeout);
+        for (MultipartReader.Part part = reader.next(); part != null; part = reader.next()) {
+            if (part.isFile()) {
+                UploadBuffer buffer = new UploadBuffer(maxFileSize, allowance);
+                reader.transferTo(buffer);
+                buffer.trim();
+                log.debug("Received upload {} of {} bytes", part.filename(), buffer.count);
+                files.add(part.name(), new BufferedMultipartFile(part.name(), part.filename(), part.contentType(),
+                        buffer.chunks, buffer.count, reservation));
+            } else {
+                UploadBuffer buffer = new UploadBuffer(maxFieldSize - fieldBytes, allowance);
+                reader.transferTo(buffer);
+                buffer.trim();
+                fieldBytes += buffer.count;
+                Charset charset = part.contentType() != null
+                        ? MediaType.parseMediaType(part.contentType()).getCharset()
+                        : null;
+                String value = decode(buffer, charset != null ? charset : defaultCharset);
+                fields.computeIfAbsent(part.name(), name -> new ArrayList<>()).add(value);
+                if (part.contentType() != null) {
+                    contentTypes.put(part.name(), part.contentType());
+                }
+            }
+        }
+
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+        fields.forEach((name, values) -> parameters.put(name, values.toArray(String[]::new)));
+        return new BufferedMultipartRequest(request, files, parameters, contentTypes, release);
+    }
+
+    /**
+     * Decodes a field straight from its chunks, without joining them into
+     * one array first.
+     */
+    private static String decode(UploadBuffer buffer, Charset charset) throws IOException {
+        // No charset decodes to more chars than it has bytes
+        StringBuilder value = new StringBuilder((int) buffer.count);
+        char[] chars = new char[(int) Math.min(buffer.count, 8192) + 1];
+        try (Reader reader = new InputStreamReader(read(buffer.chunks, buffer.count), charset)) {
+            for (int n = reader.read(chars); n >= 0; n = reader.read(chars)) {
+                value.append(chars, 0, n);
+            }
+        }
+        return value.toString();
+    }
+
+    /**
+     * Reads the first {@code size} bytes held in {@code chunks}.
+     */
+    private static InputStream read(List<byte[]> chunks, long size) {
+        List<InputStream> streams = new ArrayList<>(chunks.size());
+        long offset = 0;
+        for (byte[] chunk : chunks) {
+            int length = (int) Math.min(chunk.length, size - offset);
+            streams.add(new ByteArrayInputStream(chunk, 0, length));
+            offset += length;
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    private static String boundary(HttpServletRequest request) {
+        String boundary;
+        try {
+            boundary = MediaType.parseMediaType(request.getContentType()).getParameter("boundary");
+        } catch (IllegalArgumentException e) {
+            throw new MultipartException("Malformed multipart content type", e);
+        }
+        if (boundary != null && boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+        if (!StringUtils.hasLength(boundary)) {
+            throw new MultipartException("Multipart request without a boundary");
+        }
+        return boundary;
+    }
+
+    /**
+     * Buffer memory taken for a request, given back once the request and
+     * every upload retained past it have let go of it.
+     */
+    private static final class Reservation {
+
+        private final Runnable release;
+        // Holders of the memory, or -1 once it has been given back
+        private final AtomicInteger holders = new AtomicInteger();
+
+        Reservation(Runnable release) {
+            this.release = release;
+        }
+
+        /**
+         * A hold on the memory; running the result lets go of it, once.
+         */
+        Runnable retain() {
+            int current;
+            do {
+                current = holders.get();
+                if (current < 0) {
+                    throw new IllegalStateException("The upload's memory has already been released");
+                }
+            } while (!holders.compareAndSet(current, current + 1));
+            AtomicBoolean dropped = new AtomicBoolean();
+            return () -> {
+                if (dropped.compareAndSet(false, true)) {
+                    drop();
+                }
+            };
+        }
+
+        private void drop() {
+            int current;
+            int next;
+            do {
+                current = holders.get();
+                next = current == 1 ? -1 : current - 1;
+            } while (!holders.compareAndSet(current, next));
+            if (next < 0) {
+                release.run();
+            }
+        }
+    }
+
+    /**
+     * Memory a request reserved that its buffers have not taken yet. Only
+     * the thread parsing the request uses it.
+     */
+    private static final class Allowance {
+
+        private final long reserved;
+        private long remaining;
+
+        Allowance(long reserved) {
+            this.reserved = reserved;
+            this.remaining = reserved;
+        }
+
+        /**
+         * Takes up to {@code wanted} bytes, but at least {@code needed}.
+         *
+         * @throws MaxUploadSizeExceededException if fewer than {@code needed}
+         *                                        bytes are left
+         */
+        int take(long wanted, long needed) {
+            long granted = Math.min(wanted, remaining);
+            if (granted < needed) {
+                throw new MaxUploadSizeExceededException(reserved);
+            }
+            remaining -= granted;
+            return (int) granted;
+        }
+
+        void giveBack(long bytes) {
+            remaining += bytes;
+        }
+    }
+
+    /**
+     * Collects a part body in chunks, rejecting it past {@code maxSize} bytes.
+     * Each chunk is taken from the request's {@link Allowance}.
+     */
+    private static final class UploadBuffer extends OutputStream {
+
+        private final long maxSize;
+        private final Allowance allowance;
+        private final List<byte[]> chunks = new ArrayList<>();
+        private int nextSize = FIRST_CHUNK_SIZE;
+        // Bytes written to the last chunk
+        private int used;
+        private long count;
+
+        UploadBuffer(long maxSize, Allowance allowance) {
+            this.maxSize = maxSize;
+            this.allowance = allowance;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) {
+            if (count + len > maxSize) {
+                throw new MaxUploadSizeExceededException(maxSize);
+            }
+            while (len > 0) {
+                byte[] chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+                if (chunk == null || used == chunk.length) {
+                    // Past what the request has left, take only what this write needs
+                    long wanted = Math.min(nextSize, maxSize - count);
+                    chunk = new byte[allowance.take(wanted, Math.min(wanted, len))];
+                    chunks.add(chunk);
+                    used = 0;
+                    nextSize = Math.min(nextSize * 2, MAX_CHUNK_SIZE);
+                }
+                int n = Math.min(len, chunk.length - used);
+                System.arraycopy(b, off, chunk, used, n);
+                used += n;
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Shrinks the last chunk to the bytes written, returning the rest to
+         * the request's allowance for later parts. The copy is taken from
+         * the allowance before the old chunk is given back.
+         */
+        void trim() {
+            if (chunks.isEmpty()) {
+                return;
+            }
+            byte[] last = chunks.get(chunks.size() - 1);
+            if (used < last.length) {
+                byte[] trimmed = new byte[allowance.take(used, used)];
+                System.arraycopy(last, 0, trimmed, 0, used);
+                chunks.set(chunks.size() - 1, trimmed);
+                allowance.giveBack(last.length);
+            }
+        }
+    }
+
+    /**
+     * An uploaded file held in memory. It stays readable after the request
+     * has completed, so background work can keep using it; such work retains
+     * it to keep its memory accounted.
+     */
+    private static final class BufferedMultipartFile implements MultipartFile, RetainableUpload {
+
+        private final String name;
+        private final String originalFilename;
+        private final String contentType;
+        private final List<byte[]> chunks;
+        private final long size;
+        private final Reservation reservation;
+
+        BufferedMultipartFile(String name, String originalFilename, String contentType, List<byte[]> chunks,
+                long size, Reservation reservation) {
+            this.name = name;
+            this.originalFilename = originalFilename;
+            this.contentType = contentType;
+            this.chunks = List.copyOf(chunks);
+            this.size = size;
+            this.reservation = reservation;
+        }
+
+        @Override
+        public Runnable retain() {
+            return reservation.retain();
+        }
+
+        @Override
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getOriginalFilename() {
+            return originalFilename;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        @NonNull
+        public byte[] getBytes() {
+            byte[] bytes = new byte[(int) size];
+            int offset = 0;
+            for (byte[] chunk : chunks) {
+                System.arraycopy(chunk, 0, bytes, offset, chunk.length);
+                offset += chunk.length;
+            }
+            return bytes;
+        }
+
+        @Override
+        @NonNull
+        public InputStream getInputStream() {
+            return read(chunks, size);
+        }
+
+        @Override
+        public void transferTo(@NonNull File dest) throws IOException {
+            try (OutputStream output = Files.newOutputStream(dest.toPath())) {
+                for (byte[] chunk : chunks) {
+                    output.write(chunk);
+                }
+            }
+        }
+    }
+
+    private static final class BufferedMultipartRequest extends DefaultMultipartHttpServletRequest {
+
+        private final Runnable release;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        BufferedMultipartRequest(HttpServletRequest request, MultiValueMap<String, MultipartFile> files,
+                Map<String, String[]> parameters, Map<String, String> contentTypes, Runnable release) {
+            super(request, files, parameters, contentTypes);
+            this.release = release;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                release.run();
+            }
+        }
+    }
+}
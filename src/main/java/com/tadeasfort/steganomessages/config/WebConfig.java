@@ -1,13 +1,18 @@
 package com.tadeasfort.steganomessages.config;
 
-import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
-import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.lang.NonNull;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import org.thymeleaf.ITemplateEngine;
+
+import java.time.Duration;
 
 @Configuration
 public class WebConfig implements WebMvcConfigurer {
@@ -32,12 +37,32 @@ public class WebConfig implements WebMvcConfigurer {
                 .addResourceLocations("classpath:/META-INF/resources/webjars/");
     }
 
+    /**
+     * Uploads are parsed into memory by this resolver; the servlet
+     * container's multipart support, which spools to temp files, is off.
+     */
+    @Bean
+    public StreamingMultipartResolver multipartResolver(
+            @Value("${app.upload.max-file-size:50MB}") DataSize maxFileSize,
+            @Value("${app.upload.max-request-size:50MB}") DataSize maxRequestSize,
+            @Value("${server.tomcat.max-http-form-post-size:2MB}") DataSize maxFieldSize,
+            @Value("${app.upload.buffer-memory:0}") DataSize bufferMemory,
+            @Value("${app.admission.anonymous-share:0.5}") double anonymousShare,
+            @Value("${app.upload.buffer-wait:2s}") Duration bufferWait,
+            @Value("${app.upload.body-timeout:120s}") Duration bodyTimeout) {
+        // An eighth of the heap unless configured
+        long memory = bufferMemory.toBytes() > 0 ? bufferMemory.toBytes() : Runtime.getRuntime().maxMemory() / 8;
+        return new StreamingMultipartResolver(maxFileSize.toBytes(), maxRequestSize.toBytes(),
+                maxFieldSize.toBytes(), memory, anonymousShare, bufferWait, bodyTimeout);
+    }
+
     @Bean
-    public WebServerFactoryCustomizer<TomcatServletWebServerFactory> tomcatCustomizer() {
-        return factory -> {
-            factory.addContextCustomizers(context -> {
-                context.setAllowCasualMultipartParsing(true);
-            });
-        };
+    public FilterRegistrationBean<MultipartUploadFilter> multipartUploadFilter(
+            StreamingMultipartResolver multipartResolver, ITemplateEngine templateEngine) {
+        FilterRegistrationBean<MultipartUploadFilter> registration = new FilterRegistrationBean<>(
+                new MultipartUploadFilter(multipartResolver, templateEngine));
+        // Ahead of Spring Security, which reads the CSRF token from the form
+        registration.setOrder(SecurityProperties.DEFAULT_FILTER_ORDER - 1);
+        return registration;
     }
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package com.tadeasfort.steganomessages.controller;
 
+import com.tadeasfort.steganomessages.model.EngineType;
 import com.tadeasfort.steganomessages.model.User;
 import com.tadeasfort.steganomessages.model.UserStatistics;
 import com.tadeasfort.steganomessages.service.SteganographyMessageService;
@@ -45,6 +46,7 @@ public class DashboardController {
     @GetMapping("/encode")
     public String encodePage(@AuthenticationPrincipal User user, Model model) {
         model.addAttribute("user", user);
+        model.addAttribute("engines", EngineType.values());
         return "dashboard/encode";
     }
 
@@ -1,5 +1,10 @@
 package com.tadeasfort.steganomessages.controller;
 
+import com.tadeasfort.steganomessages.model.EngineType;
+import com.tadeasfort.steganomessages.service.EncodeJob;
+import com.tadeasfort.steganomessages.service.EncodeJobService;
+import com.tadeasfort.steganomessages.service.Requester;
+import com.tadeasfort.steganomessages.service.ServerBusyException;
 import com.tadeasfort.steganomessages.service.SteganographyMessageService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -21,6 +26,8 @@ import com.tadeasfort.steganomessages.model.User;
 import com.tadeasfort.steganomessages.model.SteganographyMessage;
 import com.tadeasfort.steganomessages.service.UserStatisticsService;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import java.nio.file.Path;
 import java.nio.file.Files;
 import java.util.Optional;
@@ -32,6 +39,7 @@ public class HomeController {
 
     private final SteganographyMessageService messageService;
     private final UserStatisticsService statisticsService;
+    private final EncodeJobService encodeJobService;
 
     @GetMapping("/")
     public String home() {
@@ -198,26 +206,32 @@ public class HomeController {
 
     @PostMapping("/api/extract")
     public String extractMessage(@RequestParam("imageFile") MultipartFile imageFile,
-            @AuthenticationPrincipal User user, Model model) {
-        return decodeMessage(imageFile, user, model);
+            @AuthenticationPrincipal User user, Model model, HttpServletRequest request,
+            HttpServletResponse response) {
+        return decodeMessage(imageFile, user, model, request, response);
     }
 
     @PostMapping("/api/decode")
     public String decodeMessage(@RequestParam("imageFile") MultipartFile imageFile,
-            @AuthenticationPrincipal User user, Model model) {
+            @AuthenticationPrincipal User user, Model model, HttpServletRequest request,
+            HttpServletResponse response) {
+        Requester requester = Requester.of(user, request.getRemoteAddr());
         try {
             String decodedMessage;
             if (user != null) {
                 // Use method that tracks statistics for authenticated users
-                decodedMessage = messageService.extractMessageWithUser(imageFile, user);
+                decodedMessage = messageService.extractMessageWithUser(imageFile, user, requester);
             } else {
                 // Use regular method for anonymous users
-                decodedMessage = messageService.extractMessage(imageFile);
+                decodedMessage = messageService.extractMessage(imageFile, requester);
             }
 
             model.addAttribute("decodedMessage", decodedMessage);
             model.addAttribute("success", true);
             return "fragments/decode-result :: decode-result";
+        } catch (ServerBusyException e) {
+            rejectBusy(e, response, model);
+            return "fragments/decode-result :: decode-result";
         } catch (Exception e) {
             log.error("Failed to decode message from image", e);
             model.addAttribute("error", e.getMessage());
@@ -232,9 +246,12 @@ public class HomeController {
             @RequestParam("imageFile") MultipartFile imageFile,
             @RequestParam(value = "password", required = false) String password,
             @RequestParam("isPublic") boolean isPublic,
+            @RequestParam(value = "engine", required = false) EngineType engine,
+            @RequestParam(value = "fitCarrier", defaultValue = "false") boolean fitCarrier,
             @AuthenticationPrincipal User user,
-            Model model) {
-        return encodeMessage(title, message, imageFile, password, isPublic, user, model);
+            Model model, HttpServletRequest request, HttpServletResponse response) {
+        return encodeMessage(title, message, imageFile, password, isPublic, engine, fitCarrier, user, model, request,
+                response);
     }
 
     @PostMapping("/api/encode")
@@ -243,25 +260,94 @@ public class HomeController {
             @RequestParam("imageFile") MultipartFile imageFile,
             @RequestParam(value = "password", required = false) String password,
             @RequestParam("isPublic") boolean isPublic,
+            @RequestParam(value = "engine", required = false) EngineType engine,
+            @RequestParam(value = "fitCarrier", defaultValue = "false") boolean fitCarrier,
             @AuthenticationPrincipal User user,
-            Model model) {
+            Model model, HttpServletRequest request, HttpServletResponse response) {
         try {
-            // Call with correct parameter order: user, title, message, imageFile, isPublic,
-            // password, expirationDays
-            var stegoMessage = messageService.createMessage(user, title, message, imageFile, isPublic, password, null);
+            // Embedding runs on the CPU workers; the result fragment polls the job
+            EncodeJob job = encodeJobService.submit(Requester.of(user, request.getRemoteAddr()), user, title,
+                    message, imageFile, isPublic, password, null, engine, fitCarrier);
 
-            model.addAttribute("success", true);
-            model.addAttribute("message", stegoMessage);
-            model.addAttribute("downloadUrl", "/download/" + stegoMessage.getId());
+            model.addAttribute("job", job);
+            model.addAttribute("jobsAhead", encodeJobService.jobsAhead(job));
+            return "fragments/encode-result :: encode-result";
+        } catch (ServerBusyException e) {
+            rejectBusy(e, response, model);
             return "fragments/encode-result :: encode-result";
         } catch (Exception e) {
-            log.error("Failed to encode steganographic message", e);
+            log.error("Failed to submit steganographic message for encoding", e);
             model.addAttribute("success", false);
             model.addAttribute("error", e.getMessage());
             return "fragments/encode-result :: encode-result";
         }
     }
 
+    /**
+     * Answers work turned away by admission control with 503 and the time
+     * after which a retry has a chance, still rendering the error fragment
+     */
+    private void rejectBusy(ServerBusyException e, HttpServletResponse response, Model model) {
+        log.info("Rejected image request: {}", e.getMessage());
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterSeconds()));
+        model.addAttribute("success", false);
+        model.addAttribute("error", e.getMessage());
+    }
+
+    /**
+     * Status of an encode job, polled by the result fragment until the
+     * message is ready or embedding has failed.
+     */
+    @GetMapping("/api/encode/jobs/{id}")
+    public String encodeJobStatus(@PathVariable String id, @AuthenticationPrincipal User user, Model model) {
+        Optional<EncodeJob> jobOpt = encodeJobService.findJob(id, user);
+        if (jobOpt.isEmpty()) {
+            model.addAttribute("success", false);
+            model.addAttribute("error", "Encode job not found or has expired");
+            return "fragments/encode-result :: encode-result";
+        }
+
+        EncodeJob job = jobOpt.get();
+        switch (job.getStatus()) {
+            case SUCCEEDED -> {
+                model.addAttribute("success", true);
+                model.addAttribute("message", messageService.getMessageForUser(job.getMessageId(), user));
+                model.addAttribute("downloadUrl", "/download/" + job.getMessageId());
+            }
+            case FAILED -> {
+                model.addAttribute("success", false);
+                model.addAttribute("error", job.getError());
+            }
+            default -> {
+                model.addAttribute("job", job);
+                model.addAttribute("jobsAhead", encodeJobService.jobsAhead(job));
+            }
+        }
+        return "fragments/encode-result :: encode-result";
+    }
+
+    /**
+     * Message capacity of a cover image, computed from its header alone. The
+     * encode form posts just the first part of the file here as soon as one
+     * is picked, before the real upload starts.
+     */
+    @PostMapping("/api/capacity")
+    public String messageCapacity(@RequestParam("imageFile") MultipartFile imageFile,
+            @RequestParam(value = "engine", required = false) EngineType engine,
+            @AuthenticationPrincipal User user, Model model) {
+        try {
+            model.addAttribute("capacity",
+                    messageService.getMessageCapacity(imageFile, messageService.resolveEngine(user, engine)));
+            model.addAttribute("success", true);
+        } catch (Exception e) {
+            log.debug("Failed to read image capacity: {}", e.getMessage());
+            model.addAttribute("success", false);
+            model.addAttribute("error", e.getMessage());
+        }
+        return "fragments/capacity-result :: capacity-result";
+    }
+
     @GetMapping("/public")
     public String publicMessages(Model model,
             @RequestParam(defaultValue = "0") int page,
@@ -1,5 +1,6 @@
 package com.tadeasfort.steganomessages.controller;
 
+import com.tadeasfort.steganomessages.model.EngineType;
 import com.tadeasfort.steganomessages.model.User;
 import com.tadeasfort.steganomessages.service.UserService;
 import lombok.RequiredArgsConstructor;
@@ -30,6 +31,7 @@ public class ProfileController {
     @GetMapping("/settings")
     public String settings(@AuthenticationPrincipal User user, Model model) {
         model.addAttribute("user", user);
+        model.addAttribute("engines", EngineType.values());
         return "profile/settings";
     }
 
@@ -37,9 +39,10 @@ public class ProfileController {
     public String updateProfile(@AuthenticationPrincipal User user,
             @RequestParam("firstName") String firstName,
             @RequestParam("lastName") String lastName,
+            @RequestParam(value = "preferredEngine", required = false) EngineType preferredEngine,
             RedirectAttributes redirectAttributes) {
         try {
-            userService.updateProfile(user, firstName, lastName);
+            userService.updateProfile(user, firstName, lastName, preferredEngine);
             redirectAttributes.addFlashAttribute("success", "Profile updated successfully");
         } catch (Exception e) {
             log.error("Failed to update profile for user: {}", user.getUsername(), e);
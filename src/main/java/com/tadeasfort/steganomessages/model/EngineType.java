@@ -0,0 +1,45 @@
+package com.tadeasfort.steganomessages.model;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Embedding algorithms, with the id each one records in the payload header.
+ * Ids are part of the stored format and must never be reused.
+ */
+public enum EngineType {
+
+    /**
+     * Parity of mid-frequency DCT coefficients of the luminance. Survives
+     * mild recompression, carries one byte per 8x8 block.
+     */
+    DCT(0, "DCT (robust)"),
+
+    /**
+     * Least significant bit of every colour channel. Lossless carriers only,
+     * carries three bits per pixel.
+     */
+    LSB(1, "LSB (high capacity)");
+
+    private final int id;
+    private final String displayName;
+
+    EngineType(int id, String displayName) {
+        this.id = id;
+        this.displayName = displayName;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public String displayName() {
+        return displayName;
+    }
+
+    public static Optional<EngineType> fromId(int id) {
+        return Arrays.stream(values())
+                .filter(type -> type.id == id)
+                .findFirst();
+    }
+}
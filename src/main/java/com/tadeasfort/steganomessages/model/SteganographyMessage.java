@@ -47,6 +47,11 @@ public class SteganographyMessage extends BaseEntity {
     @Column(name = "mime_type")
     private String mimeType;
 
+    // The carrier was every n-th pixel of every n-th row of the upload; null
+    // for messages created before carriers could be fitted
+    @Column(name = "carrier_subsampling")
+    private Integer carrierSubsampling = 1;
+
     @Column(name = "share_token", unique = true)
     private String shareToken;
 
@@ -72,6 +72,11 @@ public class User extends BaseEntity implements UserDetails {
     @Enumerated(EnumType.STRING)
     private Role role = Role.USER;
 
+    // Engine used for new messages when the request does not pick one; null for the application default
+    @Enumerated(EnumType.STRING)
+    @Column(name = "preferred_engine")
+    private EngineType preferredEngine;
+
     // Custom equals and hashCode to avoid LazyInitializationException
     @Override
     public boolean equals(Object o) {
@@ -139,6 +144,7 @@ public class User extends BaseEntity implements UserDetails {
                 ", accountEnabled=" + accountEnabled +
                 ", accountLocked=" + accountLocked +
                 ", role=" + role +
+                ", preferredEngine=" + preferredEngine +
                 '}';
     }
 
@@ -0,0 +1,149 @@
+package com.tadeasfort.steganomessages.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Decides whether image work may be queued, from what it will cost.
+ * <p>
+ * Decoding, transforming and re-encoding a carrier all scale with its pixel
+ * count, which the image header gives away before any of that starts, so a
+ * request is admitted only while the pixels of all admitted and unfinished
+ * work stay within {@code app.admission.max-queued-pixels}. Anonymous
+ * clients share {@code app.admission.anonymous-share} of that budget, which
+ * keeps a lane open for signed-in users however busy the public decode page
+ * gets. Admitted work is ordered fairly by {@link CpuBulkhead}, with
+ * signed-in users weighted {@code app.admission.authenticated-weight} times.
+ * <p>
+ * An idle server takes even a request that is larger than the budget on its
+ * own; size limits belong to the upload checks.
+ */
+@Service
+@Slf4j
+public class AdmissionControl {
+
+    static final String QUEUED_PIXELS_GAUGE = "steganomessages.admission.queued.pixels";
+    static final String REJECTED_COUNTER = "steganomessages.admission.rejected";
+
+    // Bounds on the Retry-After hint, in seconds
+    private static final long MIN_RETRY_AFTER = 1;
+    private static final long MAX_RETRY_AFTER = 120;
+
+    private final long maxQueuedPixels;
+    private final long anonymousMaxPixels;
+    private final int authenticatedWeight;
+    private final double pixelsPerSecond;
+    private final Counter rejectedAuthenticated;
+    private final Counter rejectedAnonymous;
+
+    // Guarded by this
+    private long queuedPixels;
+    private long anonymousPixels;
+
+    public AdmissionControl(MeterRegistry meterRegistry,
+            @Value("${app.admission.max-queued-pixels:400000000}") long maxQueuedPixels,
+            @Value("${app.admission.anonymous-share:0.5}") double anonymousShare,
+            @Value("${app.admission.authenticated-weight:4}") int authenticatedWeight,
+            @Value("${app.admission.pixels-per-second:40000000}") double pixelsPerSecond) {
+        this.maxQueuedPixels = Math.max(1, maxQueuedPixels);
+        this.anonymousMaxPixels = (long) (this.maxQueuedPixels * Math.max(0, Math.min(1, anonymousShare)));
+        this.authenticatedWeight = Math.max(1, authenticatedWeight);
+        this.pixelsPerSecond = Math.max(1, pixelsPerSecond);
+        this.rejectedAuthenticated = rejectedCounter(meterRegistry, "authenticated");
+        this.rejectedAnonymous = rejectedCounter(meterRegistry, "anonymous");
+        Gauge.builder(QUEUED_PIXELS_GAUGE, this, AdmissionControl::queuedPixels)
+                .description("Pixels of admitted image work not yet finished")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Admits {@code pixels} of work for {@code requester}. The returned
+     * admission holds its share of the budget until closed.
+     *
+     * @throws ServerBusyException if the requester's lane has no room left
+     */
+    public Admission admit(Requester requester, long pixels) {
+        long cost = Math.max(0, pixels);
+        synchronized (this) {
+            long excess = Math.max(queuedPixels + cost - maxQueuedPixels,
+                    requester.authenticated() ? 0 : anonymousPixels + cost - anonymousMaxPixels);
+            if (excess > 0 && queuedPixels > 0) {
+                (requester.authenticated() ? rejectedAuthenticated : rejectedAnonymous).increment();
+                long retryAfter = Math.max(MIN_RETRY_AFTER,
+                        Math.min(MAX_RETRY_AFTER, (long) Math.ceil(excess / pixelsPerSecond)));
+                log.debug("Turned away {} pixels for {}, {} queued", cost, requester.key(), queuedPixels);
+                throw new ServerBusyException("The server is busy processing other images. Please try again in "
+                        + retryAfter + " seconds.", retryAfter);
+            }
+            queuedPixels += cost;
+            if (!requester.authenticated()) {
+                anonymousPixels += cost;
+            }
+        }
+        return new Admission(requester, cost, requester.authenticated() ? authenticatedWeight : 1);
+    }
+
+    synchronized long queuedPixels() {
+        return queuedPixels;
+    }
+
+    private synchronized void release(Admission admission) {
+        queuedPixels -= admission.pixels;
+        if (!admission.requester.authenticated()) {
+            anonymousPixels -= admission.pixels;
+        }
+    }
+
+    private static Counter rejectedCounter(MeterRegistry meterRegistry, String lane) {
+        return Counter.builder(REJECTED_COUNTER)
+                .description("Image requests turned away for lack of pixel budget")
+                .tag("lane", lane)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Admitted work, holding its pixels of the budget until closed.
+     */
+    public final class Admission implements AutoCloseable {
+
+        private final Requester requester;
+        private final long pixels;
+        private final int weight;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Admission(Requester requester, long pixels, int weight) {
+            this.requester = requester;
+            this.pixels = pixels;
+            this.weight = weight;
+        }
+
+        public Requester requester() {
+            return requester;
+        }
+
+        public long pixels() {
+            return pixels;
+        }
+
+        /**
+         * Share of the CPU workers the requester gets relative to others
+         * with work queued
+         */
+        public int weight() {
+            return weight;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release(this);
+            }
+        }
+    }
+}
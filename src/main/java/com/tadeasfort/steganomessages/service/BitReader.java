@@ -0,0 +1,57 @@
+package com.tadeasfort.steganomessages.service;
+
+/**
+ * Reads bits most-significant first from a {@code byte[]}.
+ */
+final class BitReader {
+
+    private final byte[] data;
+    private final int bitLength;
+    private int position;
+
+    BitReader(byte[] data) {
+        this(data, data.length * 8);
+    }
+
+    BitReader(byte[] data, int bitLength) {
+        this.data = data;
+        this.bitLength = bitLength;
+    }
+
+    int remaining() {
+        return bitLength - position;
+    }
+
+    boolean hasRemaining() {
+        return position < bitLength;
+    }
+
+    /**
+     * Moves the read position forward by {@code count} bits, stopping at the
+     * end of the data.
+     */
+    void skip(long count) {
+        position = (int) Math.min(bitLength, position + count);
+    }
+
+    int readBit() {
+        if (position >= bitLength) {
+            throw new IllegalStateException("No bits remaining");
+        }
+        int bit = (data[position >>> 3] >>> (7 - (position & 7))) & 1;
+        position++;
+        return bit;
+    }
+
+    /**
+     * Reads {@code count} bits (at most 32) into the low bits of an int, first
+     * bit read ending up highest.
+     */
+    int readBits(int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            value = (value << 1) | readBit();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,59 @@
+package com.tadeasfort.steganomessages.service;
+
+import java.util.Arrays;
+
+/**
+ * Appends bits most-significant first into a growable {@code byte[]}, the
+ * same order the payload is embedded in.
+ */
+final class BitWriter {
+
+    private byte[] data;
+    private int bitLength;
+
+    BitWriter(int initialCapacityBytes) {
+        this.data = new byte[Math.max(1, initialCapacityBytes)];
+    }
+
+    void writeBit(int bit) {
+        int byteIndex = bitLength >>> 3;
+        if (byteIndex == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        if (bit != 0) {
+            data[byteIndex] |= (byte) (0x80 >>> (bitLength & 7));
+        }
+        bitLength++;
+    }
+
+    /**
+     * Writes the low {@code count} bits of {@code value}, highest first.
+     */
+    void writeBits(long value, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            writeBit((int) (value >>> i) & 1);
+        }
+    }
+
+    int bitLength() {
+        return bitLength;
+    }
+
+    /**
+     * Number of complete bytes written so far.
+     */
+    int byteLength() {
+        return bitLength >>> 3;
+    }
+
+    /**
+     * Backing array; only the first {@link #byteLength()} bytes are complete.
+     */
+    byte[] buffer() {
+        return data;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(data, (bitLength + 7) >>> 3);
+    }
+}
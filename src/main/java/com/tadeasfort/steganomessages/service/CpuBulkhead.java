@@ -0,0 +1,267 @@
+package com.tadeasfort.steganomessages.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The platform threads all image decoding, embedding, extraction and PNG
+ * encoding runs on.
+ * <p>
+ * Requests are served on virtual threads, which are cheap to block on JDBC,
+ * SMTP or an upload but give no bound on CPU work: a burst of encodes would
+ * start as many transforms as there are requests. Callers hand that work to
+ * this fixed pool of {@code app.cpu.workers} threads, one per core by
+ * default, and wait for it; the rest of the request stays on its virtual
+ * thread. Queue depth, running tasks and time spent queued are published as
+ * {@value #QUEUE_GAUGE}, {@value #ACTIVE_GAUGE} and {@value #WAIT_TIMER}.
+ * <p>
+ * The queue is served by start-time fair queuing rather than in arrival
+ * order. Each task is tagged with the later of the current virtual time and
+ * the virtual finish of its requester's previous task, and that finish moves
+ * on by the task's pixels divided by the requester's weight. Workers take the
+ * lowest tag, so one client's burst of large images interleaves with
+ * everyone else's work instead of holding the queue.
+ */
+@Service
+@Slf4j
+public class CpuBulkhead {
+
+    static final String QUEUE_GAUGE = "steganomessages.cpu.queue";
+    static final String ACTIVE_GAUGE = "steganomessages.cpu.active";
+    static final String WAIT_TIMER = "steganomessages.cpu.wait";
+
+    private static final Comparator<Runnable> FAIR_ORDER = Comparator
+            .comparingDouble((Runnable task) -> ((Task<?>) task).tag)
+            .thenComparingLong(task -> ((Task<?>) task).sequence);
+
+    private final ThreadPoolExecutor executor;
+    private final int queueCapacity;
+    // Tasks submitted and not yet taken by a worker, reserved before queuing
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Timer waitTimer;
+    private final AtomicLong sequence = new AtomicLong();
+
+    // Virtual finish tag of the last task queued per requester; guarded by this
+    private final Map<String, Double> finishTags = new HashMap<>();
+    private double virtualTime;
+
+    public CpuBulkhead(MeterRegistry meterRegistry, @Value("${app.cpu.workers:0}") int workers,
+            @Value("${app.cpu.queue-capacity:256}") int queueCapacity) {
+        int threads = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+        AtomicInteger count = new AtomicInteger();
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(this.queueCapacity, FAIR_ORDER),
+                task -> new Worker(task, "cpu-" + count.incrementAndGet()));
+        // Tasks are only ordered once they are in the queue
+        executor.prestartAllCoreThreads();
+        this.waitTimer = Timer.builder(WAIT_TIMER)
+                .description("Time CPU-bound tasks spend queued for a worker")
+                .register(meterRegistry);
+        Gauge.builder(QUEUE_GAUGE, executor, pool -> pool.getQueue().size())
+                .description("CPU-bound tasks waiting for a worker")
+                .register(meterRegistry);
+        Gauge.builder(ACTIVE_GAUGE, executor, ThreadPoolExecutor::getActiveCount)
+                .description("CPU-bound tasks running")
+                .register(meterRegistry);
+        log.info("CPU bulkhead of {} threads with room for {} queued tasks", threads, this.queueCapacity);
+    }
+
+    /**
+     * Runs {@code task} on a worker and waits for its result.
+     */
+    public <T> T call(Callable<T> task) throws IOException {
+        return call(null, task);
+    }
+
+    /**
+     * Runs {@code task} on a worker, scheduled fairly against other work by
+     * {@code admission}, and waits for its result. A task that is already on
+     * a worker runs in place, so work never waits on a queue behind itself.
+     *
+     * @param admission the admission the work was let in under, or
+     *                  {@code null} to queue it at the current virtual time
+     * @throws ServerBusyException if the queue is full
+     */
+    public <T> T call(AdmissionControl.Admission admission, Callable<T> task) throws IOException {
+        if (isWorker()) {
+            return callInPlace(task);
+        }
+        Task<T> queued = new Task<>(task, null, tag(admission));
+        submit(queued);
+        try {
+            return queued.get();
+        } catch (InterruptedException e) {
+            queued.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for image processing");
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Queues {@code task} for a worker without waiting for it, scheduled
+     * fairly against other work by {@code admission}.
+     *
+     * @throws ServerBusyException if the queue is full
+     */
+    public void execute(AdmissionControl.Admission admission, Runnable task) {
+        submit(new Task<>(Executors.callable(task), task, tag(admission)));
+    }
+
+    /**
+     * Number of queued tasks ahead of {@code task}, passed earlier to
+     * {@link #execute}, or 0 once it has left the queue.
+     */
+    public int tasksAhead(Runnable task) {
+        Task<?> target = null;
+        for (Runnable queued : executor.getQueue()) {
+            if (((Task<?>) queued).origin == task) {
+                target = (Task<?>) queued;
+            }
+        }
+        if (target == null) {
+            return 0;
+        }
+        int ahead = 0;
+        for (Runnable queued : executor.getQueue()) {
+            if (FAIR_ORDER.compare(queued, target) < 0) {
+                ahead++;
+            }
+        }
+        return ahead;
+    }
+
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Whether the current thread is a worker. Work running on one already
+     * holds its share of the cores, so it should not fan out to other pools.
+     */
+    static boolean isWorker() {
+        return Thread.currentThread() instanceof Worker;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private void submit(Task<?> task) {
+        // The priority queue itself is unbounded, so claim a slot first
+        int depth;
+        do {
+            depth = queued.get();
+            if (depth >= queueCapacity) {
+                throw busy();
+            }
+        } while (!queued.compareAndSet(depth, depth + 1));
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            throw busy();
+        }
+    }
+
+    private static ServerBusyException busy() {
+        return new ServerBusyException("The server is busy processing other images. Please try again shortly.", 5);
+    }
+
+    private synchronized double tag(AdmissionControl.Admission admission) {
+        if (admission == null) {
+            return virtualTime;
+        }
+        String key = admission.requester().key();
+        double start = Math.max(virtualTime, finishTags.getOrDefault(key, 0.0));
+        // Requesters whose last task finished in virtual time start afresh anyway
+        finishTags.values().removeIf(finish -> finish <= virtualTime);
+        finishTags.put(key, start + (double) admission.pixels() / admission.weight());
+        return start;
+    }
+
+    private synchronized void advanceTo(double tag) {
+        virtualTime = Math.max(virtualTime, tag);
+    }
+
+    private static <T> T callInPlace(Callable<T> task) throws IOException {
+        try {
+            return task.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static IOException rethrow(Throwable cause) {
+        if (cause instanceof IOException io) {
+            return io;
+        }
+        if (cause instanceof RuntimeException runtime) {
+            throw runtime;
+        }
+        if (cause instanceof Error error) {
+            throw error;
+        }
+        throw new IllegalStateException(cause);
+    }
+
+    private static final class Worker extends Thread {
+
+        Worker(Runnable task, String name) {
+            super(task, name);
+            setDaemon(true);
+        }
+    }
+
+    /**
+     * A queued task, timing how long it waited and remembering what it was
+     * submitted as.
+     */
+    private final class Task<T> extends FutureTask<T> {
+
+        private final Runnable origin;
+        private final double tag;
+        private final long sequence = CpuBulkhead.this.sequence.getAndIncrement();
+        private final long queuedAt = System.nanoTime();
+
+        Task(Callable<T> callable, Runnable origin, double tag) {
+            super(callable);
+            this.origin = origin;
+            this.tag = tag;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            waitTimer.record(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
+            advanceTo(tag);
+            super.run();
+        }
+    }
+}
@@ -1,19 +1,35 @@
 package com.tadeasfort.steganomessages.service;
 
+import com.tadeasfort.steganomessages.model.EngineType;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import javax.imageio.ImageIO;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 @Service
 @Slf4j
-public class DCTSteganographyService {
+public class DCTSteganographyService implements SteganographyEngine {
 
-    private static final String MESSAGE_DELIMITER = "###END_OF_MESSAGE###";
-    private static final int BLOCK_SIZE = 8;
+    private static final int BLOCK_SIZE = DctKernel.BLOCK_SIZE;
     private static final double ALPHA = 10.0; // Increased embedding strength
 
     // Use middle-frequency AC coefficients for better robustness
@@ -22,348 +38,780 @@ public class DCTSteganographyService {
     private static final int[][] EMBED_POSITIONS = {
             { 1, 1 }, { 1, 2 }, { 2, 1 }, { 2, 2 }, { 1, 3 }, { 3, 1 }, { 2, 3 }, { 3, 2 }
     };
-    // Precomputed DCT coefficient matrices for 8x8 blocks (JPEG standard)
-    private static final double[][] DCT_MATRIX = computeDCTMatrix();
-    private static final double[][] IDCT_MATRIX = computeIDCTMatrix();
+    // The same positions as offsets into a flat row-major 8x8 block
+    private static final int[] EMBED_INDICES = toFlatIndices(EMBED_POSITIONS);
+    // One bit per position, so every block carries exactly one payload byte
+    private static final int BITS_PER_BLOCK = EMBED_POSITIONS.length;
+    // Matrix embedding spreads the payload after the header over three times
+    // the positions, in groups of three that each carry two bits with at most
+    // one change: twice the bits per block for no more changes per block
+    private static final int[][] MATRIX_POSITIONS = {
+            { 1, 1 }, { 1, 2 }, { 2, 1 }, { 2, 2 }, { 1, 3 }, { 3, 1 }, { 2, 3 }, { 3, 2 },
+            { 1, 4 }, { 4, 1 }, { 1, 5 }, { 5, 1 }, { 2, 4 }, { 4, 2 }, { 3, 3 }, { 1, 6 },
+            { 6, 1 }, { 2, 5 }, { 5, 2 }, { 3, 4 }, { 4, 3 }, { 4, 4 }, { 3, 5 }, { 5, 3 }
+    };
+    private static final int[] MATRIX_INDICES = toFlatIndices(MATRIX_POSITIONS);
+    private static final MatrixCode MATRIX_CODE = new MatrixCode(2);
+    private static final int MATRIX_GROUPS = MATRIX_POSITIONS.length / MATRIX_CODE.n();
+    private static final int MATRIX_BITS_PER_BLOCK = MATRIX_GROUPS * MATRIX_CODE.k();
+    // Bit offsets of the red, green and blue bytes, in the order the RGB
+    // layout fills them
+    private static final int[] CHANNEL_SHIFTS = { 16, 8, 0 };
+    // Below this many pixels, splitting block rows across cores costs more than it saves
+    private static final long DEFAULT_PARALLEL_THRESHOLD_PIXELS = 1L << 20;
+    // Blocks decoded per task when extracting in parallel
+    private static final int EXTRACTION_CHUNK_BLOCKS = 256;
+    // Pixels decoded per strip when streaming a carrier from a file
+    private static final long DEFAULT_STRIP_PIXELS = 1L << 22;
+
+    private final ImageCodecService imageCodecService;
+    private final long parallelThresholdPixels;
+    private final long stripPixels;
+    private final PngProfile pngProfile;
+    private final Layout layout;
+
+    public DCTSteganographyService() {
+        this(new ImageCodecService(new SimpleMeterRegistry()), PngProfile.BALANCED, false, false);
+    }
+
+    @Autowired
+    public DCTSteganographyService(ImageCodecService imageCodecService,
+            @Value("${app.png.profile:BALANCED}") PngProfile pngProfile,
+            @Value("${app.stego.dct.matrix:false}") boolean matrixEmbedding,
+            @Value("${app.stego.dct.rgb:false}") boolean rgbEmbedding) {
+        this(imageCodecService, DEFAULT_PARALLEL_THRESHOLD_PIXELS, DEFAULT_STRIP_PIXELS, pngProfile,
+                new Layout(matrixEmbedding, rgbEmbedding));
+    }
+
+    DCTSteganographyService(long parallelThresholdPixels) {
+        this(parallelThresholdPixels, DEFAULT_STRIP_PIXELS);
+    }
+
+    DCTSteganographyService(long parallelThresholdPixels, long stripPixels) {
+        this(parallelThresholdPixels, stripPixels, PngProfile.BALANCED);
+    }
+
+    DCTSteganographyService(long parallelThresholdPixels, long stripPixels, PngProfile pngProfile) {
+        this(new ImageCodecService(new SimpleMeterRegistry()), parallelThresholdPixels, stripPixels, pngProfile,
+                Layout.PLAIN);
+    }
+
+    DCTSteganographyService(ImageCodecService imageCodecService, long parallelThresholdPixels, long stripPixels,
+            PngProfile pngProfile, Layout layout) {
+        this.imageCodecService = imageCodecService;
+        this.parallelThresholdPixels = parallelThresholdPixels;
+        this.stripPixels = stripPixels;
+        this.pngProfile = pngProfile;
+        this.layout = layout;
+    }
+
+    @Override
+    public EngineType type() {
+        return EngineType.DCT;
+    }
 
     /**
      * Embeds a secret message into an image using DCT steganography
      */
+    @Override
     public BufferedImage embedMessage(BufferedImage image, String message) {
-        if (message == null || message.isEmpty()) {
-            throw new IllegalArgumentException("Message cannot be null or empty");
-        }
-
-        String messageWithDelimiter = message + MESSAGE_DELIMITER;
-        byte[] messageBytes = messageWithDelimiter.getBytes(StandardCharsets.UTF_8);
+        byte[] payloadBytes = preparePayload(message, image.getWidth(), image.getHeight());
 
-        // Convert message to binary string
-        StringBuilder binaryMessage = new StringBuilder();
-        for (byte b : messageBytes) {
-            binaryMessage.append(String.format("%8s", Integer.toBinaryString(b & 0xFF)).replace(' ', '0'));
-        }
+        // Start from a single bulk copy of the carrier and re-transform only
+        // the leading blocks the payload lands on; everything else, including
+        // the edge strips outside whole blocks, is already in place
+        RgbRaster stegoImage = RgbRaster.copyOf(image);
+        embedBlockRows(stegoImage, 0, payloadBlockRows(image.getWidth(), payloadBytes), payloadBytes);
 
-        // Check if image can accommodate the message
-        int totalBlocks = (image.getWidth() / BLOCK_SIZE) * (image.getHeight() / BLOCK_SIZE);
-        int availablePositions = totalBlocks * EMBED_POSITIONS.length;
-        int requiredBits = binaryMessage.length();
+        log.info("Successfully embedded message of {} bits into image using DCT steganography",
+                payloadBytes.length * 8L);
+        return stegoImage.image;
+    }
 
-        log.debug(
-                "Embedding message: '{}' + delimiter = {} bytes, {} bits into image {}x{} with {} blocks, {} available positions",
-                message, messageBytes.length, binaryMessage.length(), image.getWidth(), image.getHeight(), totalBlocks,
-                availablePositions);
+    /**
+     * Embeds a secret message into the image read from {@code input} and
+     * writes the result to {@code output} as PNG.
+     * <p>
+     * The carrier is decoded in horizontal strips of whole block rows through
+     * a {@link RasterStripSource}, embedded and handed to the PNG encoder one
+     * strip at a time, so peak memory is bounded by the strip size rather
+     * than the image size. Sources that are not sequential are decoded in a
+     * single strip instead of re-decoding the rows above every strip.
+     */
+    public void embedMessage(ImageInputStream input, String message, OutputStream output) throws IOException {
+        embedMessage(input, message, Channels.newChannel(output), 1);
+    }
 
-        if (requiredBits > availablePositions) {
-            throw new IllegalArgumentException("Message too long for this image. Maximum capacity: " +
-                    (availablePositions / 8) + " characters");
-        }
-
-        BufferedImage stegoImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
-
-        // Process image in 8x8 blocks
-        int messageIndex = 0;
-        for (int y = 0; y < image.getHeight() - BLOCK_SIZE + 1; y += BLOCK_SIZE) {
-            for (int x = 0; x < image.getWidth() - BLOCK_SIZE + 1; x += BLOCK_SIZE) {
-                if (messageIndex >= binaryMessage.length()) {
-                    // Copy remaining blocks without modification
-                    copyBlock(image, stegoImage, x, y);
-                } else {
-                    // Embed as many bits as possible in this block
-                    StringBuilder blockBits = new StringBuilder();
-                    for (int i = 0; i < EMBED_POSITIONS.length && messageIndex < binaryMessage.length(); i++) {
-                        blockBits.append(binaryMessage.charAt(messageIndex));
-                        messageIndex++;
-                    }
-                    embedBitsInBlock(image, stegoImage, x, y, blockBits.toString());
+    private void embedMessage(ImageInputStream input, String message, WritableByteChannel output, int subsampling)
+            throws IOException {
+        try (RasterStripSource source = imageCodecService.openStrips(input, subsampling, stripPixels)) {
+            int width = source.width();
+            int height = source.height();
+            byte[] payloadBytes = preparePayload(message, width, height);
+            int payloadRows = payloadBlockRows(width, payloadBytes);
+
+            // Readers restart from the top for every strip, so they get just one
+            int stripRows = source.isSequential() ? maxStripBlockRows(width) * BLOCK_SIZE : height;
+            StreamingPngWriter png = new StreamingPngWriter(output, width, height, pngProfile);
+            long encodeNanos = 0;
+
+            for (int y = 0; y < height; y += stripRows) {
+                int rows = Math.min(stripRows, height - y);
+                RgbRaster strip = source.read(y, rows);
+
+                int firstBlockRow = y / BLOCK_SIZE;
+                int stripPayloadRows = Math.min(rows / BLOCK_SIZE, payloadRows - firstBlockRow);
+                if (stripPayloadRows > 0) {
+                    embedBlockRows(strip, firstBlockRow, stripPayloadRows, payloadBytes);
                 }
+                long start = System.nanoTime();
+                png.writeRows(strip.pixels, 0, rows);
+                encodeNanos += System.nanoTime() - start;
             }
-        }
+            long start = System.nanoTime();
+            png.finish();
+            imageCodecService.recordEncode(ImageFormat.PNG, encodeNanos + System.nanoTime() - start);
 
-        // Copy any remaining pixels that don't fit in complete 8x8 blocks
-        copyRemainingPixels(image, stegoImage);
+            log.info("Successfully embedded message of {} bits into {}x{} image in strips of {} rows",
+                    payloadBytes.length * 8L, width, height, stripRows);
+        }
+    }
 
-        log.info("Successfully embedded message of {} bits into image using DCT steganography", binaryMessage.length());
-        log.debug("Binary message: {}", binaryMessage.substring(0, Math.min(64, binaryMessage.length())));
-        return stegoImage;
+    /**
+     * Streams {@code imageInput} through {@link #embedMessage(ImageInputStream,
+     * String, OutputStream)} into a PNG file, removing the partial file if
+     * embedding fails
+     */
+    @Override
+    public void embedMessage(InputStream imageInput, String message, String filePath, int subsampling)
+            throws IOException {
+        Path outputFile = Path.of(filePath);
+        Files.createDirectories(outputFile.toAbsolutePath().getParent());
+
+        try (ImageInputStream input = imageCodecService.openStream(imageInput);
+                FileChannel output = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            embedMessage(input, message, output, subsampling);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(outputFile);
+            throw e;
+        }
+        log.info("DCT steganography image saved to: {}", filePath);
     }
 
     /**
-     * Extracts a hidden message from an image using DCT steganography
+     * Extracts a hidden message from an image using DCT steganography.
+     * <p>
+     * Reads the payload header first and then exactly as many blocks as its
+     * length requires. Carriers without a header fall back to the legacy
+     * delimiter format.
      */
+    @Override
     public String extractMessage(BufferedImage image) {
-        StringBuilder binaryMessage = new StringBuilder();
-        int bitsExtracted = 0;
-        int totalBlocks = ((image.getHeight() / BLOCK_SIZE) * (image.getWidth() / BLOCK_SIZE));
+        Planes planes = Planes.of(RgbRaster.of(image));
+        int totalBlocks = planes.blocks();
         log.debug("Starting message extraction from image {}x{}, total blocks: {}",
-                image.getWidth(), image.getHeight(), totalBlocks);
-
-        // Process image in 8x8 blocks
-        for (int y = 0; y < image.getHeight() - BLOCK_SIZE + 1; y += BLOCK_SIZE) {
-            for (int x = 0; x < image.getWidth() - BLOCK_SIZE + 1; x += BLOCK_SIZE) {
-                String blockBits = extractBitsFromBlock(image, x, y);
-                binaryMessage.append(blockBits);
-                bitsExtracted += blockBits.length();
-
-                // Check if we have enough bits for characters and if we've reached the
-                // delimiter
-                if (binaryMessage.length() % 8 == 0 && binaryMessage.length() >= 8) {
-                    String currentMessage = binaryStringToText(binaryMessage.toString());
-                    if (currentMessage.endsWith(MESSAGE_DELIMITER)) {
-                        String extractedMessage = currentMessage.substring(0,
-                                currentMessage.length() - MESSAGE_DELIMITER.length());
-                        log.info(
-                                "Successfully extracted message of {} characters using DCT steganography after {} bits",
-                                extractedMessage.length(), bitsExtracted);
-                        return extractedMessage;
-                    }
-                }
+                planes.width, planes.height, totalBlocks);
+
+        PayloadScanner scanner = newScanner(totalBlocks);
+        scanBlocks(planes, 0, scanner);
+        return completeExtraction(scanner, totalBlocks);
+    }
 
-                // Safety check - if we've extracted way more bits than reasonable, stop
-                if (bitsExtracted > totalBlocks * EMBED_POSITIONS.length) {
-                    log.warn("Extracted {} bits from {} total positions without finding delimiter",
-                            bitsExtracted, totalBlocks * EMBED_POSITIONS.length);
-                    break;
+    /**
+     * Extracts a hidden message from the image read from {@code input},
+     * decoding it in bands of block rows and stopping as soon as the payload
+     * is complete.
+     * <p>
+     * The first band covers the header; after that the next band is exactly
+     * what the header says is left, or for legacy messages of unknown length
+     * twice the previous band. Bands never exceed the strip budget, so decode
+     * time and memory follow the message size rather than the resolution.
+     * Sources that are not sequential re-decode from the top for every band,
+     * so after the header they get a single band reaching the payload end,
+     * or the end of the image for legacy messages.
+     * The header band is decoded in colour in case the payload after the
+     * header is in the RGB layout; later bands only when it is.
+     */
+    @Override
+    public String extractMessage(ImageInputStream input) throws IOException {
+        try (RasterStripSource source = imageCodecService.openStrips(input, 1, stripPixels)) {
+            int blocksPerRow = source.width() / BLOCK_SIZE;
+            int blockRows = source.height() / BLOCK_SIZE;
+            int totalBlocks = blocksPerRow * blockRows;
+            log.debug("Starting banded message extraction from image {}x{}, total blocks: {}",
+                    source.width(), source.height(), totalBlocks);
+
+            PayloadScanner scanner = newScanner(totalBlocks);
+            int maxBandRows = source.isSequential() ? maxStripBlockRows(source.width()) : blockRows;
+            int blockRow = 0;
+            int bandRows = headerBlockRows(blocksPerRow);
+
+            while (!scanner.isComplete()) {
+                int rows = Math.min(Math.min(bandRows, maxBandRows), blockRows - blockRow);
+                if (rows <= 0) {
+                    throw new IllegalStateException("Extraction ran out of blocks before the scan completed");
                 }
+                int y = blockRow * BLOCK_SIZE;
+                Layout payloadLayout = Layout.of(scanner.header());
+                Planes band = blockRow == 0 || payloadLayout != null && payloadLayout.rgb()
+                        ? Planes.of(source.read(y, rows * BLOCK_SIZE))
+                        : Planes.of(source.readLuma(y, rows * BLOCK_SIZE));
+                scanBlocks(band, blockRow * blocksPerRow, scanner);
+                blockRow += rows;
+
+                int blocksLeft = scanner.blocksNeeded() - scanner.blocksRead();
+                bandRows = scanner.blocksNeeded() < totalBlocks
+                        ? (blocksLeft + blocksPerRow - 1) / blocksPerRow
+                        : source.isSequential() ? rows * 2 : blockRows;
             }
+            return completeExtraction(scanner, totalBlocks);
         }
+    }
 
-        log.warn("No message delimiter found after extracting {} bits from {} blocks. First 64 bits: {}",
-                bitsExtracted, totalBlocks,
-                binaryMessage.length() >= 64 ? binaryMessage.substring(0, 64) : binaryMessage.toString());
-
-        // Try to convert what we have to see if there's partial text
-        if (binaryMessage.length() >= 8) {
-            String partialText = binaryStringToText(binaryMessage.substring(0, (binaryMessage.length() / 8) * 8));
-            log.debug("Partial text extracted: '{}'", partialText.replaceAll("[\\p{Cntrl}]", "?"));
+    /**
+     * Decodes just the block rows holding a header. Carriers whose first
+     * bytes are neither a DCT header nor plausible legacy text are rejected.
+     */
+    @Override
+    public boolean detect(ImageInputStream input) throws IOException {
+        try (RasterStripSource source = imageCodecService.openStrips(input, 1, stripPixels)) {
+            int blocksPerRow = source.width() / BLOCK_SIZE;
+            int blockRows = source.height() / BLOCK_SIZE;
+            PayloadScanner scanner = newScanner(blocksPerRow * blockRows);
+            int rows = Math.min(headerBlockRows(blocksPerRow), blockRows);
+            if (rows > 0) {
+                scanBlocks(Planes.of(source.readLuma(0, rows * BLOCK_SIZE)), 0, scanner);
+            }
+            return !scanner.isRejected();
         }
-
-        throw new IllegalArgumentException("No hidden message found in the image");
     }
 
     /**
-     * Calculates the maximum message length that can be embedded in an image
+     * The DCT engine also reads the delimiter-terminated pre-header format
      */
-    public int getMaxMessageLength(BufferedImage image) {
-        int totalBlocks = (image.getWidth() / BLOCK_SIZE) * (image.getHeight() / BLOCK_SIZE);
-        int availablePositions = totalBlocks * EMBED_POSITIONS.length;
-        return (availablePositions / 8) - MESSAGE_DELIMITER.length();
+    @Override
+    public boolean readsHeaderlessPayloads() {
+        return true;
     }
 
-    private void embedBitsInBlock(BufferedImage source, BufferedImage dest, int startX, int startY, String bits) {
-        // Extract 8x8 block
-        double[][] block = extractBlock(source, startX, startY);
-
-        // Apply DCT
-        double[][] dctBlock = applyDCT(block);
+    /**
+     * Streams {@code imageInput} through {@link #extractMessage(ImageInputStream)}
+     */
+    public String extractMessage(InputStream imageInput) throws IOException {
+        try (ImageInputStream input = imageCodecService.openStream(imageInput)) {
+            return extractMessage(input);
+        }
+    }
 
-        // Embed bits using multiple AC coefficients
-        for (int i = 0; i < bits.length() && i < EMBED_POSITIONS.length; i++) {
-            int posX = EMBED_POSITIONS[i][0];
-            int posY = EMBED_POSITIONS[i][1];
-            char bit = bits.charAt(i);
+    /**
+     * Reads payloads written either way, whatever this instance embeds with
+     */
+    private static PayloadScanner newScanner(int totalBlocks) {
+        return new PayloadScanner(totalBlocks, EngineType.DCT, true, header -> {
+            Layout payloadLayout = Layout.of(header);
+            return payloadLayout != null ? payloadLayout.bitsPerBlock() : 0;
+        });
+    }
 
-            double coefficient = dctBlock[posX][posY];
-            int bitValue = bit - '0';
+    /**
+     * Feeds the scanner blocks of {@code planes}, whose first block is block
+     * {@code firstBlock} of the carrier, until the scan completes or the
+     * planes run out. The header (or the first bytes of a legacy message) is
+     * read on this thread, so carriers without a payload are rejected within
+     * it, and tells how the remaining blocks are decoded; large planes decode
+     * them in parallel when not already on a bulkhead worker. Stops after the
+     * header if the payload is in colour and {@code planes} are luminance
+     * only.
+     */
+    private void scanBlocks(Planes planes, int firstBlock, PayloadScanner scanner) {
+        int planeBlocks = planes.blocks();
+        DctKernel.Workspace workspace = new DctKernel.Workspace();
 
-            // Quantization-based embedding with stronger modification
-            double quantizedCoeff = Math.round(coefficient / ALPHA);
+        int block = scanner.blocksRead() - firstBlock;
+        while (!scanner.isComplete() && block < planeBlocks && scanner.blocksRead() < PayloadHeader.LENGTH) {
+            acceptBlock(scanner, extractBitsFromBlock(planes.luma(), block++, workspace), null);
+        }
 
-            // Ensure the coefficient has the desired parity
-            if (bitValue == 1) {
-                // We want odd parity for bit 1
-                if ((int) quantizedCoeff % 2 == 0) {
-                    quantizedCoeff = quantizedCoeff + (quantizedCoeff >= 0 ? 1 : -1);
-                }
-            } else {
-                // We want even parity for bit 0
-                if ((int) quantizedCoeff % 2 == 1) {
-                    quantizedCoeff = quantizedCoeff + (quantizedCoeff >= 0 ? 1 : -1);
-                }
+        if (scanner.isComplete() || block == planeBlocks) {
+            return;
+        }
+        // Split off the planes the remaining blocks need here, before any
+        // worker needs them
+        Layout payloadLayout = Layout.of(scanner.header());
+        if (payloadLayout == null || !payloadLayout.rgb()) {
+            planes.luma();
+        } else if (planes.hasColour()) {
+            planes.channels();
+        } else {
+            return;
+        }
+        if ((long) planes.width * planes.height >= parallelThresholdPixels && !CpuBulkhead.isWorker()) {
+            extractBlocksInParallel(planes, scanner, firstBlock, block, planeBlocks, payloadLayout);
+        } else {
+            while (!scanner.isComplete() && block < planeBlocks) {
+                acceptBlock(scanner, decodeBlock(planes, block++, payloadLayout, workspace), payloadLayout);
             }
+        }
+    }
 
-            // Apply the modified coefficient back
-            dctBlock[posX][posY] = quantizedCoeff * ALPHA;
+    private String completeExtraction(PayloadScanner scanner, int totalBlocks) {
+        String extractedMessage;
+        try {
+            extractedMessage = scanner.message();
+        } catch (IllegalArgumentException e) {
+            log.warn("No valid message after reading {} of {} blocks: {}", scanner.blocksRead(), totalBlocks,
+                    e.getMessage());
+            throw e;
         }
 
-        // Apply inverse DCT
-        double[][] modifiedBlock = applyIDCT(dctBlock);
+        log.info("Successfully extracted {}message of {} characters using DCT steganography from {} blocks",
+                scanner.isLegacy() ? "legacy " : "", extractedMessage.length(), scanner.blocksRead());
+        return extractedMessage;
+    }
 
-        // Copy modified block to destination
-        copyBlockToImage(modifiedBlock, dest, startX, startY);
+    /**
+     * Calculates the maximum message length that can be embedded in an image
+     */
+    public int getMaxMessageLength(BufferedImage image) {
+        return getMaxMessageLength(image.getWidth(), image.getHeight());
     }
 
-    private String extractBitsFromBlock(BufferedImage image, int startX, int startY) {
-        // Extract 8x8 block
-        double[][] block = extractBlock(image, startX, startY);
+    /**
+     * Calculates the maximum message length, in UTF-8 bytes, for a carrier of
+     * the given size
+     */
+    @Override
+    public int getMaxMessageLength(int width, int height) {
+        long totalBlocks = (long) (width / BLOCK_SIZE) * (height / BLOCK_SIZE);
+        long headerBlocks = Math.min(totalBlocks, PayloadHeader.LENGTH);
+        long availableBits = headerBlocks * BITS_PER_BLOCK + (totalBlocks - headerBlocks) * layout.bitsPerBlock();
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, (availableBits / 8) - PayloadHeader.LENGTH));
+    }
 
-        // Apply DCT
-        double[][] dctBlock = applyDCT(block);
+    /**
+     * Serialises the message with its header, checking it fits a carrier of
+     * the given size
+     */
+    private byte[] preparePayload(String message, int width, int height) {
+        if (message == null || message.isEmpty()) {
+            throw new IllegalArgumentException("Message cannot be null or empty");
+        }
 
-        StringBuilder bits = new StringBuilder();
+        byte[] payloadBytes = PayloadCodec.pack(EngineType.DCT, layout.flags(), message);
 
-        // Extract bits from AC coefficients
-        for (int i = 0; i < EMBED_POSITIONS.length; i++) {
-            int posX = EMBED_POSITIONS[i][0];
-            int posY = EMBED_POSITIONS[i][1];
+        // Check if image can accommodate the message
+        long totalBlocks = (long) (width / BLOCK_SIZE) * (height / BLOCK_SIZE);
+        long requiredBlocks = payloadBlocks(payloadBytes.length);
 
-            double coefficient = dctBlock[posX][posY];
-            double quantizedCoeff = Math.round(coefficient / ALPHA);
+        log.debug("Embedding message: '{}' + header = {} bytes in {} of {} blocks of image {}x{} with {}",
+                message, payloadBytes.length, requiredBlocks, totalBlocks, width, height, layout);
 
-            // Extract bit based on parity
-            char extractedBit = (int) quantizedCoeff % 2 == 1 ? '1' : '0';
-            bits.append(extractedBit);
+        if (requiredBlocks > totalBlocks) {
+            throw new IllegalArgumentException("Message too long for this image. Maximum capacity: " +
+                    getMaxMessageLength(width, height) + " characters");
         }
+        return payloadBytes;
+    }
 
-        return bits.toString();
+    private static int headerBlockRows(int blocksPerRow) {
+        return blocksPerRow > 0 ? (PayloadHeader.LENGTH + blocksPerRow - 1) / blocksPerRow : 0;
     }
 
-    private double[][] extractBlock(BufferedImage image, int startX, int startY) {
-        double[][] block = new double[BLOCK_SIZE][BLOCK_SIZE];
+    private int payloadBlockRows(int width, byte[] payloadBytes) {
+        int blocksPerRow = width / BLOCK_SIZE;
+        return (int) ((payloadBlocks(payloadBytes.length) + blocksPerRow - 1) / blocksPerRow);
+    }
 
-        for (int y = 0; y < BLOCK_SIZE; y++) {
-            for (int x = 0; x < BLOCK_SIZE; x++) {
-                int pixelX = Math.min(startX + x, image.getWidth() - 1);
-                int pixelY = Math.min(startY + y, image.getHeight() - 1);
-
-                int rgb = image.getRGB(pixelX, pixelY);
-                // Use luminance component for better compatibility
-                int gray = (int) (0.299 * ((rgb >> 16) & 0xFF) +
-                        0.587 * ((rgb >> 8) & 0xFF) +
-                        0.114 * (rgb & 0xFF));
-                block[y][x] = gray - 128; // Center around 0 for DCT
-            }
+    /**
+     * Blocks a payload of {@code length} bytes, header included, occupies:
+     * one per header byte, and after the header one per
+     * {@link Layout#bitsPerBlock()} bits.
+     */
+    private long payloadBlocks(int length) {
+        if (length <= PayloadHeader.LENGTH) {
+            return length;
         }
+        int bitsPerBlock = layout.bitsPerBlock();
+        return PayloadHeader.LENGTH + ((length - PayloadHeader.LENGTH) * 8L + bitsPerBlock - 1) / bitsPerBlock;
+    }
 
-        return block;
+    /**
+     * Offset of the first payload bit embedded in block {@code block}
+     */
+    private long payloadBitOffset(int block) {
+        if (block <= PayloadHeader.LENGTH) {
+            return (long) block * BITS_PER_BLOCK;
+        }
+        return (long) PayloadHeader.LENGTH * BITS_PER_BLOCK
+                + (long) (block - PayloadHeader.LENGTH) * layout.bitsPerBlock();
     }
 
-    private void copyBlockToImage(double[][] block, BufferedImage image, int startX, int startY) {
-        for (int y = 0; y < BLOCK_SIZE; y++) {
-            for (int x = 0; x < BLOCK_SIZE; x++) {
-                int pixelX = Math.min(startX + x, image.getWidth() - 1);
-                int pixelY = Math.min(startY + y, image.getHeight() - 1);
+    /**
+     * Block rows per strip that fit the strip pixel budget, at least one
+     */
+    private int maxStripBlockRows(int width) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE / BLOCK_SIZE, stripPixels / width / BLOCK_SIZE));
+    }
 
-                // Clamp and convert back to RGB
-                int gray = (int) Math.max(0, Math.min(255, Math.round(block[y][x] + 128)));
-                int rgb = (gray << 16) | (gray << 8) | gray;
-                image.setRGB(pixelX, pixelY, rgb);
-            }
+    /**
+     * Embeds payload block rows {@code firstBlockRow} onwards into the first
+     * {@code rowCount} block rows of {@code image}, which may be a strip of
+     * the carrier starting at {@code firstBlockRow}. Blocks are transformed
+     * in byte planes of just those rows: the luminance, written back as gray,
+     * or for the RGB layout the luminance for header blocks, written back
+     * keeping each pixel's colour, and the three channels for the rest.
+     */
+    private void embedBlockRows(RgbRaster image, int firstBlockRow, int rowCount, byte[] payloadBytes) {
+        int rows = rowCount * BLOCK_SIZE;
+        LumaPlane luma = LumaPlane.of(image, 0, rows);
+        LumaPlane[] channels = new LumaPlane[layout.rgb() ? CHANNEL_SHIFTS.length : 0];
+        for (int c = 0; c < channels.length; c++) {
+            channels[c] = LumaPlane.channel(image, 0, rows, CHANNEL_SHIFTS[c]);
         }
-    }
 
-    private void copyBlock(BufferedImage source, BufferedImage dest, int startX, int startY) {
-        for (int y = 0; y < BLOCK_SIZE; y++) {
-            for (int x = 0; x < BLOCK_SIZE; x++) {
-                int pixelX = Math.min(startX + x, source.getWidth() - 1);
-                int pixelY = Math.min(startY + y, source.getHeight() - 1);
-                dest.setRGB(pixelX, pixelY, source.getRGB(pixelX, pixelY));
-            }
+        // Payload rows touch disjoint pixels, so long payloads can spread them
+        // over the common fork/join pool, unless a bulkhead worker already
+        // accounts for this thread's core
+        IntStream blockRows = IntStream.range(0, rowCount);
+        if ((long) rowCount * image.width * BLOCK_SIZE >= parallelThresholdPixels && !CpuBulkhead.isWorker()) {
+            blockRows = blockRows.parallel();
         }
+        blockRows.forEach(row -> embedBlockRow(image, luma, channels, row, firstBlockRow + row, payloadBytes));
     }
 
-    private void copyRemainingPixels(BufferedImage source, BufferedImage dest) {
-        // Copy pixels that don't fit in complete 8x8 blocks
-        for (int y = 0; y < source.getHeight(); y++) {
-            for (int x = 0; x < source.getWidth(); x++) {
-                if (x >= (source.getWidth() / BLOCK_SIZE) * BLOCK_SIZE ||
-                        y >= (source.getHeight() / BLOCK_SIZE) * BLOCK_SIZE) {
-                    dest.setRGB(x, y, source.getRGB(x, y));
+    /**
+     * Decodes blocks {@code [start, end)} of {@code planes}, whose first block
+     * is block {@code firstBlock} of the carrier, in chunks on the common
+     * fork/join pool, running speculatively ahead of the scanner by a bounded
+     * window. Once the scanner knows where the payload ends, no chunk past it
+     * is submitted and running chunks stop at their next block; when the scan
+     * completes everything still in flight is cancelled.
+     */
+    private void extractBlocksInParallel(Planes planes, PayloadScanner scanner, int firstBlock, int start,
+            int end, Layout payloadLayout) {
+        AtomicInteger limit = new AtomicInteger(Math.min(scanner.blocksNeeded() - firstBlock, end));
+        ArrayDeque<CompletableFuture<long[]>> inFlight = new ArrayDeque<>();
+        int window = ForkJoinPool.getCommonPoolParallelism() + 1;
+        int nextBlock = start;
+
+        try {
+            while (!scanner.isComplete()) {
+                while (inFlight.size() < window && nextBlock < limit.get()) {
+                    int chunkEnd = Math.min(nextBlock + EXTRACTION_CHUNK_BLOCKS, limit.get());
+                    inFlight.add(submitChunk(planes, nextBlock, chunkEnd, payloadLayout, limit));
+                    nextBlock = chunkEnd;
                 }
+
+                CompletableFuture<long[]> chunk = inFlight.poll();
+                if (chunk == null) {
+                    // This plane is exhausted; the caller supplies the next one
+                    return;
+                }
+                long[] values = chunk.join();
+                for (int i = 0; i < values.length && !scanner.isComplete(); i++) {
+                    acceptBlock(scanner, values[i], payloadLayout);
+                }
+                limit.set(Math.min(scanner.blocksNeeded() - firstBlock, end));
             }
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        } finally {
+            limit.set(0);
+            inFlight.forEach(chunk -> chunk.cancel(false));
         }
     }
 
-    private double[][] applyDCT(double[][] block) {
-        return matrixMultiply(matrixMultiply(DCT_MATRIX, block), transposeMatrix(DCT_MATRIX));
+    /**
+     * Decodes blocks {@code [start, end)}, stopping early if {@code limit}
+     * drops below them; the result holds only the blocks actually decoded.
+     */
+    private CompletableFuture<long[]> submitChunk(Planes planes, int start, int end, Layout payloadLayout,
+            AtomicInteger limit) {
+        return CompletableFuture.supplyAsync(() -> {
+            DctKernel.Workspace workspace = new DctKernel.Workspace();
+            long[] chunk = new long[end - start];
+            int block = start;
+            while (block < end && block < limit.get()) {
+                chunk[block - start] = decodeBlock(planes, block, payloadLayout, workspace);
+                block++;
+            }
+            return block == end ? chunk : Arrays.copyOf(chunk, block - start);
+        }, ForkJoinPool.commonPool());
     }
 
-    private double[][] applyIDCT(double[][] dct) {
-        return matrixMultiply(matrixMultiply(IDCT_MATRIX, dct), transposeMatrix(IDCT_MATRIX));
+    /**
+     * Feeds a block decoded by {@link #decodeBlock} with the same layout
+     */
+    private static void acceptBlock(PayloadScanner scanner, long bits, Layout payloadLayout) {
+        if (payloadLayout != null) {
+            scanner.accept(bits, 0);
+        } else {
+            scanner.accept(bits & 0xFF, (int) (bits >>> BITS_PER_BLOCK));
+        }
     }
 
     /**
-     * Computes the DCT coefficient matrix using JPEG standard
+     * Decodes a payload block laid out as {@code payloadLayout}, or a header
+     * or legacy block if it is {@code null}
      */
-    private static double[][] computeDCTMatrix() {
-        double[][] matrix = new double[BLOCK_SIZE][BLOCK_SIZE];
+    private long decodeBlock(Planes planes, int block, Layout payloadLayout, DctKernel.Workspace workspace) {
+        if (payloadLayout == null) {
+            return extractBitsFromBlock(planes.luma(), block, workspace);
+        }
+        if (!payloadLayout.rgb()) {
+            return decodeChannel(planes.luma(), block, payloadLayout, workspace);
+        }
+        long bits = 0;
+        for (LumaPlane channel : planes.channels()) {
+            bits = (bits << payloadLayout.channelBits()) | decodeChannel(channel, block, payloadLayout, workspace);
+        }
+        return bits;
+    }
 
-        for (int i = 0; i < BLOCK_SIZE; i++) {
-            for (int j = 0; j < BLOCK_SIZE; j++) {
-                double ci = (i == 0) ? 1.0 / Math.sqrt(2.0) : 1.0;
-                matrix[i][j] = ci * Math.sqrt(2.0 / BLOCK_SIZE) *
-                        Math.cos((2 * j + 1) * i * Math.PI / (2 * BLOCK_SIZE));
+    private int decodeChannel(LumaPlane plane, int block, Layout payloadLayout, DctKernel.Workspace workspace) {
+        return payloadLayout.matrix()
+                ? extractMatrixBitsFromBlock(plane, block, workspace)
+                : extractBitsFromBlock(plane, block, workspace) & 0xFF;
+    }
+
+    /**
+     * Embeds the slice of the payload that falls on payload block row
+     * {@code payloadRow} into block row {@code blockRow} of {@code image}, in
+     * place. Blocks past the end of the payload are left alone.
+     */
+    private void embedBlockRow(RgbRaster image, LumaPlane luma, LumaPlane[] channels, int blockRow,
+            int payloadRow, byte[] payloadBytes) {
+        int blocksPerRow = luma.width / BLOCK_SIZE;
+        int y = blockRow * BLOCK_SIZE;
+        int block = payloadRow * blocksPerRow;
+        BitReader payload = new BitReader(payloadBytes);
+        payload.skip(payloadBitOffset(block));
+
+        DctKernel.Workspace workspace = new DctKernel.Workspace();
+        int headerEnd = 0;
+        int x = 0;
+        for (; x < blocksPerRow * BLOCK_SIZE && payload.hasRemaining(); x += BLOCK_SIZE, block++) {
+            if (block < PayloadHeader.LENGTH) {
+                embedBitsInBlock(luma, x, y, payload.readBits(BITS_PER_BLOCK), BITS_PER_BLOCK, workspace);
+                headerEnd = x + BLOCK_SIZE;
+            } else if (layout.rgb()) {
+                for (int c = 0; c < channels.length && payload.hasRemaining(); c++) {
+                    embedChannelBits(channels[c], x, y, payload, workspace);
+                }
+            } else {
+                embedChannelBits(luma, x, y, payload, workspace);
             }
         }
 
-        return matrix;
+        if (!layout.rgb()) {
+            luma.copyGrayTo(image, y, BLOCK_SIZE, x);
+            return;
+        }
+        luma.copyLuminanceTo(image, y, BLOCK_SIZE, 0, headerEnd);
+        for (int c = 0; c < channels.length; c++) {
+            channels[c].copyChannelTo(image, y, BLOCK_SIZE, headerEnd, x, CHANNEL_SHIFTS[c]);
+        }
     }
 
     /**
-     * Computes the IDCT coefficient matrix (transpose of DCT matrix)
+     * Embeds the next payload bits, as many as one plane of a block holds
+     * in this instance's layout, into the block of {@code plane} at
+     * {@code (startX, startY)}.
      */
-    private static double[][] computeIDCTMatrix() {
-        return transposeMatrix(computeDCTMatrix());
+    private void embedChannelBits(LumaPlane plane, int startX, int startY, BitReader payload,
+            DctKernel.Workspace workspace) {
+        int bitCount = Math.min(layout.channelBits(), payload.remaining());
+        if (layout.matrix()) {
+            // Groups past the end of the payload carry zeros
+            int bits = payload.readBits(bitCount) << (MATRIX_BITS_PER_BLOCK - bitCount);
+            embedMatrixBitsInBlock(plane, startX, startY, bits, workspace);
+        } else {
+            embedBitsInBlock(plane, startX, startY, payload.readBits(bitCount), bitCount, workspace);
+        }
     }
 
     /**
-     * Matrix multiplication for DCT operations
+     * Embeds the low {@code bitCount} bits of {@code bits}, highest first, into
+     * the leading embedding positions of one block, overwriting it in place.
      */
-    private static double[][] matrixMultiply(double[][] a, double[][] b) {
-        int rows = a.length;
-        int cols = b[0].length;
-        int common = b.length;
+    private void embedBitsInBlock(LumaPlane image, int startX, int startY, int bits, int bitCount,
+            DctKernel.Workspace workspace) {
+        double[] dctBlock = workspace.coefficients;
+
+        // Extract 8x8 block and apply DCT
+        extractBlock(image, startX, startY, workspace.pixels);
+        DctKernel.forward(workspace.pixels, dctBlock, workspace.scratch);
 
-        double[][] result = new double[rows][cols];
+        // Embed bits using multiple AC coefficients
+        for (int i = 0; i < bitCount; i++) {
+            int index = EMBED_INDICES[i];
+            int bitValue = (bits >>> (bitCount - 1 - i)) & 1;
+
+            // Quantization-based embedding with stronger modification
+            double scaled = dctBlock[index] / ALPHA;
+            long quantizedCoeff = Math.round(scaled);
 
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                for (int k = 0; k < common; k++) {
-                    result[i][j] += a[i][k] * b[k][j];
+            // Fix the parity by stepping towards the side the coefficient
+            // actually lies on, which is the smaller of the two changes
+            if ((quantizedCoeff & 1) != bitValue) {
+                quantizedCoeff += scaled >= quantizedCoeff ? 1 : -1;
+            }
+
+            // Apply the modified coefficient back
+            dctBlock[index] = quantizedCoeff * ALPHA;
+        }
+
+        // Apply inverse DCT and write the modified block back
+        DctKernel.inverse(dctBlock, workspace.pixels, workspace.scratch);
+        copyBlockToImage(workspace.pixels, image, startX, startY);
+    }
+
+    /**
+     * Embeds {@link #MATRIX_BITS_PER_BLOCK} bits, highest first, into one
+     * block as the syndromes of its groups of matrix positions. Every
+     * position is quantised; at most one per group has its parity flipped.
+     */
+    private void embedMatrixBitsInBlock(LumaPlane image, int startX, int startY, int bits,
+            DctKernel.Workspace workspace) {
+        double[] dctBlock = workspace.coefficients;
+        int n = MATRIX_CODE.n();
+
+        extractBlock(image, startX, startY, workspace.pixels);
+        DctKernel.forward(workspace.pixels, dctBlock, workspace.scratch);
+
+        for (int group = 0; group < MATRIX_GROUPS; group++) {
+            int shift = (MATRIX_GROUPS - 1 - group) * MATRIX_CODE.k();
+            int message = (bits >>> shift) & ((1 << MATRIX_CODE.k()) - 1);
+            int flip = MATRIX_CODE.flipIndex(groupParities(dctBlock, group), message);
+
+            for (int i = 0; i < n; i++) {
+                int index = MATRIX_INDICES[group * n + i];
+                double scaled = dctBlock[index] / ALPHA;
+                long quantizedCoeff = Math.round(scaled);
+                if (i == flip) {
+                    quantizedCoeff += scaled >= quantizedCoeff ? 1 : -1;
                 }
+                dctBlock[index] = quantizedCoeff * ALPHA;
             }
         }
 
-        return result;
+        DctKernel.inverse(dctBlock, workspace.pixels, workspace.scratch);
+        copyBlockToImage(workspace.pixels, image, startX, startY);
     }
 
     /**
-     * Matrix transpose operation
+     * Reads the syndromes of the matrix position groups of the
+     * {@code block}-th block in raster order, packed highest first.
      */
-    private static double[][] transposeMatrix(double[][] matrix) {
-        int rows = matrix.length;
-        int cols = matrix[0].length;
-        double[][] transposed = new double[cols][rows];
+    private int extractMatrixBitsFromBlock(LumaPlane image, int block, DctKernel.Workspace workspace) {
+        double[] dctBlock = workspace.coefficients;
+        int blocksPerRow = image.width / BLOCK_SIZE;
 
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                transposed[j][i] = matrix[i][j];
-            }
+        extractBlock(image, (block % blocksPerRow) * BLOCK_SIZE, (block / blocksPerRow) * BLOCK_SIZE,
+                workspace.pixels);
+        DctKernel.forwardPartial(workspace.pixels, MATRIX_INDICES, dctBlock, workspace.scratch);
+
+        int bits = 0;
+        for (int group = 0; group < MATRIX_GROUPS; group++) {
+            bits = (bits << MATRIX_CODE.k()) | MATRIX_CODE.syndrome(groupParities(dctBlock, group));
+        }
+        return bits;
+    }
+
+    /**
+     * Parities of the quantised coefficients of one group of matrix
+     * positions, its first position lowest.
+     */
+    private static int groupParities(double[] dctBlock, int group) {
+        int n = MATRIX_CODE.n();
+        int parities = 0;
+        for (int i = 0; i < n; i++) {
+            long quantizedCoeff = Math.round(dctBlock[MATRIX_INDICES[group * n + i]] / ALPHA);
+            parities |= (int) (quantizedCoeff & 1) << i;
+        }
+        return parities;
+    }
+
+    /**
+     * Reads one bit per embedding position of the {@code block}-th block in
+     * raster order, packed highest first. The low byte uses the current parity
+     * rule and the byte above it the truncating rule of the pre-header format,
+     * both from the same coefficients.
+     */
+    private int extractBitsFromBlock(LumaPlane image, int block, DctKernel.Workspace workspace) {
+        double[] dctBlock = workspace.coefficients;
+        int blocksPerRow = image.width / BLOCK_SIZE;
+
+        // Extract 8x8 block and compute only the coefficients that carry bits
+        extractBlock(image, (block % blocksPerRow) * BLOCK_SIZE, (block / blocksPerRow) * BLOCK_SIZE,
+                workspace.pixels);
+        DctKernel.forwardPartial(workspace.pixels, EMBED_INDICES, dctBlock, workspace.scratch);
+
+        int bits = 0;
+        int legacyBits = 0;
+
+        // Extract bits from AC coefficients based on parity
+        for (int index : EMBED_INDICES) {
+            long quantizedCoeff = Math.round(dctBlock[index] / ALPHA);
+            bits = (bits << 1) | (int) (quantizedCoeff & 1);
+            legacyBits = (legacyBits << 1) | ((int) quantizedCoeff % 2 == 1 ? 1 : 0);
         }
 
-        return transposed;
+        return (legacyBits << BITS_PER_BLOCK) | bits;
     }
 
-    private String binaryStringToText(String binary) {
-        StringBuilder result = new StringBuilder();
+    private void extractBlock(LumaPlane image, int startX, int startY, double[] block) {
+        byte[] luma = image.luma;
+        for (int y = 0; y < BLOCK_SIZE; y++) {
+            int offset = (startY + y) * image.width + startX;
+            for (int x = 0; x < BLOCK_SIZE; x++) {
+                block[y * BLOCK_SIZE + x] = (luma[offset + x] & 0xFF) - 128; // Center around 0 for DCT
+            }
+        }
+    }
 
-        for (int i = 0; i < binary.length(); i += 8) {
-            if (i + 8 <= binary.length()) {
-                String byteString = binary.substring(i, i + 8);
-                int charCode = Integer.parseInt(byteString, 2);
-                result.append((char) charCode);
+    private void copyBlockToImage(double[] block, LumaPlane image, int startX, int startY) {
+        byte[] luma = image.luma;
+        for (int y = 0; y < BLOCK_SIZE; y++) {
+            int offset = (startY + y) * image.width + startX;
+            for (int x = 0; x < BLOCK_SIZE; x++) {
+                // Clamp back to the 8-bit luminance range
+                luma[offset + x] = (byte) Math.max(0, Math.min(255, Math.round(block[y * BLOCK_SIZE + x] + 128)));
             }
         }
+    }
 
-        return result.toString();
+    private static int[] toFlatIndices(int[][] positions) {
+        int[] indices = new int[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            indices[i] = positions[i][0] * BLOCK_SIZE + positions[i][1];
+        }
+        return indices;
     }
 
     /**
      * Saves a BufferedImage to a file
      */
     public void saveImage(BufferedImage image, String format, String filePath) throws IOException {
-        File outputFile = new File(filePath);
-        outputFile.getParentFile().mkdirs();
-        ImageIO.write(image, format, outputFile);
+        ImageFormat imageFormat = ImageFormat.forName(format)
+                .orElseThrow(() -> new IllegalArgumentException("Unsupported image format: " + format));
+        Path outputFile = Path.of(filePath);
+        Files.createDirectories(outputFile.toAbsolutePath().getParent());
+        if (imageFormat == ImageFormat.PNG && image.getType() == BufferedImage.TYPE_INT_RGB) {
+            // Stego images are plain RGB; the parallel encoder is much faster than ImageIO's
+            RgbRaster raster = RgbRaster.of(image);
+            long start = System.nanoTime();
+            try (FileChannel output = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                StreamingPngWriter png = new StreamingPngWriter(output, raster.width, raster.height, pngProfile);
+                png.writeRows(raster.pixels, 0, raster.height);
+                png.finish();
+            }
+            imageCodecService.recordEncode(ImageFormat.PNG, System.nanoTime() - start);
+        } else {
+            imageCodecService.write(image, imageFormat, outputFile);
+        }
         log.info("DCT steganography image saved to: {}", filePath);
     }
 
@@ -371,17 +819,118 @@ public class DCTSteganographyService {
      * Loads an image from a file
      */
     public BufferedImage loadImage(String filePath) throws IOException {
-        File imageFile = new File(filePath);
-        if (!imageFile.exists()) {
+        Path imageFile = Path.of(filePath);
+        if (!Files.exists(imageFile)) {
             throw new FileNotFoundException("Image file not found: " + filePath);
         }
-        return ImageIO.read(imageFile);
+        try (InputStream input = Files.newInputStream(imageFile)) {
+            return imageCodecService.read(input);
+        }
     }
 
     /**
      * Loads an image from InputStream
      */
     public BufferedImage loadImage(InputStream inputStream) throws IOException {
-        return ImageIO.read(inputStream);
+        return imageCodecService.read(inputStream);
+    }
+
+    /**
+     * Where payload bits after the header go: one per embedding position or
+     * {@link MatrixCode matrix coded}, in the luminance or in each of the
+     * red, green and blue channels. The header always takes one bit per
+     * position of the luminance, so it can be read before the layout is
+     * known.
+     */
+    record Layout(boolean matrix, boolean rgb) {
+
+        static final Layout PLAIN = new Layout(false, false);
+
+        /**
+         * The layout {@code header} declares, or {@code null} if there is no
+         * header or this engine cannot read its layout
+         */
+        static Layout of(PayloadHeader header) {
+            if (header == null) {
+                return null;
+            }
+            int matrixCode = header.matrixCode();
+            if (matrixCode != 0 && matrixCode != MATRIX_CODE.k()) {
+                return null;
+            }
+            return new Layout(matrixCode != 0, (header.flags() & PayloadHeader.FLAG_RGB) != 0);
+        }
+
+        int flags() {
+            return (matrix ? PayloadHeader.matrixFlags(MATRIX_CODE.k()) : 0) | (rgb ? PayloadHeader.FLAG_RGB : 0);
+        }
+
+        /**
+         * Payload bits in one plane of a block
+         */
+        int channelBits() {
+            return matrix ? MATRIX_BITS_PER_BLOCK : BITS_PER_BLOCK;
+        }
+
+        /**
+         * Payload bits in a block after the header
+         */
+        int bitsPerBlock() {
+            return channelBits() * (rgb ? CHANNEL_SHIFTS.length : 1);
+        }
+    }
+
+    /**
+     * A band of the carrier as block decoding reads it: its luminance and, if
+     * it was decoded in colour, its red, green and blue channels, each split
+     * off the raster on first use.
+     */
+    private static final class Planes {
+
+        final int width;
+        final int height;
+        private final RgbRaster raster;
+        private LumaPlane luma;
+        private LumaPlane[] channels;
+
+        private Planes(int width, int height, RgbRaster raster, LumaPlane luma) {
+            this.width = width;
+            this.height = height;
+            this.raster = raster;
+            this.luma = luma;
+        }
+
+        static Planes of(RgbRaster raster) {
+            return new Planes(raster.width, raster.height, raster, null);
+        }
+
+        static Planes of(LumaPlane luma) {
+            return new Planes(luma.width, luma.height, null, luma);
+        }
+
+        int blocks() {
+            return (width / BLOCK_SIZE) * (height / BLOCK_SIZE);
+        }
+
+        boolean hasColour() {
+            return raster != null;
+        }
+
+        LumaPlane luma() {
+            if (luma == null) {
+                luma = LumaPlane.of(raster);
+            }
+            return luma;
+        }
+
+        LumaPlane[] channels() {
+            if (channels == null) {
+                channels = new LumaPlane[CHANNEL_SHIFTS.length];
+                for (int c = 0; c < channels.length; c++) {
+                    channels[c] = LumaPlane.channel(raster, 0, height, CHANNEL_SHIFTS[c]);
+                }
+            }
+            return channels;
+        }
     }
 }
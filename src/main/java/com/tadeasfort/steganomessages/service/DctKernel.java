@@ -0,0 +1,135 @@
+package com.tadeasfort.steganomessages.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Separable 8x8 DCT-II / DCT-III on flat, row-major {@code double[64]} blocks.
+ * <p>
+ * The transform is evaluated as a column pass followed by a row pass against
+ * precomputed basis tables, which is exactly the {@code D * B * D^T} matrix
+ * product the service used to compute. Every output element is accumulated
+ * over the same terms in the same order, so results are bit-identical to the
+ * old {@code double[8][8]} implementation while allocating nothing per block.
+ * <p>
+ * The arithmetic is delegated to a {@link Transform} chosen once per JVM: the
+ * {@code jdk.incubator.vector} implementation when that module is in the boot
+ * layer, the scalar one otherwise or when the system property
+ * {@value #VECTOR_PROPERTY} is {@code false}. Both produce identical bits.
+ */
+@Slf4j
+final class DctKernel {
+
+    static final int BLOCK_SIZE = 8;
+    static final int BLOCK_AREA = BLOCK_SIZE * BLOCK_SIZE;
+
+    static final String VECTOR_PROPERTY = "steganomessages.dct.vector";
+
+    // Row-major DCT basis D[u][x] (JPEG standard) and its transpose
+    static final double[] DCT = computeDCTMatrix();
+    static final double[] DCT_T = transpose(DCT);
+
+    private static final Transform TRANSFORM = selectTransform();
+
+    private DctKernel() {
+    }
+
+    /**
+     * Forward DCT: {@code coefficients = D * block * D^T}. {@code scratch} must
+     * not alias either of the other arrays.
+     */
+    static void forward(double[] block, double[] coefficients, double[] scratch) {
+        TRANSFORM.forward(block, coefficients, scratch);
+    }
+
+    /**
+     * Inverse DCT: {@code block = D^T * coefficients * D}. {@code scratch} must
+     * not alias either of the other arrays.
+     */
+    static void inverse(double[] coefficients, double[] block, double[] scratch) {
+        TRANSFORM.inverse(coefficients, block, scratch);
+    }
+
+    /**
+     * Forward DCT restricted to the flat coefficient offsets in
+     * {@code indices}. Those coefficients are bit-identical to a full
+     * transform; other elements of {@code coefficients} are unspecified.
+     */
+    static void forwardPartial(double[] block, int[] indices, double[] coefficients, double[] scratch) {
+        TRANSFORM.forwardPartial(block, indices, coefficients, scratch);
+    }
+
+    static String implementationName() {
+        return TRANSFORM.name();
+    }
+
+    private static Transform selectTransform() {
+        boolean vectorModule = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+        if (vectorModule && Boolean.parseBoolean(System.getProperty(VECTOR_PROPERTY, "true"))) {
+            try {
+                Transform transform = (Transform) Class
+                        .forName(DctKernel.class.getPackageName() + ".VectorDctTransform")
+                        .getDeclaredConstructor()
+                        .newInstance();
+                log.info("Using {} DCT kernel", transform.name());
+                return transform;
+            } catch (ReflectiveOperationException | LinkageError e) {
+                log.warn("Vector DCT kernel unavailable, falling back to scalar", e);
+            }
+        }
+        log.info("Using scalar DCT kernel{}", vectorModule ? "" : " (jdk.incubator.vector not enabled)");
+        return new ScalarDctTransform();
+    }
+
+    /**
+     * Computes the DCT coefficient matrix using JPEG standard
+     */
+    private static double[] computeDCTMatrix() {
+        double[] matrix = new double[BLOCK_AREA];
+
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            for (int j = 0; j < BLOCK_SIZE; j++) {
+                double ci = (i == 0) ? 1.0 / Math.sqrt(2.0) : 1.0;
+                matrix[i * BLOCK_SIZE + j] = ci * Math.sqrt(2.0 / BLOCK_SIZE) *
+                        Math.cos((2 * j + 1) * i * Math.PI / (2 * BLOCK_SIZE));
+            }
+        }
+
+        return matrix;
+    }
+
+    private static double[] transpose(double[] matrix) {
+        double[] transposed = new double[BLOCK_AREA];
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            for (int j = 0; j < BLOCK_SIZE; j++) {
+                transposed[j * BLOCK_SIZE + i] = matrix[i * BLOCK_SIZE + j];
+            }
+        }
+        return transposed;
+    }
+
+    /**
+     * One implementation of the block transforms. Implementations must sum
+     * every element's terms in ascending order without fused multiply-add, so
+     * that all of them stay bit-identical to each other.
+     */
+    interface Transform {
+
+        String name();
+
+        void forward(double[] block, double[] coefficients, double[] scratch);
+
+        void inverse(double[] coefficients, double[] block, double[] scratch);
+
+        void forwardPartial(double[] block, int[] indices, double[] coefficients, double[] scratch);
+    }
+
+    /**
+     * Per-thread scratch buffers for one block. Create one per call (or per
+     * parallel task) and reuse it for every block that call processes.
+     */
+    static final class Workspace {
+        final double[] pixels = new double[BLOCK_AREA];
+        final double[] coefficients = new double[BLOCK_AREA];
+        final double[] scratch = new double[BLOCK_AREA];
+    }
+}
@@ -0,0 +1,81 @@
+package com.tadeasfort.steganomessages.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Memory all image decodes together may hold, handed out in reservations
+ * taken before a decode allocates anything. When the budget is spent, the
+ * next decode waits for one to finish instead of every upload allocating at
+ * once and exhausting the heap. Decodes run on bulkhead workers, so the wait
+ * is bounded: a decode that cannot reserve its memory in time is turned away
+ * as busy rather than holding its worker indefinitely.
+ */
+final class DecodeBudget {
+
+    // Permits are KiB so the budget can exceed 2 GiB
+    private static final int UNIT = 1024;
+
+    private final Semaphore permits;
+    private final int totalUnits;
+    private final Duration maxWait;
+
+    DecodeBudget(long bytes, Duration maxWait) {
+        this.totalUnits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / UNIT));
+        this.permits = new Semaphore(totalUnits, true);
+        this.maxWait = maxWait;
+    }
+
+    long totalBytes() {
+        return (long) totalUnits * UNIT;
+    }
+
+    long reservedBytes() {
+        return (long) (totalUnits - permits.availablePermits()) * UNIT;
+    }
+
+    /**
+     * Reserves {@code bytes}, waiting for other decodes to release theirs if
+     * needed.
+     *
+     * @throws IllegalArgumentException if {@code bytes} exceeds the whole budget
+     * @throws ServerBusyException      if the memory is not freed in time
+     */
+    Reservation reserve(long bytes) throws IOException {
+        if (bytes > totalBytes()) {
+            throw new IllegalArgumentException("The image is too large to decode");
+        }
+        int units = (int) Math.max(1, (bytes + UNIT - 1) / UNIT);
+        try {
+            if (!permits.tryAcquire(units, maxWait.toMillis(), TimeUnit.MILLISECONDS)) {
+                throw new ServerBusyException("The server is busy processing other images. Please try again shortly.",
+                        Math.max(1, maxWait.toSeconds()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for decode memory");
+        }
+        return new Reservation(units);
+    }
+
+    final class Reservation implements AutoCloseable {
+
+        private final int units;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Reservation(int units) {
+            this.units = units;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                permits.release(units);
+            }
+        }
+    }
+}
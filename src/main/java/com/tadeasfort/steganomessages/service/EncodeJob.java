@@ -0,0 +1,67 @@
+package com.tadeasfort.steganomessages.service;
+
+import lombok.Getter;
+
+import java.time.Instant;
+
+/**
+ * A message being embedded in the background. The request that submits it
+ * returns at once with the job id, and the encode page polls the job until
+ * the message is saved or embedding fails.
+ */
+@Getter
+public class EncodeJob {
+
+    public enum Status {
+        QUEUED("Waiting for a free encoder"),
+        RUNNING("Embedding the message"),
+        SUCCEEDED("Done"),
+        FAILED("Failed");
+
+        private final String description;
+
+        Status(String description) {
+            this.description = description;
+        }
+
+        public String description() {
+            return description;
+        }
+
+        public boolean isFinished() {
+            return this == SUCCEEDED || this == FAILED;
+        }
+    }
+
+    private final String id;
+    private final Long ownerId;
+    private final Instant submittedAt;
+    private volatile Status status = Status.QUEUED;
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+    private volatile Long messageId;
+    private volatile String error;
+
+    EncodeJob(String id, Long ownerId, Instant submittedAt) {
+        this.id = id;
+        this.ownerId = ownerId;
+        this.submittedAt = submittedAt;
+    }
+
+    void start() {
+        startedAt = Instant.now();
+        status = Status.RUNNING;
+    }
+
+    void succeed(Long messageId) {
+        this.messageId = messageId;
+        finishedAt = Instant.now();
+        status = Status.SUCCEEDED;
+    }
+
+    void fail(String error) {
+        this.error = error;
+        finishedAt = Instant.now();
+        status = Status.FAILED;
+    }
+}
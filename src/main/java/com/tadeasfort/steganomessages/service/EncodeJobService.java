@@ -0,0 +1,170 @@
+package com.tadeasfort.steganomessages.service;
+
+import com.tadeasfort.steganomessages.model.EngineType;
+import com.tadeasfort.steganomessages.model.SteganographyMessage;
+import com.tadeasfort.steganomessages.model.User;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs message embedding off the request thread.
+ * <p>
+ * Decoding, embedding and PNG encoding are CPU bound, so a burst of large
+ * uploads done inline would pin every servlet worker and stall unrelated
+ * pages. Uploads are instead validated on the request thread, admitted by
+ * {@link AdmissionControl} on the pixels the carrier will cost and queued on
+ * the {@link CpuBulkhead}. Uploads are buffered in memory by the multipart
+ * resolver and outlive the request, so a job reads its carrier straight from
+ * the upload, retaining it as a {@link RetainableUpload} so its memory stays
+ * counted against the upload budget until the job finishes. At most
+ * {@code app.encode.queue-capacity} jobs wait at a time; beyond that, or
+ * beyond the pixel budget, submission fails straight away rather than piling
+ * up work nobody will wait for.
+ */
+@Service
+@Slf4j
+public class EncodeJobService {
+
+    // Finished jobs are forgotten after this long; their messages stay on the dashboard
+    private static final Duration RETENTION = Duration.ofMinutes(30);
+
+    private final SteganographyMessageService messageService;
+    private final FileStorageService fileStorageService;
+    private final CpuBulkhead cpuBulkhead;
+    private final AdmissionControl admissionControl;
+    private final int queueCapacity;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Map<String, EncodeJob> jobs = new ConcurrentHashMap<>();
+    private final Map<String, JobTask> tasks = new ConcurrentHashMap<>();
+
+    public EncodeJobService(SteganographyMessageService messageService, FileStorageService fileStorageService,
+            CpuBulkhead cpuBulkhead, AdmissionControl admissionControl,
+            @Value("${app.encode.queue-capacity:32}") int queueCapacity) {
+        this.messageService = messageService;
+        this.fileStorageService = fileStorageService;
+        this.cpuBulkhead = cpuBulkhead;
+        this.admissionControl = admissionControl;
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    /**
+     * Validates {@code imageFile}, then queues embedding
+     * {@code message} into it. Only cheap checks run here; everything the
+     * engine rejects surfaces as a failed job.
+     *
+     * @throws IllegalArgumentException if the upload is not an acceptable image
+     * @throws ServerBusyException      if the queue or the pixel budget is full
+     */
+    public EncodeJob submit(Requester requester, User user, String title, String message, MultipartFile imageFile, boolean isPublic,
+            String sharePassword, Integer expirationDays, EngineType engineType, boolean fitCarrier)
+            throws IOException {
+        fileStorageService.validateImageFile(imageFile);
+        evictFinishedJobs();
+
+        AdmissionControl.Admission admission = admissionControl.admit(requester,
+                messageService.carrierPixels(user, imageFile, message, engineType, fitCarrier));
+
+        EncodeJob job = new EncodeJob(UUID.randomUUID().toString(), user.getId(), Instant.now());
+        String originalFilename = imageFile.getOriginalFilename();
+        long fileSize = imageFile.getSize();
+        // The job reads the upload after the request has given its memory back
+        Runnable releaseUpload = imageFile instanceof RetainableUpload upload ? upload.retain() : () -> {
+        };
+        JobTask task = new JobTask(job, () -> messageService.createMessage(user, title, message, imageFile,
+                originalFilename, fileSize, isPublic, sharePassword, expirationDays, engineType, fitCarrier),
+                admission, releaseUpload);
+
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            releaseUpload.run();
+            admission.close();
+            throw new ServerBusyException("The server is busy encoding other images. Please try again shortly.", 5);
+        }
+        jobs.put(job.getId(), job);
+        tasks.put(job.getId(), task);
+        try {
+            cpuBulkhead.execute(admission, task);
+        } catch (RuntimeException e) {
+            queued.decrementAndGet();
+            jobs.remove(job.getId());
+            tasks.remove(job.getId());
+            releaseUpload.run();
+            admission.close();
+            throw e;
+        }
+        log.debug("Queued encode job {} for user: {}", job.getId(), user.getUsername());
+        return job;
+    }
+
+    /**
+     * The job with the given id if {@code user} submitted it
+     */
+    public Optional<EncodeJob> findJob(String id, User user) {
+        return Optional.ofNullable(jobs.get(id))
+                .filter(job -> user != null && Objects.equals(job.getOwnerId(), user.getId()));
+    }
+
+    /**
+     * Number of queued tasks, encodes or extractions, that will start before
+     * {@code job}, or 0 once it has started.
+     */
+    public int jobsAhead(EncodeJob job) {
+        JobTask task = tasks.get(job.getId());
+        return task == null || job.getStatus() != EncodeJob.Status.QUEUED ? 0 : cpuBulkhead.tasksAhead(task);
+    }
+
+    private void evictFinishedJobs() {
+        Instant cutoff = Instant.now().minus(RETENTION);
+        jobs.values().removeIf(job -> job.getStatus().isFinished() && job.getFinishedAt().isBefore(cutoff));
+    }
+
+    @FunctionalInterface
+    private interface Encoding {
+        SteganographyMessage run() throws IOException;
+    }
+
+    private final class JobTask implements Runnable {
+
+        private final EncodeJob job;
+        private final Encoding encoding;
+        private final AdmissionControl.Admission admission;
+        private final Runnable releaseUpload;
+
+        JobTask(EncodeJob job, Encoding encoding, AdmissionControl.Admission admission, Runnable releaseUpload) {
+            this.job = job;
+            this.encoding = encoding;
+            this.admission = admission;
+            this.releaseUpload = releaseUpload;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            tasks.remove(job.getId());
+            job.start();
+            try {
+                job.succeed(encoding.run().getId());
+                log.info("Encode job {} finished in {} ms", job.getId(),
+                        Duration.between(job.getStartedAt(), job.getFinishedAt()).toMillis());
+            } catch (Exception e) {
+                log.error("Encode job {} failed", job.getId(), e);
+                job.fail(e.getMessage());
+            } finally {
+                releaseUpload.run();
+                admission.close();
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -17,8 +18,11 @@ import java.util.UUID;
 public class FileStorageService {
 
     private final Path uploadPath;
+    private final ImageCodecService imageCodecService;
 
-    public FileStorageService(@Value("${app.upload.directory}") String uploadDirectory) {
+    public FileStorageService(@Value("${app.upload.directory}") String uploadDirectory,
+            ImageCodecService imageCodecService) {
+        this.imageCodecService = imageCodecService;
         this.uploadPath = Paths.get(uploadDirectory).toAbsolutePath().normalize();
         try {
             Files.createDirectories(this.uploadPath);
@@ -97,15 +101,25 @@ public class FileStorageService {
         return filename.substring(lastDotIndex);
     }
 
+    /**
+     * Checks the file's leading magic bytes; the client-supplied Content-Type
+     * is not trusted.
+     */
     public boolean isValidImageFile(MultipartFile file) {
-        String contentType = file.getContentType();
-        return contentType != null && (contentType.equals("image/jpeg") ||
-                contentType.equals("image/jpg") ||
-                contentType.equals("image/png") ||
-                contentType.equals("image/bmp") ||
-                contentType.equals("image/tiff"));
+        try (InputStream input = file.getInputStream()) {
+            byte[] head = input.readNBytes(ImageFormat.SNIFF_LENGTH);
+            return ImageFormat.sniff(head, head.length).isPresent();
+        } catch (IOException e) {
+            log.warn("Could not read upload to detect its format: {}", file.getOriginalFilename(), e);
+            return false;
+        }
     }
 
+    /**
+     * Rejects anything but a readable image within the size limits: the
+     * format is sniffed from the magic bytes, then the header's declared
+     * dimensions and bit depth are checked before anything decodes it.
+     */
     public void validateImageFile(MultipartFile file) {
         if (file.isEmpty()) {
             throw new IllegalArgumentException("Please select a file to upload");
@@ -119,5 +133,12 @@ public class FileStorageService {
         if (file.getSize() > 50 * 1024 * 1024) {
             throw new IllegalArgumentException("File size cannot exceed 50MB");
         }
+
+        try (InputStream input = file.getInputStream()) {
+            imageCodecService.inspect(input);
+        } catch (IOException e) {
+            log.warn("Could not read upload to inspect its header: {}", file.getOriginalFilename(), e);
+            throw new IllegalArgumentException("Unsupported or corrupted image file", e);
+        }
     }
 }
\ No newline at end of file
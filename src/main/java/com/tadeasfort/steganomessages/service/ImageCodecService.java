@@ -0,0 +1,507 @@
+package com.tadeasfort.steganomessages.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Single entry point for decoding and encoding images.
+ * <p>
+ * Formats are recognised from magic bytes, readers and writers are pooled per
+ * format instead of being looked up and created on every call, and ImageIO's
+ * temp-file cache is switched off so streams are buffered in memory. Decode
+ * and encode times are published per format as the
+ * {@value #DECODE_TIMER} and {@value #ENCODE_TIMER} timers.
+ * <p>
+ * A few hundred bytes of compressed data can declare an image of billions of
+ * pixels, so nothing is decoded before the header has been checked against
+ * {@code app.image.max-pixels}, {@code app.image.max-dimension} and a 64-bit
+ * pixel depth. Every decode then reserves the memory it will hold from a
+ * budget of {@code app.image.decode-memory} bytes shared by all decodes,
+ * published as {@value #DECODE_RESERVED_GAUGE}; when it runs out, further
+ * decodes wait up to {@code app.image.decode-wait} rather than exhaust the
+ * heap, and are then refused with a {@link ServerBusyException}.
+ */
+@Service
+@Slf4j
+public class ImageCodecService {
+
+    static final String DECODE_TIMER = "steganomessages.image.decode";
+    static final String ENCODE_TIMER = "steganomessages.image.encode";
+    static final String DECODE_RESERVED_GAUGE = "steganomessages.image.decode.reserved";
+
+    static final long DEFAULT_MAX_PIXELS = 200_000_000L;
+    static final int DEFAULT_MAX_DIMENSION = 32_768;
+    static final Duration DEFAULT_DECODE_WAIT = Duration.ofSeconds(5);
+    private static final int MAX_BITS_PER_PIXEL = 64;
+    // Strips live as a packed RGB raster plus luminance or channel planes next
+    // to the reader's own decoded rows
+    private static final int STRIP_BYTES_PER_PIXEL = 8;
+
+    // Idle readers and writers kept per format; more are created under load and disposed on return
+    private static final int MAX_IDLE_PER_FORMAT = Runtime.getRuntime().availableProcessors();
+
+    private final Map<ImageFormat, CodecPool<ImageReader>> readers = new EnumMap<>(ImageFormat.class);
+    private final Map<ImageFormat, CodecPool<ImageWriter>> writers = new EnumMap<>(ImageFormat.class);
+    private final Map<ImageFormat, Timer> decodeTimers = new EnumMap<>(ImageFormat.class);
+    private final Map<ImageFormat, Timer> encodeTimers = new EnumMap<>(ImageFormat.class);
+    private final long maxPixels;
+    private final int maxDimension;
+    private final DecodeBudget decodeBudget;
+
+    public ImageCodecService(MeterRegistry meterRegistry) {
+        this(meterRegistry, DEFAULT_MAX_PIXELS, DEFAULT_MAX_DIMENSION, 0, DEFAULT_DECODE_WAIT);
+    }
+
+    @Autowired
+    public ImageCodecService(MeterRegistry meterRegistry,
+            @Value("${app.image.max-pixels:200000000}") long maxPixels,
+            @Value("${app.image.max-dimension:32768}") int maxDimension,
+            @Value("${app.image.decode-memory:0}") long decodeMemory,
+            @Value("${app.image.decode-wait:5s}") Duration decodeWait) {
+        this.maxPixels = maxPixels;
+        this.maxDimension = maxDimension;
+        // A quarter of the heap unless configured
+        this.decodeBudget = new DecodeBudget(decodeMemory > 0 ? decodeMemory : Runtime.getRuntime().maxMemory() / 4,
+                decodeWait);
+        Gauge.builder(DECODE_RESERVED_GAUGE, decodeBudget, DecodeBudget::reservedBytes)
+                .description("Bytes reserved by image decodes in progress")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+
+        // Uploads are already in memory or on disk; spooling them again to temp files only costs I/O
+        ImageIO.setUseCache(false);
+
+        for (ImageFormat format : ImageFormat.values()) {
+            readers.put(format, new CodecPool<>(
+                    () -> first(ImageIO.getImageReadersByFormatName(format.formatName()), format),
+                    ImageReader::reset, ImageReader::dispose));
+            writers.put(format, new CodecPool<>(
+                    () -> first(ImageIO.getImageWritersByFormatName(format.formatName()), format),
+                    ImageWriter::reset, ImageWriter::dispose));
+            decodeTimers.put(format, Timer.builder(DECODE_TIMER)
+                    .description("Time spent decoding images")
+                    .tag("format", format.formatName())
+                    .register(meterRegistry));
+            encodeTimers.put(format, Timer.builder(ENCODE_TIMER)
+                    .description("Time spent encoding images")
+                    .tag("format", format.formatName())
+                    .register(meterRegistry));
+        }
+    }
+
+    /**
+     * Wraps a stream for ImageIO without a service-provider lookup.
+     */
+    public ImageInputStream openStream(InputStream inputStream) {
+        return new MemoryCacheImageInputStream(inputStream);
+    }
+
+    /**
+     * Recognises the format from the stream's leading bytes, leaving the
+     * stream position where it was.
+     *
+     * @throws IllegalArgumentException if the data is not a supported format
+     */
+    public ImageFormat detectFormat(ImageInputStream input) throws IOException {
+        byte[] head = new byte[ImageFormat.SNIFF_LENGTH];
+        input.mark();
+        int length;
+        try {
+            length = Math.max(0, input.read(head));
+        } finally {
+            input.reset();
+        }
+        return ImageFormat.sniff(head, length)
+                .orElseThrow(() -> new IllegalArgumentException("Unsupported or corrupted image file"));
+    }
+
+    /**
+     * Reads an image's dimensions from its header without decoding any pixels,
+     * so a stream holding just the first part of the file is enough.
+     *
+     * @throws IllegalArgumentException if the header is unreadable or declares
+     *                                  an image beyond the configured limits
+     */
+    public Dimension readSize(InputStream inputStream) throws IOException {
+        ImageHeader header = inspect(inputStream);
+        return new Dimension(header.width(), header.height());
+    }
+
+    /**
+     * Reads and checks an image's header without decoding any pixels.
+     *
+     * @throws IllegalArgumentException if the header is unreadable or declares
+     *                                  an image beyond the configured limits
+     */
+    ImageHeader inspect(InputStream inputStream) throws IOException {
+        try (ImageInputStream input = openStream(inputStream)) {
+            return inspect(input, detectFormat(input));
+        }
+    }
+
+    /**
+     * Decodes a whole image, holding a reservation for its decoded size while
+     * the reader runs.
+     */
+    public BufferedImage read(InputStream inputStream) throws IOException {
+        try (ImageInputStream input = openStream(inputStream)) {
+            ImageFormat format = detectFormat(input);
+            ImageHeader header = inspect(input, format);
+            CodecPool<ImageReader> pool = readers.get(format);
+            try (DecodeBudget.Reservation reservation = decodeBudget.reserve(header.decodedBytes())) {
+                ImageReader reader = pool.borrow();
+                long start = System.nanoTime();
+                try {
+                    reader.setInput(input, true, true);
+                    return reader.read(0);
+                } finally {
+                    decodeTimers.get(format).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    pool.release(reader);
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes {@code image} to {@code path}, replacing any existing file.
+     */
+    public void write(BufferedImage image, ImageFormat format, Path path) throws IOException {
+        CodecPool<ImageWriter> pool = writers.get(format);
+        ImageWriter writer = pool.borrow();
+        long start = System.nanoTime();
+        Files.deleteIfExists(path);
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(path.toFile())) {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), writer.getDefaultWriteParam());
+        } finally {
+            encodeTimers.get(format).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            pool.release(writer);
+        }
+    }
+
+    /**
+     * Opens {@code input} for strip-wise decoding. Plain 8-bit PNGs use the
+     * sequential {@link PngStripSource}; everything else a pooled reader that
+     * goes back to the pool when the source is closed. Time spent in
+     * {@link RasterStripSource#read} is recorded when it is closed.
+     * <p>
+     * The whole decoded image is reserved from the decode budget until the
+     * source is closed; callers reading in bounded strips say so with
+     * {@link #openStrips(ImageInputStream, int, long)}. Sources that are not
+     * {@linkplain RasterStripSource#isSequential() sequential} always reserve
+     * the whole image, since callers read them in a single strip.
+     */
+    RasterStripSource openStrips(ImageInputStream input) throws IOException {
+        return openStrips(input, 1);
+    }
+
+    /**
+     * Like {@link #openStrips(ImageInputStream)}, presenting only every
+     * {@code subsampling}-th pixel of every {@code subsampling}-th row.
+     */
+    RasterStripSource openStrips(ImageInputStream input, int subsampling) throws IOException {
+        return openStrips(input, subsampling, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #openStrips(ImageInputStream, int)}, reserving decode memory
+     * only for strips of up to {@code stripPixels} pixels at a time when the
+     * source is sequential.
+     */
+    RasterStripSource openStrips(ImageInputStream input, int subsampling, long stripPixels) throws IOException {
+        if (subsampling < 1) {
+            throw new IllegalArgumentException("Subsampling must be at least 1");
+        }
+        ImageFormat format = detectFormat(input);
+        ImageHeader header = inspect(input, format);
+        // Opening a source reads headers only; nothing is decoded before the reservation
+        RasterStripSource source = openSource(input, format, subsampling);
+        try {
+            long pixels = (long) source.width() * source.height();
+            // Sources that re-decode from the top are read in one strip
+            long decodedPixels = source.isSequential() ? Math.min(pixels, Math.max(stripPixels, source.width()))
+                    : pixels;
+            long bytes = decodedPixels * (STRIP_BYTES_PER_PIXEL + (header.bitsPerPixel() + 7) / 8);
+            // Bounded strips, and single-strip decodes within the pixel limits,
+            // proceed on their own even when the budget is smaller than them
+            DecodeBudget.Reservation reservation = decodeBudget.reserve(
+                    stripPixels == Long.MAX_VALUE ? bytes : Math.min(bytes, decodeBudget.totalBytes()));
+            return new TimedStripSource(source, decodeTimers.get(format), reservation);
+        } catch (IOException | RuntimeException e) {
+            source.close();
+            throw e;
+        }
+    }
+
+    private RasterStripSource openSource(ImageInputStream input, ImageFormat format, int subsampling)
+            throws IOException {
+        RasterStripSource source = null;
+        if (format == ImageFormat.PNG) {
+            input.mark();
+            source = PngStripSource.open(input, subsampling);
+            if (source == null) {
+                input.reset();
+            }
+        }
+        if (source == null) {
+            CodecPool<ImageReader> pool = readers.get(format);
+            ImageReader reader = pool.borrow();
+            try {
+                reader.setInput(input, false, true);
+                source = new RasterStripSource.ReaderStripSource(reader, subsampling, pool::release);
+            } catch (IOException | RuntimeException e) {
+                pool.release(reader);
+                throw e;
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Reads the header at the current position of {@code input}, leaving the
+     * position where it was, and checks it against the limits.
+     */
+    private ImageHeader inspect(ImageInputStream input, ImageFormat format) throws IOException {
+        CodecPool<ImageReader> pool = readers.get(format);
+        ImageReader reader = pool.borrow();
+        ImageHeader header;
+        long position = input.getStreamPosition();
+        try {
+            // Readers flush what they have read, which the decode still needs
+            reader.setInput(new UnflushedView(input), true, true);
+            header = new ImageHeader(format, reader.getWidth(0), reader.getHeight(0), bitsPerPixel(reader));
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalArgumentException("Unsupported or corrupted image file", e);
+        } finally {
+            pool.release(reader);
+            input.seek(position);
+        }
+        checkLimits(header);
+        return header;
+    }
+
+    private void checkLimits(ImageHeader header) {
+        if (header.width() <= 0 || header.height() <= 0) {
+            throw new IllegalArgumentException("Unsupported or corrupted image file");
+        }
+        if (header.width() > maxDimension || header.height() > maxDimension || header.pixels() > maxPixels) {
+            throw new IllegalArgumentException("Image dimensions " + header.width() + "x" + header.height()
+                    + " exceed the supported maximum of " + maxPixels / 1_000_000 + " megapixels and "
+                    + maxDimension + " pixels per side");
+        }
+        if (header.bitsPerPixel() <= 0 || header.bitsPerPixel() > MAX_BITS_PER_PIXEL) {
+            throw new IllegalArgumentException("Unsupported image bit depth of " + header.bitsPerPixel()
+                    + " bits per pixel");
+        }
+    }
+
+    /**
+     * Bits per pixel of the reader's own decoded type, as declared by the header
+     */
+    private static int bitsPerPixel(ImageReader reader) throws IOException {
+        ImageTypeSpecifier type = reader.getRawImageType(0);
+        if (type == null) {
+            Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+            type = types.hasNext() ? types.next() : null;
+        }
+        return type != null ? type.getColorModel().getPixelSize() : MAX_BITS_PER_PIXEL;
+    }
+
+    void recordEncode(ImageFormat format, long nanos) {
+        encodeTimers.get(format).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static <T> T first(Iterator<T> candidates, ImageFormat format) {
+        if (!candidates.hasNext()) {
+            throw new IllegalStateException("No ImageIO codec available for " + format.formatName());
+        }
+        return candidates.next();
+    }
+
+    /**
+     * Idle codec instances for one format. Borrowing never blocks: an empty
+     * pool creates a new instance, and a full one disposes what comes back.
+     */
+    private static final class CodecPool<T> {
+
+        private final ConcurrentLinkedDeque<T> idle = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private final Supplier<T> factory;
+        private final Consumer<T> reset;
+        private final Consumer<T> dispose;
+
+        CodecPool(Supplier<T> factory, Consumer<T> reset, Consumer<T> dispose) {
+            this.factory = factory;
+            this.reset = reset;
+            this.dispose = dispose;
+        }
+
+        T borrow() {
+            T instance = idle.pollFirst();
+            if (instance == null) {
+                return factory.get();
+            }
+            idleCount.decrementAndGet();
+            return instance;
+        }
+
+        void release(T instance) {
+            try {
+                reset.accept(instance);
+            } catch (RuntimeException e) {
+                log.debug("Discarding codec that failed to reset", e);
+                dispose.accept(instance);
+                return;
+            }
+            if (idleCount.incrementAndGet() <= MAX_IDLE_PER_FORMAT) {
+                idle.offerFirst(instance);
+            } else {
+                idleCount.decrementAndGet();
+                dispose.accept(instance);
+            }
+        }
+    }
+
+    /**
+     * Reads through to another stream without ever flushing it.
+     */
+    private static final class UnflushedView extends ImageInputStreamImpl {
+
+        private final ImageInputStream delegate;
+        private final long start;
+
+        UnflushedView(ImageInputStream delegate) throws IOException {
+            this.delegate = delegate;
+            this.start = delegate.getStreamPosition();
+        }
+
+        @Override
+        public int read() throws IOException {
+            bitOffset = 0;
+            int b = delegate.read();
+            if (b >= 0) {
+                streamPos++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            bitOffset = 0;
+            int read = delegate.read(b, off, len);
+            if (read > 0) {
+                streamPos += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void seek(long pos) throws IOException {
+            super.seek(pos);
+            delegate.seek(start + pos);
+        }
+
+        @Override
+        public long length() {
+            try {
+                long length = delegate.length();
+                return length < 0 ? -1 : length - start;
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Accumulates the time spent decoding strips and records it, and releases
+     * the source's decode memory, on close.
+     */
+    private static final class TimedStripSource implements RasterStripSource {
+
+        private final RasterStripSource delegate;
+        private final Timer timer;
+        private final DecodeBudget.Reservation reservation;
+        private long nanos;
+
+        TimedStripSource(RasterStripSource delegate, Timer timer, DecodeBudget.Reservation reservation) {
+            this.delegate = delegate;
+            this.timer = timer;
+            this.reservation = reservation;
+        }
+
+        @Override
+        public int width() {
+            return delegate.width();
+        }
+
+        @Override
+        public int height() {
+            return delegate.height();
+        }
+
+        @Override
+        public boolean isSequential() {
+            return delegate.isSequential();
+        }
+
+        @Override
+        public RgbRaster read(int y, int rows) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return delegate.read(y, rows);
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public LumaPlane readLuma(int y, int rows) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return delegate.readLuma(y, rows);
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                delegate.close();
+            } finally {
+                timer.record(nanos, TimeUnit.NANOSECONDS);
+                reservation.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.tadeasfort.steganomessages.service;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Carrier formats the application accepts, recognised by their leading magic
+ * bytes rather than by what the client claims.
+ */
+public enum ImageFormat {
+
+    PNG("png", "image/png", new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' }),
+    JPEG("jpeg", "image/jpeg", new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF }),
+    BMP("bmp", "image/bmp", new byte[] { 'B', 'M' }),
+    TIFF("tiff", "image/tiff", new byte[] { 'I', 'I', 42, 0 }, new byte[] { 'M', 'M', 0, 42 });
+
+    /**
+     * Leading bytes needed to recognise every format
+     */
+    public static final int SNIFF_LENGTH = 8;
+
+    private final String formatName;
+    private final String mimeType;
+    private final byte[][] signatures;
+
+    ImageFormat(String formatName, String mimeType, byte[]... signatures) {
+        this.formatName = formatName;
+        this.mimeType = mimeType;
+        this.signatures = signatures;
+    }
+
+    /**
+     * ImageIO format name
+     */
+    public String formatName() {
+        return formatName;
+    }
+
+    public String mimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Recognises the format from the first {@code length} bytes of a file.
+     */
+    public static Optional<ImageFormat> sniff(byte[] head, int length) {
+        return Arrays.stream(values())
+                .filter(format -> format.matches(head, length))
+                .findFirst();
+    }
+
+    /**
+     * Looks a format up by ImageIO format name or common file extension.
+     */
+    public static Optional<ImageFormat> forName(String name) {
+        String normalised = name.toLowerCase();
+        return switch (normalised) {
+            case "jpg" -> Optional.of(JPEG);
+            case "tif" -> Optional.of(TIFF);
+            default -> Arrays.stream(values())
+                    .filter(format -> format.formatName.equals(normalised))
+                    .findFirst();
+        };
+    }
+
+    private boolean matches(byte[] head, int length) {
+        for (byte[] signature : signatures) {
+            if (length >= signature.length
+                    && Arrays.equals(head, 0, signature.length, signature, 0, signature.length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
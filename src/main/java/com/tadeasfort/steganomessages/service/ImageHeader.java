@@ -0,0 +1,20 @@
+package com.tadeasfort.steganomessages.service;
+
+/**
+ * What an image's header declares, read before any pixel is decoded.
+ *
+ * @param bitsPerPixel bits of one decoded pixel across all its samples
+ */
+record ImageHeader(ImageFormat format, int width, int height, int bitsPerPixel) {
+
+    long pixels() {
+        return (long) width * height;
+    }
+
+    /**
+     * Bytes a full decode into the reader's own image type takes
+     */
+    long decodedBytes() {
+        return pixels() * ((bitsPerPixel + 7) / 8);
+    }
+}
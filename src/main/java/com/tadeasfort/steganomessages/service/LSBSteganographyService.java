@@ -0,0 +1,283 @@
+package com.tadeasfort.steganomessages.service;
+
+import com.tadeasfort.steganomessages.model.EngineType;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Spatial steganography in the least significant bit of every colour channel.
+ * <p>
+ * Payload bits are packed three to a pixel (red, green, blue) in raster
+ * order, so a carrier holds {@code 3 * width * height / 8} bytes including
+ * the header, 24 times what the DCT engine fits, and embedding is one pass
+ * over the pixels without any transform. The bits do not survive lossy
+ * recompression; stego images are always written as PNG.
+ */
+@Service
+@Slf4j
+public class LSBSteganographyService implements SteganographyEngine {
+
+    private static final int BITS_PER_PIXEL = 3;
+    // Pixels decoded per strip when streaming a carrier from a file
+    private static final long DEFAULT_STRIP_PIXELS = 1L << 22;
+    // Low bits replaced in a pixel carrying 0, 1, 2 or 3 payload bits
+    private static final int[] CHANNEL_MASKS = { 0, 0x010000, 0x010100, 0x010101 };
+
+    private final ImageCodecService imageCodecService;
+    private final long stripPixels;
+    private final PngProfile pngProfile;
+
+    public LSBSteganographyService() {
+        this(new ImageCodecService(new SimpleMeterRegistry()), DEFAULT_STRIP_PIXELS, PngProfile.BALANCED);
+    }
+
+    @Autowired
+    public LSBSteganographyService(ImageCodecService imageCodecService,
+            @Value("${app.png.profile:BALANCED}") PngProfile pngProfile) {
+        this(imageCodecService, DEFAULT_STRIP_PIXELS, pngProfile);
+    }
+
+    LSBSteganographyService(ImageCodecService imageCodecService, long stripPixels, PngProfile pngProfile) {
+        this.imageCodecService = imageCodecService;
+        this.stripPixels = stripPixels;
+        this.pngProfile = pngProfile;
+    }
+
+    @Override
+    public EngineType type() {
+        return EngineType.LSB;
+    }
+
+    @Override
+    public int getMaxMessageLength(int width, int height) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, carrierBytes(width, height) - PayloadHeader.LENGTH));
+    }
+
+    @Override
+    public BufferedImage embedMessage(BufferedImage image, String message) {
+        byte[] payloadBytes = preparePayload(message, image.getWidth(), image.getHeight());
+
+        RgbRaster stegoImage = RgbRaster.copyOf(image);
+        embedPixels(stegoImage.pixels, 0, payloadBytes);
+
+        log.info("Successfully embedded message of {} bits into image using LSB steganography",
+                payloadBytes.length * 8L);
+        return stegoImage.image;
+    }
+
+    @Override
+    public void embedMessage(InputStream imageInput, String message, String filePath, int subsampling)
+            throws IOException {
+        Path outputFile = Path.of(filePath);
+        Files.createDirectories(outputFile.toAbsolutePath().getParent());
+
+        try (ImageInputStream input = imageCodecService.openStream(imageInput);
+                FileChannel output = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            embedMessage(input, message, output, subsampling);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(outputFile);
+            throw e;
+        }
+        log.info("LSB steganography image saved to: {}", filePath);
+    }
+
+    /**
+     * Decodes the carrier in strips, embeds into the strips the payload
+     * reaches and hands every strip to the PNG encoder as it goes.
+     */
+    private void embedMessage(ImageInputStream input, String message, WritableByteChannel output, int subsampling)
+            throws IOException {
+        try (RasterStripSource source = imageCodecService.openStrips(input, subsampling, stripPixels)) {
+            int width = source.width();
+            int height = source.height();
+            byte[] payloadBytes = preparePayload(message, width, height);
+            long payloadPixels = pixelsFor(payloadBytes.length);
+
+            // Readers restart from the top for every strip, so they get just one
+            int stripRows = source.isSequential() ? maxStripRows(width) : height;
+            StreamingPngWriter png = new StreamingPngWriter(output, width, height, pngProfile);
+            long encodeNanos = 0;
+
+            for (int y = 0; y < height; y += stripRows) {
+                int rows = Math.min(stripRows, height - y);
+                RgbRaster strip = source.read(y, rows);
+
+                long firstPixel = (long) y * width;
+                if (firstPixel < payloadPixels) {
+                    embedPixels(strip.pixels, firstPixel, payloadBytes);
+                }
+                long start = System.nanoTime();
+                png.writeRows(strip.pixels, 0, rows);
+                encodeNanos += System.nanoTime() - start;
+            }
+            long start = System.nanoTime();
+            png.finish();
+            imageCodecService.recordEncode(ImageFormat.PNG, encodeNanos + System.nanoTime() - start);
+
+            log.info("Successfully embedded message of {} bits into {}x{} image using LSB steganography",
+                    payloadBytes.length * 8L, width, height);
+        }
+    }
+
+    @Override
+    public String extractMessage(BufferedImage image) {
+        RgbRaster raster = RgbRaster.of(image);
+        PayloadScanner scanner = newScanner(raster.width, raster.height);
+        new PayloadCollector().scan(raster.pixels, scanner);
+        return completeExtraction(scanner);
+    }
+
+    /**
+     * Decodes the header rows first and then exactly the rows the header says
+     * the payload occupies, in strips for sequential sources and otherwise in
+     * one band, since those re-decode from the top for every read.
+     */
+    @Override
+    public String extractMessage(ImageInputStream input) throws IOException {
+        try (RasterStripSource source = imageCodecService.openStrips(input, 1, stripPixels)) {
+            PayloadScanner scanner = newScanner(source.width(), source.height());
+            PayloadCollector collector = new PayloadCollector();
+            int maxRows = source.isSequential() ? maxStripRows(source.width()) : source.height();
+            int y = 0;
+
+            while (!scanner.isComplete()) {
+                long bytesWanted = scanner.blocksRead() < PayloadHeader.LENGTH
+                        ? PayloadHeader.LENGTH
+                        : scanner.blocksNeeded();
+                long rowsWanted = (pixelsFor(bytesWanted) + source.width() - 1) / source.width() - y;
+                int rows = (int) Math.min(Math.min(maxRows, source.height() - y),
+                        Math.max(1, rowsWanted));
+                if (rows <= 0) {
+                    throw new IllegalStateException("Extraction ran out of rows before the scan completed");
+                }
+                collector.scan(source.read(y, rows).pixels, scanner);
+                y += rows;
+            }
+            return completeExtraction(scanner);
+        }
+    }
+
+    @Override
+    public boolean detect(ImageInputStream input) throws IOException {
+        try (RasterStripSource source = imageCodecService.openStrips(input, 1, stripPixels)) {
+            PayloadScanner scanner = newScanner(source.width(), source.height());
+            int rows = (int) Math.min(source.height(),
+                    (pixelsFor(PayloadHeader.LENGTH) + source.width() - 1) / source.width());
+            if (rows > 0) {
+                new PayloadCollector().scan(source.read(0, rows).pixels, scanner);
+            }
+            return !scanner.isRejected();
+        }
+    }
+
+    private PayloadScanner newScanner(int width, int height) {
+        return new PayloadScanner((int) Math.min(Integer.MAX_VALUE, carrierBytes(width, height)), EngineType.LSB,
+                false);
+    }
+
+    private String completeExtraction(PayloadScanner scanner) {
+        String extractedMessage = scanner.message();
+        log.info("Successfully extracted message of {} characters using LSB steganography",
+                extractedMessage.length());
+        return extractedMessage;
+    }
+
+    private byte[] preparePayload(String message, int width, int height) {
+        if (message == null || message.isEmpty()) {
+            throw new IllegalArgumentException("Message cannot be null or empty");
+        }
+
+        byte[] payloadBytes = PayloadCodec.pack(EngineType.LSB, message);
+        if (payloadBytes.length > carrierBytes(width, height)) {
+            throw new IllegalArgumentException("Message too long for this image. Maximum capacity: " +
+                    getMaxMessageLength(width, height) + " characters");
+        }
+        return payloadBytes;
+    }
+
+    private static long carrierBytes(int width, int height) {
+        return (long) width * height * BITS_PER_PIXEL / 8;
+    }
+
+    private static long pixelsFor(long bytes) {
+        return (bytes * 8 + BITS_PER_PIXEL - 1) / BITS_PER_PIXEL;
+    }
+
+    private int maxStripRows(int width) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, stripPixels / width));
+    }
+
+    /**
+     * Writes the payload bits that fall on {@code pixels}, which start at
+     * pixel {@code firstPixel} of the carrier, into their low bits.
+     * Channels past the end of the payload keep their value.
+     */
+    private static void embedPixels(int[] pixels, long firstPixel, byte[] payloadBytes) {
+        long totalBits = payloadBytes.length * 8L;
+        long bit = firstPixel * BITS_PER_PIXEL;
+        int count = (int) Math.min(pixels.length, pixelsFor(payloadBytes.length) - firstPixel);
+
+        for (int i = 0; i < count; i++, bit += BITS_PER_PIXEL) {
+            int replaced = CHANNEL_MASKS[(int) Math.min(BITS_PER_PIXEL, totalBits - bit)];
+            pixels[i] = (pixels[i] & ~replaced) | (spread(readBits(payloadBytes, bit)) & replaced);
+        }
+    }
+
+    /**
+     * The three payload bits starting at bit {@code bit}, zero past the end.
+     */
+    private static int readBits(byte[] data, long bit) {
+        int index = (int) (bit >>> 3);
+        int window = (data[index] & 0xFF) << 8;
+        if (index + 1 < data.length) {
+            window |= data[index + 1] & 0xFF;
+        }
+        return (window >>> (13 - (int) (bit & 7))) & 0b111;
+    }
+
+    /**
+     * Moves bits 2, 1 and 0 to the low bit of red, green and blue.
+     */
+    private static int spread(int bits) {
+        return ((bits & 0b100) << 14) | ((bits & 0b010) << 7) | (bits & 0b001);
+    }
+
+    private static int gather(int rgb) {
+        return ((rgb >>> 14) & 0b100) | ((rgb >>> 7) & 0b010) | (rgb & 0b001);
+    }
+
+    /**
+     * Reassembles payload bytes from pixels fed in raster order, carrying
+     * partial bytes over from one strip to the next.
+     */
+    private static final class PayloadCollector {
+
+        private int accumulator;
+        private int bits;
+
+        void scan(int[] pixels, PayloadScanner scanner) {
+            for (int i = 0; i < pixels.length && !scanner.isComplete(); i++) {
+                accumulator = (accumulator << BITS_PER_PIXEL) | gather(pixels[i]);
+                bits += BITS_PER_PIXEL;
+                if (bits >= 8) {
+                    bits -= 8;
+                    scanner.accept((accumulator >>> bits) & 0xFF);
+                }
+            }
+        }
+    }
+}
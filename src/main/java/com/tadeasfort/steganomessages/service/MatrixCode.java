@@ -0,0 +1,60 @@
+package com.tadeasfort.steganomessages.service;
+
+/**
+ * Binary Hamming syndrome code, the matrix embedding of F5.
+ * <p>
+ * A group of {@code n = 2^k - 1} cover parities carries {@code k} message
+ * bits as its syndrome: the XOR of the 1-based positions whose parity is
+ * odd. Any message is reached by flipping at most one parity, so a group
+ * costs at most one coefficient change where plain parity embedding of the
+ * same {@code k} bits would average {@code k / 2}.
+ */
+final class MatrixCode {
+
+    private final int k;
+    private final int n;
+
+    MatrixCode(int k) {
+        if (k < 1 || k > 5) {
+            throw new IllegalArgumentException("Unsupported matrix code parameter " + k);
+        }
+        this.k = k;
+        this.n = (1 << k) - 1;
+    }
+
+    /**
+     * Message bits per group
+     */
+    int k() {
+        return k;
+    }
+
+    /**
+     * Cover parities per group
+     */
+    int n() {
+        return n;
+    }
+
+    /**
+     * The message carried by a group whose parities are the low {@code n}
+     * bits of {@code parities}, position 1 lowest.
+     */
+    int syndrome(int parities) {
+        int syndrome = 0;
+        for (int position = 1; parities != 0; position++, parities >>>= 1) {
+            if ((parities & 1) != 0) {
+                syndrome ^= position;
+            }
+        }
+        return syndrome;
+    }
+
+    /**
+     * Zero-based index within the group of the parity to flip so that it
+     * carries {@code message}, or -1 if it already does.
+     */
+    int flipIndex(int parities, int message) {
+        return (syndrome(parities) ^ message) - 1;
+    }
+}
@@ -0,0 +1,104 @@
+package com.tadeasfort.steganomessages.service;
+
+import com.tadeasfort.steganomessages.model.EngineType;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Turns messages into header-prefixed payloads and back.
+ * <p>
+ * The UTF-8 text is deflated whenever that makes it shorter, which is the
+ * case for nearly any message beyond a few dozen characters, and
+ * {@link PayloadHeader#FLAG_DEFLATE} records that it was. Every embedded
+ * byte costs a block of DCT work on both sides, so a smaller payload makes
+ * embedding and extraction faster and lets small carriers hold longer
+ * messages. The header length and checksum describe the stored bytes.
+ */
+final class PayloadCodec {
+
+    // Inflating stops here; far beyond any message the application accepts
+    private static final int MAX_MESSAGE_BYTES = 16 << 20;
+
+    private PayloadCodec() {
+    }
+
+    /**
+     * Header and body for {@code message}, compressed if that is smaller.
+     */
+    static byte[] pack(EngineType engine, String message) {
+        return pack(engine, 0, message);
+    }
+
+    /**
+     * Header and body for {@code message}, compressed if that is smaller,
+     * with the engine's own {@code flags} added to the header.
+     */
+    static byte[] pack(EngineType engine, int flags, String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        byte[] deflated = deflate(text);
+        if (deflated.length < text.length) {
+            return PayloadHeader.describe(engine, flags | PayloadHeader.FLAG_DEFLATE, deflated).prepend(deflated);
+        }
+        return PayloadHeader.describe(engine, flags, text).prepend(text);
+    }
+
+    /**
+     * Decodes the {@code header.length()} stored bytes at {@code offset}, whose
+     * checksum has already been verified.
+     *
+     * @throws IllegalArgumentException if compressed data does not inflate
+     */
+    static String unpack(PayloadHeader header, byte[] data, int offset) {
+        if ((header.flags() & PayloadHeader.FLAG_DEFLATE) == 0) {
+            return new String(data, offset, header.length(), StandardCharsets.UTF_8);
+        }
+        return new String(inflate(data, offset, header.length()), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            // Incompressible input grows by a few bytes per 16K block; cap the
+            // buffer at the input size since such output is discarded anyway
+            byte[] buffer = new byte[data.length];
+            int length = 0;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            return deflater.finished() ? Arrays.copyOf(buffer, length) : data;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int offset, int length) {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data, offset, length);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(Math.min(MAX_MESSAGE_BYTES, length * 4));
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("The hidden message is corrupted");
+                }
+                if (output.size() + n > MAX_MESSAGE_BYTES) {
+                    throw new IllegalArgumentException("The hidden message is too large");
+                }
+                output.write(buffer, 0, n);
+            }
+            return output.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("The hidden message is corrupted", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.tadeasfort.steganomessages.service;
+
+import com.tadeasfort.steganomessages.model.EngineType;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Header embedded ahead of every payload.
+ * <p>
+ * Layout (big-endian): 4-byte magic {@code "SMSG"}, 1-byte format version,
+ * 1-byte {@link EngineType} id, 1-byte flags, 4-byte payload length, 4-byte
+ * CRC32 of the payload as stored, after any compression the flags declare.
+ * The magic and version let the extractor reject a carrier after its first
+ * few blocks, the engine id tells it which algorithm wrote the payload, the
+ * flags how it was encoded, and the length exactly where the payload ends.
+ * Version 1 headers have no engine id and are always DCT payloads.
+ */
+record PayloadHeader(int version, int engine, int flags, int length, int checksum) {
+
+    /**
+     * Length of a header in the current format, the longest there is
+     */
+    static final int LENGTH = 15;
+    static final int CURRENT_VERSION = 2;
+
+    /**
+     * The payload is a raw deflate stream of the UTF-8 text
+     */
+    static final int FLAG_DEFLATE = 0x01;
+    /**
+     * The payload after the header is embedded in each of the red, green and
+     * blue channels rather than in the luminance
+     */
+    static final int FLAG_RGB = 0x02;
+    /**
+     * Flag bits holding {@code k} of the {@link MatrixCode} the payload after
+     * the header was embedded with, zero for one bit per position. The header
+     * itself is always embedded one bit per position.
+     */
+    static final int MATRIX_MASK = 0x70;
+    /**
+     * Flags that say where the payload bits sit in the carrier, which only
+     * the engine that wrote them can interpret
+     */
+    static final int LAYOUT_FLAGS = FLAG_RGB | MATRIX_MASK;
+    static final int KNOWN_FLAGS = FLAG_DEFLATE | LAYOUT_FLAGS;
+
+    private static final int MATRIX_SHIFT = 4;
+
+    private static final int V1_LENGTH = 14;
+    private static final byte[] MAGIC = { 'S', 'M', 'S', 'G' };
+    private static final int VERSION_OFFSET = MAGIC.length;
+
+    /**
+     * Header describing {@code payload} in the current format.
+     */
+    static PayloadHeader describe(EngineType engine, int flags, byte[] payload) {
+        return new PayloadHeader(CURRENT_VERSION, engine.id(), flags, payload.length,
+                checksum(payload, 0, payload.length));
+    }
+
+    /**
+     * Length of the header whose first {@code available} bytes are in
+     * {@code data}: exact once the version byte is known, {@link #LENGTH}
+     * before that.
+     */
+    static int lengthOf(byte[] data, int available) {
+        return available > VERSION_OFFSET && (data[VERSION_OFFSET] & 0xFF) == 1 ? V1_LENGTH : LENGTH;
+    }
+
+    /**
+     * Whether the first {@code available} bytes of {@code data} could still be
+     * the start of a header. Lets the extractor give up on a non-stego carrier
+     * as soon as one byte disagrees.
+     */
+    static boolean isPlausiblePrefix(byte[] data, int available) {
+        for (int i = 0; i < Math.min(available, MAGIC.length); i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        if (available > VERSION_OFFSET) {
+            int version = data[VERSION_OFFSET] & 0xFF;
+            return version >= 1 && version <= CURRENT_VERSION;
+        }
+        return true;
+    }
+
+    /**
+     * Parses a header whose bytes already passed {@link #isPlausiblePrefix}.
+     */
+    static PayloadHeader parse(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data, VERSION_OFFSET, lengthOf(data, LENGTH) - VERSION_OFFSET);
+        int version = buffer.get() & 0xFF;
+        int engine = version == 1 ? EngineType.DCT.id() : buffer.get() & 0xFF;
+        int flags = buffer.get() & 0xFF;
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        return new PayloadHeader(version, engine, flags, length, checksum);
+    }
+
+    /**
+     * Flags declaring a payload matrix-embedded with parameter {@code k}
+     */
+    static int matrixFlags(int k) {
+        return (k << MATRIX_SHIFT) & MATRIX_MASK;
+    }
+
+    /**
+     * {@code k} of the payload's matrix code, zero if it has none
+     */
+    int matrixCode() {
+        return (flags & MATRIX_MASK) >>> MATRIX_SHIFT;
+    }
+
+    /**
+     * Serialised length of this header
+     */
+    int size() {
+        return version == 1 ? V1_LENGTH : LENGTH;
+    }
+
+    static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Serialises the header, in the current format, followed by {@code payload}.
+     */
+    byte[] prepend(byte[] payload) {
+        return ByteBuffer.allocate(LENGTH + payload.length)
+                .put(MAGIC)
+                .put((byte) CURRENT_VERSION)
+                .put((byte) engine)
+                .put((byte) flags)
+                .putInt(length)
+                .putInt(checksum)
+                .put(payload)
+                .array();
+    }
+}
@@ -0,0 +1,288 @@
+package com.tadeasfort.steganomessages.service;
+
+import com.tadeasfort.steganomessages.model.EngineType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.ToIntFunction;
+
+/**
+ * Consumes extracted payload bytes in raster order and decides, block by
+ * block, whether a message is present and how many more blocks it can need.
+ * A "block" is whatever unit of the carrier holds one header byte; blocks
+ * after the header may hold more bits, as many as the engine says a payload
+ * with that header's flags carries per block.
+ * <p>
+ * For the DCT engine every block contributes two readings of the same byte:
+ * one with the current parity rule and one with the truncating rule of the
+ * pre-header format. The scanner follows the {@link PayloadHeader} format
+ * until a header byte disagrees, then, if the engine has a legacy format,
+ * replays the legacy readings looking for the old delimiter. Headers written
+ * by a different engine are treated as no message at all. It holds no image
+ * state, so blocks may be decoded in any order or on any thread as long as
+ * they are fed to it in sequence.
+ */
+final class PayloadScanner {
+
+    // Terminator of the pre-header format
+    private static final byte[] LEGACY_DELIMITER = "###END_OF_MESSAGE###".getBytes(StandardCharsets.US_ASCII);
+
+    private enum State {
+        HEADER, PAYLOAD, LEGACY, FOUND, NOT_FOUND, CORRUPTED, UNSUPPORTED
+    }
+
+    private final int totalBlocks;
+    private final EngineType engine;
+    private final boolean legacyFallback;
+    private final ToIntFunction<PayloadHeader> payloadBits;
+    private final BitWriter current = new BitWriter(PayloadHeader.LENGTH);
+    private final BitWriter legacy = new BitWriter(PayloadHeader.LENGTH);
+
+    private State state = State.HEADER;
+    private PayloadHeader header;
+    private int blockBits;
+    private int blocksRead;
+    private int textState;
+    private String message;
+
+    /**
+     * Scanner for DCT carriers embedded one bit per position, which falls
+     * back to the legacy format.
+     */
+    PayloadScanner(int totalBlocks) {
+        this(totalBlocks, EngineType.DCT, true);
+    }
+
+    /**
+     * Scanner for engines that store every payload byte like a header byte.
+     */
+    PayloadScanner(int totalBlocks, EngineType engine, boolean legacyFallback) {
+        this(totalBlocks, engine, legacyFallback,
+                header -> (header.flags() & PayloadHeader.LAYOUT_FLAGS) == 0 ? 8 : 0);
+    }
+
+    /**
+     * @param payloadBits bits one block after the header carries for a given
+     *                    header, or zero if the engine cannot read payloads
+     *                    encoded the way its flags declare
+     */
+    PayloadScanner(int totalBlocks, EngineType engine, boolean legacyFallback,
+            ToIntFunction<PayloadHeader> payloadBits) {
+        this.totalBlocks = totalBlocks;
+        this.engine = engine;
+        this.legacyFallback = legacyFallback;
+        this.payloadBits = payloadBits;
+        if (totalBlocks == 0) {
+            state = State.NOT_FOUND;
+        }
+    }
+
+    /**
+     * Feeds the next block's byte, for engines without a legacy format.
+     */
+    void accept(int value) {
+        accept(value, value);
+    }
+
+    /**
+     * Feeds the next block's byte under the current and the legacy parity
+     * rule. Once a header has been read, {@code value} instead holds all the
+     * bits of a payload block and {@code legacyValue} is ignored.
+     */
+    void accept(long value, int legacyValue) {
+        if (isComplete()) {
+            throw new IllegalStateException("Payload scan already complete");
+        }
+        blocksRead++;
+        if (legacyFallback) {
+            legacy.writeBits(legacyValue, 8);
+        }
+
+        switch (state) {
+            case HEADER -> acceptHeaderByte((int) value);
+            case PAYLOAD -> acceptPayloadBits(value);
+            case LEGACY -> acceptLegacyByte(legacy.byteLength() - 1);
+            default -> throw new IllegalStateException("Unexpected state " + state);
+        }
+
+        if (!isComplete() && blocksRead == totalBlocks) {
+            state = State.NOT_FOUND;
+        }
+    }
+
+    /**
+     * Whether the carrier has already been found to hold no message.
+     */
+    boolean isRejected() {
+        return state == State.NOT_FOUND;
+    }
+
+    boolean isComplete() {
+        return state == State.FOUND || state == State.NOT_FOUND || state == State.CORRUPTED
+                || state == State.UNSUPPORTED;
+    }
+
+    int blocksRead() {
+        return blocksRead;
+    }
+
+    /**
+     * Number of leading blocks the payload can occupy given what has been read
+     * so far: exact once a header has been parsed or the scan is complete, the
+     * whole carrier otherwise.
+     */
+    int blocksNeeded() {
+        if (isComplete()) {
+            return blocksRead;
+        }
+        if (state == State.PAYLOAD) {
+            return (int) (header.size() + payloadBlocks(header.length(), blockBits));
+        }
+        return totalBlocks;
+    }
+
+    /**
+     * The header read so far, or {@code null} before it is complete and for
+     * legacy payloads.
+     */
+    PayloadHeader header() {
+        return header;
+    }
+
+    /**
+     * Whether the message came from the pre-header delimiter format.
+     */
+    boolean isLegacy() {
+        return state == State.FOUND && header == null;
+    }
+
+    /**
+     * The decoded message once the scan is complete.
+     *
+     * @throws IllegalArgumentException if the carrier holds no message or the
+     *                                  message failed its checksum
+     */
+    String message() {
+        return switch (state) {
+            case FOUND -> message;
+            case CORRUPTED -> throw new IllegalArgumentException("The hidden message is corrupted");
+            case NOT_FOUND -> throw new IllegalArgumentException("No hidden message found in the image");
+            case UNSUPPORTED -> throw new IllegalArgumentException(
+                    "The hidden message was written by a newer version of the application");
+            default -> throw new IllegalStateException("Payload scan not complete");
+        };
+    }
+
+    private void acceptHeaderByte(int value) {
+        current.writeBits(value, 8);
+        if (!PayloadHeader.isPlausiblePrefix(current.buffer(), current.byteLength())) {
+            switchToLegacy();
+            return;
+        }
+        if (current.byteLength() < PayloadHeader.lengthOf(current.buffer(), current.byteLength())) {
+            return;
+        }
+
+        header = PayloadHeader.parse(current.buffer());
+        if (header.engine() != engine.id() || header.length() <= 0) {
+            state = State.NOT_FOUND;
+            return;
+        }
+        blockBits = (header.flags() & ~PayloadHeader.KNOWN_FLAGS) == 0 ? payloadBits.applyAsInt(header) : 0;
+        if (blockBits <= 0) {
+            state = State.UNSUPPORTED;
+            return;
+        }
+        if (header.size() + payloadBlocks(header.length(), blockBits) > totalBlocks) {
+            state = State.NOT_FOUND;
+            return;
+        }
+        state = State.PAYLOAD;
+    }
+
+    private static long payloadBlocks(int length, int bitsPerBlock) {
+        return (length * 8L + bitsPerBlock - 1) / bitsPerBlock;
+    }
+
+    private void acceptPayloadBits(long value) {
+        current.writeBits(value, blockBits);
+        if (current.byteLength() < header.size() + header.length()) {
+            return;
+        }
+
+        byte[] payload = current.buffer();
+        if (PayloadHeader.checksum(payload, header.size(), header.length()) != header.checksum()) {
+            state = State.CORRUPTED;
+            return;
+        }
+        try {
+            message = PayloadCodec.unpack(header, payload, header.size());
+        } catch (IllegalArgumentException e) {
+            state = State.CORRUPTED;
+            return;
+        }
+        state = State.FOUND;
+    }
+
+    private void switchToLegacy() {
+        header = null;
+        if (!legacyFallback) {
+            state = State.NOT_FOUND;
+            return;
+        }
+        state = State.LEGACY;
+        for (int i = 0; i < legacy.byteLength() && state == State.LEGACY; i++) {
+            acceptLegacyByte(i);
+        }
+    }
+
+    /**
+     * Checks legacy byte {@code index} for the delimiter and for plausibility
+     * as UTF-8 text, so carriers without any payload are rejected after a
+     * handful of blocks instead of a full scan.
+     */
+    private void acceptLegacyByte(int index) {
+        byte[] data = legacy.buffer();
+        textState = nextTextState(textState, data[index] & 0xFF);
+        if (textState < 0) {
+            state = State.NOT_FOUND;
+            return;
+        }
+
+        int start = index + 1 - LEGACY_DELIMITER.length;
+        if (start < 0) {
+            return;
+        }
+        for (int i = 0; i < LEGACY_DELIMITER.length; i++) {
+            if (data[start + i] != LEGACY_DELIMITER[i]) {
+                return;
+            }
+        }
+        message = new String(data, 0, start, StandardCharsets.UTF_8);
+        state = State.FOUND;
+    }
+
+    /**
+     * Advances a minimal UTF-8 text validator by one byte. The state is the
+     * number of continuation bytes still expected, or -1 once a byte turns up
+     * that cannot occur in a text message.
+     */
+    private static int nextTextState(int pending, int value) {
+        if (pending > 0) {
+            return (value & 0xC0) == 0x80 ? pending - 1 : -1;
+        }
+        if (value < 0x80) {
+            boolean printable = value >= 0x20 && value != 0x7F;
+            return printable || value == '\n' || value == '\r' || value == '\t' ? 0 : -1;
+        }
+        if (value >= 0xC2 && value <= 0xDF) {
+            return 1;
+        }
+        if (value >= 0xE0 && value <= 0xEF) {
+            return 2;
+        }
+        if (value >= 0xF0 && value <= 0xF4) {
+            return 3;
+        }
+        return -1;
+    }
+}
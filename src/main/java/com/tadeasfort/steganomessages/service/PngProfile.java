@@ -0,0 +1,33 @@
+package com.tadeasfort.steganomessages.service;
+
+import java.util.zip.Deflater;
+
+/**
+ * Speed/size trade-off used when writing stego images as PNG.
+ */
+public enum PngProfile {
+
+    /**
+     * Fastest deflate level and a fixed Up filter; largest files
+     */
+    FAST(Deflater.BEST_SPEED, false),
+
+    /**
+     * The JDK writer's deflate level with per-row adaptive filtering
+     */
+    BALANCED(4, true),
+
+    /**
+     * zlib's default level, 6, with per-row adaptive filtering; smallest files.
+     * Levels above it cost several times more for a few percent on photos.
+     */
+    SMALL(6, true);
+
+    final int compressionLevel;
+    final boolean adaptiveFiltering;
+
+    PngProfile(int compressionLevel, boolean adaptiveFiltering) {
+        this.compressionLevel = compressionLevel;
+        this.adaptiveFiltering = adaptiveFiltering;
+    }
+}
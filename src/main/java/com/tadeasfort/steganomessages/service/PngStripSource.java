@@ -0,0 +1,296 @@
+package com.tadeasfort.steganomessages.service;
+
+import javax.imageio.IIOException;
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Sequential decoder for non-interlaced 8-bit RGB and RGBA PNGs, the layout
+ * of every stego image this service writes.
+ * <p>
+ * Rows are inflated and unfiltered on demand, so reading the first strip
+ * costs only that strip; the JDK reader inflates the whole image whatever
+ * region is requested. Pixel values are exactly what the JDK reader reports
+ * through {@code getRGB}, without alpha. Images with an embedded ICC profile
+ * are left to the JDK reader, which may colour-convert them.
+ * <p>
+ * With a subsampling factor {@code s} the source presents only every
+ * {@code s}-th pixel of every {@code s}-th row, like
+ * {@link javax.imageio.ImageReadParam#setSourceSubsampling} with zero
+ * offsets. Every row still has to be inflated, since filters refer to the
+ * row above, but skipped rows are never converted.
+ */
+final class PngStripSource implements RasterStripSource {
+
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int IHDR = 0x49484452;
+    private static final int IDAT = 0x49444154;
+    private static final int ICCP = 0x69434350;
+    private static final int COLOUR_RGB = 2;
+    private static final int COLOUR_RGBA = 6;
+    private static final int INPUT_BUFFER_BYTES = 1 << 16;
+
+    private final ImageInputStream input;
+    private final int subsampling;
+    private final int width;
+    private final int height;
+    private final int bytesPerPixel;
+    private final Inflater inflater = new Inflater();
+    private final byte[] inputBuffer = new byte[INPUT_BUFFER_BYTES];
+
+    private byte[] previousRow;
+    private byte[] currentRow;
+    private long chunkRemaining;
+    private boolean dataEnded;
+    private int nextRow;
+    private int rowsDecoded;
+    private int nextSourceRow;
+
+    private PngStripSource(ImageInputStream input, int sourceWidth, int sourceHeight, int subsampling,
+            int bytesPerPixel, long idatLength) {
+        this.input = input;
+        this.subsampling = subsampling;
+        this.width = (sourceWidth + subsampling - 1) / subsampling;
+        this.height = (sourceHeight + subsampling - 1) / subsampling;
+        this.bytesPerPixel = bytesPerPixel;
+        this.previousRow = new byte[1 + sourceWidth * bytesPerPixel];
+        this.currentRow = new byte[1 + sourceWidth * bytesPerPixel];
+        this.chunkRemaining = idatLength;
+    }
+
+    static PngStripSource open(ImageInputStream input) throws IOException {
+        return open(input, 1);
+    }
+
+    /**
+     * Reads the PNG header chunks up to the first IDAT, or returns
+     * {@code null} if the stream is not a PNG this class can decode. The
+     * stream position is unspecified after a {@code null} result.
+     */
+    static PngStripSource open(ImageInputStream input, int subsampling) throws IOException {
+        if (input.length() >= 0 && input.length() < 8 + 25) {
+            return null;
+        }
+        byte[] signature = new byte[8];
+        if (input.read(signature) != signature.length || toLong(signature) != SIGNATURE) {
+            return null;
+        }
+        if (input.readInt() != 13 || input.readInt() != IHDR) {
+            return null;
+        }
+        int width = input.readInt();
+        int height = input.readInt();
+        int bitDepth = input.readUnsignedByte();
+        int colourType = input.readUnsignedByte();
+        int compression = input.readUnsignedByte();
+        int filter = input.readUnsignedByte();
+        int interlace = input.readUnsignedByte();
+        input.skipBytes(4); // CRC
+
+        boolean supported = width > 0 && height > 0 && bitDepth == 8 && compression == 0 && filter == 0
+                && interlace == 0 && (colourType == COLOUR_RGB || colourType == COLOUR_RGBA)
+                && (long) width * (colourType == COLOUR_RGBA ? 4 : 3) < Integer.MAX_VALUE - 1;
+        if (!supported) {
+            return null;
+        }
+
+        while (true) {
+            long length = input.readUnsignedInt();
+            int type = input.readInt();
+            if (type == IDAT) {
+                return new PngStripSource(input, width, height, subsampling, colourType == COLOUR_RGBA ? 4 : 3,
+                        length);
+            }
+            if (type == ICCP) {
+                return null;
+            }
+            input.seek(input.getStreamPosition() + length + 4);
+        }
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public boolean isSequential() {
+        return true;
+    }
+
+    @Override
+    public RgbRaster read(int y, int rows) throws IOException {
+        RgbRaster strip = RgbRaster.create(width, checkStrip(y, rows));
+        for (int row = 0; row < rows; row++) {
+            toRgb(nextRow(), strip.pixels, row * width);
+        }
+        return strip;
+    }
+
+    /**
+     * Converts straight from the unfiltered row bytes, so no packed RGB strip
+     * is ever allocated.
+     */
+    @Override
+    public LumaPlane readLuma(int y, int rows) throws IOException {
+        LumaPlane strip = LumaPlane.create(width, checkStrip(y, rows));
+        for (int row = 0; row < rows; row++) {
+            toLuma(nextRow(), strip.luma, row * width);
+        }
+        return strip;
+    }
+
+    @Override
+    public void close() {
+        inflater.end();
+    }
+
+    private int checkStrip(int y, int rows) {
+        if (y != nextRow || rows <= 0 || y + rows > height) {
+            throw new IllegalArgumentException("Strips must be read in order within the image");
+        }
+        nextRow += rows;
+        return rows;
+    }
+
+    /**
+     * Inflates and unfilters up to the source row of the next output row,
+     * returning its bytes after the filter type; valid until the following
+     * call.
+     */
+    private byte[] nextRow() throws IOException {
+        int target = rowsDecoded++ * subsampling;
+        while (nextSourceRow < target) {
+            nextSourceRow();
+        }
+        return nextSourceRow();
+    }
+
+    private byte[] nextSourceRow() throws IOException {
+        nextSourceRow++;
+        byte[] swap = previousRow;
+        previousRow = currentRow;
+        currentRow = swap;
+
+        inflateRow();
+        unfilter();
+        return currentRow;
+    }
+
+    private void inflateRow() throws IOException {
+        int filled = 0;
+        try {
+            while (filled < currentRow.length) {
+                int n = inflater.inflate(currentRow, filled, currentRow.length - filled);
+                filled += n;
+                if (n == 0) {
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        throw new IIOException("Truncated PNG image data");
+                    }
+                    if (inflater.needsInput()) {
+                        feedInflater();
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IIOException("Corrupted PNG image data", e);
+        }
+    }
+
+    /**
+     * Hands the inflater the next run of IDAT bytes, stepping over chunk
+     * boundaries.
+     */
+    private void feedInflater() throws IOException {
+        while (chunkRemaining == 0) {
+            if (dataEnded) {
+                throw new IIOException("Truncated PNG image data");
+            }
+            input.skipBytes(4); // CRC of the previous chunk
+            chunkRemaining = input.readUnsignedInt();
+            if (input.readInt() != IDAT) {
+                dataEnded = true;
+                chunkRemaining = 0;
+            }
+        }
+        int n = input.read(inputBuffer, 0, (int) Math.min(inputBuffer.length, chunkRemaining));
+        if (n < 0) {
+            throw new IIOException("Truncated PNG image data");
+        }
+        chunkRemaining -= n;
+        inflater.setInput(inputBuffer, 0, n);
+    }
+
+    private void unfilter() throws IIOException {
+        byte[] row = currentRow;
+        byte[] prior = previousRow;
+        int bpp = bytesPerPixel;
+        switch (row[0]) {
+            case 0 -> {
+            }
+            case 1 -> {
+                for (int i = 1 + bpp; i < row.length; i++) {
+                    row[i] += row[i - bpp];
+                }
+            }
+            case 2 -> {
+                for (int i = 1; i < row.length; i++) {
+                    row[i] += prior[i];
+                }
+            }
+            case 3 -> {
+                for (int i = 1; i < row.length; i++) {
+                    int left = i > bpp ? row[i - bpp] & 0xFF : 0;
+                    row[i] += (byte) ((left + (prior[i] & 0xFF)) >>> 1);
+                }
+            }
+            case 4 -> {
+                for (int i = 1; i < row.length; i++) {
+                    int a = i > bpp ? row[i - bpp] & 0xFF : 0;
+                    int b = prior[i] & 0xFF;
+                    int c = i > bpp ? prior[i - bpp] & 0xFF : 0;
+                    row[i] += (byte) paethPredictor(a, b, c);
+                }
+            }
+            default -> throw new IIOException("Unknown PNG filter type " + row[0]);
+        }
+    }
+
+    private void toLuma(byte[] row, byte[] target, int offset) {
+        for (int x = 0, i = 1; x < width; x++, i += bytesPerPixel * subsampling) {
+            target[offset + x] = (byte) LumaPlane.luminance(row[i] & 0xFF, row[i + 1] & 0xFF, row[i + 2] & 0xFF);
+        }
+    }
+
+    private static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    private void toRgb(byte[] row, int[] target, int offset) {
+        for (int x = 0, i = 1; x < width; x++, i += bytesPerPixel * subsampling) {
+            target[offset + x] = ((row[i] & 0xFF) << 16) | ((row[i + 1] & 0xFF) << 8) | (row[i + 2] & 0xFF);
+        }
+    }
+
+    private static long toLong(byte[] bytes) {
+        long value = 0;
+        for (byte b : bytes) {
+            value = (value << 8) | (b & 0xFF);
+        }
+        return value;
+    }
+}
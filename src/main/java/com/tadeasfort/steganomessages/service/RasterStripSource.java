@@ -0,0 +1,105 @@
+package com.tadeasfort.steganomessages.service;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Decodes an encoded image as a sequence of horizontal strips, top to bottom,
+ * so callers only ever hold a strip in memory and can stop before the end.
+ * <p>
+ * Sources are opened by {@link ImageCodecService#openStrips}. Plain 8-bit
+ * truecolour PNGs are decoded by {@link PngStripSource}, which inflates only
+ * as far as the rows asked for. Everything else goes through an
+ * {@link ImageReader} with a source region; those readers restart from the top
+ * on every call, so callers check {@link #isSequential()} and read such
+ * sources in as few strips as they can, usually one.
+ */
+interface RasterStripSource extends Closeable {
+
+    int width();
+
+    int height();
+
+    /**
+     * Whether reading a strip costs only that strip, as opposed to
+     * re-decoding everything above it.
+     */
+    boolean isSequential();
+
+    /**
+     * Decodes rows {@code [y, y + rows)}. Strips must be requested in order
+     * and must not overlap.
+     */
+    RgbRaster read(int y, int rows) throws IOException;
+
+    /**
+     * Like {@link #read}, but only the luminance of the rows, for callers
+     * that never need their colour.
+     */
+    default LumaPlane readLuma(int y, int rows) throws IOException {
+        return LumaPlane.of(read(y, rows));
+    }
+
+    /**
+     * Strips decoded through {@link ImageReadParam#setSourceRegion}.
+     */
+    final class ReaderStripSource implements RasterStripSource {
+
+        private final ImageReader reader;
+        private final Consumer<ImageReader> release;
+        private final ImageReadParam param;
+        private final int width;
+        private final int height;
+
+        private final int sourceHeight;
+        private final int subsampling;
+
+        /**
+         * Reads every {@code subsampling}-th pixel of every
+         * {@code subsampling}-th row through {@code reader}, whose input is
+         * already set, and hands it to {@code release} when closed.
+         */
+        ReaderStripSource(ImageReader reader, int subsampling, Consumer<ImageReader> release) throws IOException {
+            this.reader = reader;
+            this.release = release;
+            this.param = reader.getDefaultReadParam();
+            this.param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            this.sourceHeight = reader.getHeight(0);
+            this.subsampling = subsampling;
+            this.width = (reader.getWidth(0) + subsampling - 1) / subsampling;
+            this.height = (sourceHeight + subsampling - 1) / subsampling;
+        }
+
+        @Override
+        public int width() {
+            return width;
+        }
+
+        @Override
+        public int height() {
+            return height;
+        }
+
+        @Override
+        public boolean isSequential() {
+            return false;
+        }
+
+        @Override
+        public RgbRaster read(int y, int rows) throws IOException {
+            int sourceY = y * subsampling;
+            param.setSourceRegion(new Rectangle(0, sourceY, reader.getWidth(0),
+                    Math.min(sourceHeight - sourceY, rows * subsampling)));
+            return RgbRaster.of(reader.read(0, param));
+        }
+
+        @Override
+        public void close() {
+            release.accept(reader);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.tadeasfort.steganomessages.service;
+
+import com.tadeasfort.steganomessages.model.User;
+
+/**
+ * Who image work is done for: a signed-in user, or an anonymous client
+ * known only by address. Admission and scheduling share capacity out per
+ * requester rather than per request.
+ */
+public record Requester(String key, boolean authenticated) {
+
+    public static Requester of(User user, String remoteAddress) {
+        if (user != null && user.getId() != null) {
+            return new Requester("user:" + user.getId(), true);
+        }
+        return new Requester("ip:" + remoteAddress, false);
+    }
+}
@@ -0,0 +1,17 @@
+package com.tadeasfort.steganomessages.service;
+
+/**
+ * An upload whose memory is accounted to the request it arrived with and
+ * given back when that request ends. Work that keeps using the upload after
+ * its request retains it, so the memory stays accounted until the work is
+ * done.
+ */
+public interface RetainableUpload {
+
+    /**
+     * Keeps the upload's memory reserved past the end of its request.
+     *
+     * @return what gives the memory back; running it again has no effect
+     */
+    Runnable retain();
+}
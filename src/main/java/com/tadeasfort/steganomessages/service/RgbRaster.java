@@ -0,0 +1,129 @@
+package com.tadeasfort.steganomessages.service;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+
+/**
+ * An image held as packed {@code 0xRRGGBB} ints in one row-major array with a
+ * stride equal to its width, backed by a {@code TYPE_INT_RGB} BufferedImage.
+ * <p>
+ * The DCT pipeline normalises every carrier into this layout once and then
+ * reads and writes whole block rows through the array, instead of paying for
+ * ColorModel conversion on every {@code getRGB}/{@code setRGB} call.
+ */
+final class RgbRaster {
+
+    // Rows converted per getRGB call for layouts without a direct fast path
+    private static final int CONVERSION_STRIP_ROWS = 64;
+
+    final int width;
+    final int height;
+    final int[] pixels;
+    final BufferedImage image;
+
+    private RgbRaster(BufferedImage image) {
+        this.image = image;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Creates a blank raster of the given size.
+     */
+    static RgbRaster create(int width, int height) {
+        return new RgbRaster(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+    }
+
+    /**
+     * Returns the image itself when it is already a plain {@code TYPE_INT_RGB}
+     * image, otherwise a converted copy. Pixel values are exactly what
+     * {@link BufferedImage#getRGB(int, int)} reports, without alpha, so gray,
+     * indexed and 16-bit images go through the same colour conversion as before.
+     */
+    static RgbRaster of(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB && isPlainRaster(image)) {
+            return new RgbRaster(image);
+        }
+
+        RgbRaster converted = create(image.getWidth(), image.getHeight());
+        if (isPlainRaster(image)) {
+            switch (image.getType()) {
+                case BufferedImage.TYPE_INT_ARGB -> {
+                    copyIntPixels(image, converted.pixels);
+                    return converted;
+                }
+                case BufferedImage.TYPE_3BYTE_BGR -> {
+                    copyBytePixels(image, converted.pixels, 3);
+                    return converted;
+                }
+                case BufferedImage.TYPE_4BYTE_ABGR -> {
+                    copyBytePixels(image, converted.pixels, 4);
+                    return converted;
+                }
+                default -> {
+                }
+            }
+        }
+
+        for (int y = 0; y < image.getHeight(); y += CONVERSION_STRIP_ROWS) {
+            int rows = Math.min(CONVERSION_STRIP_ROWS, image.getHeight() - y);
+            image.getRGB(0, y, image.getWidth(), rows, converted.pixels, y * converted.width, converted.width);
+        }
+        for (int i = 0; i < converted.pixels.length; i++) {
+            converted.pixels[i] &= 0xFFFFFF;
+        }
+        return converted;
+    }
+
+    /**
+     * Like {@link #of(BufferedImage)}, but never shares pixels with
+     * {@code image}: a plain {@code TYPE_INT_RGB} image is copied with one
+     * array copy, anything else is converted into a fresh raster anyway.
+     */
+    static RgbRaster copyOf(BufferedImage image) {
+        RgbRaster raster = of(image);
+        if (raster.image != image) {
+            return raster;
+        }
+        RgbRaster copy = create(raster.width, raster.height);
+        System.arraycopy(raster.pixels, 0, copy.pixels, 0, raster.pixels.length);
+        return copy;
+    }
+
+    /**
+     * Whether the image owns its whole data buffer, i.e. it is not a sub-image
+     * sharing a parent's buffer with an offset or wider stride.
+     */
+    private static boolean isPlainRaster(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        return raster.getParent() == null
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0
+                && raster.getDataBuffer().getNumBanks() == 1
+                && raster.getDataBuffer().getOffset() == 0;
+    }
+
+    private static void copyIntPixels(BufferedImage image, int[] target) {
+        int[] source = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < target.length; i++) {
+            target[i] = source[i] & 0xFFFFFF;
+        }
+    }
+
+    /**
+     * Copies interleaved {@code BGR} / {@code ABGR} bytes; blue is the last
+     * byte of each pixel in both layouts.
+     */
+    private static void copyBytePixels(BufferedImage image, int[] target, int pixelStride) {
+        byte[] source = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int offset = pixelStride - 3;
+        for (int i = 0; i < target.length; i++, offset += pixelStride) {
+            target[i] = ((source[offset + 2] & 0xFF) << 16)
+                    | ((source[offset + 1] & 0xFF) << 8)
+                    | (source[offset] & 0xFF);
+        }
+    }
+}
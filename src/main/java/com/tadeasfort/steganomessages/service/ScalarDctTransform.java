@@ -0,0 +1,83 @@
+package com.tadeasfort.steganomessages.service;
+
+import static com.tadeasfort.steganomessages.service.DctKernel.BLOCK_SIZE;
+import static com.tadeasfort.steganomessages.service.DctKernel.DCT;
+import static com.tadeasfort.steganomessages.service.DctKernel.DCT_T;
+
+/**
+ * Plain Java DCT kernel, used when the Vector API is not available.
+ */
+final class ScalarDctTransform implements DctKernel.Transform {
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+
+    @Override
+    public void forward(double[] block, double[] coefficients, double[] scratch) {
+        multiply(DCT, block, scratch);
+        multiply(scratch, DCT_T, coefficients);
+    }
+
+    @Override
+    public void inverse(double[] coefficients, double[] block, double[] scratch) {
+        multiply(DCT_T, coefficients, scratch);
+        multiply(scratch, DCT, block);
+    }
+
+    /**
+     * Only the column-pass rows the requested coefficients depend on are
+     * computed, and each coefficient is then a single dot product of that row
+     * with its basis vector, in the same term order as {@link #forward}.
+     */
+    @Override
+    public void forwardPartial(double[] block, int[] indices, double[] coefficients, double[] scratch) {
+        int computedRows = 0;
+        for (int index : indices) {
+            int u = index / BLOCK_SIZE;
+            int v = index % BLOCK_SIZE;
+            int row = u * BLOCK_SIZE;
+
+            if ((computedRows & (1 << u)) == 0) {
+                multiplyRow(DCT, block, scratch, u);
+                computedRows |= 1 << u;
+            }
+
+            double sum = 0.0;
+            int basisRow = v * BLOCK_SIZE;
+            for (int k = 0; k < BLOCK_SIZE; k++) {
+                sum += scratch[row + k] * DCT[basisRow + k];
+            }
+            coefficients[index] = sum;
+        }
+    }
+
+    /**
+     * 8x8 product {@code result = a * b}. The k loop is hoisted above the j loop
+     * so the inner loop is a contiguous axpy the JIT can vectorise; each element
+     * still sums its terms in ascending k order starting from zero.
+     */
+    private static void multiply(double[] a, double[] b, double[] result) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            multiplyRow(a, b, result, i);
+        }
+    }
+
+    /**
+     * Row {@code i} of {@code result = a * b}.
+     */
+    private static void multiplyRow(double[] a, double[] b, double[] result, int i) {
+        int row = i * BLOCK_SIZE;
+        for (int j = 0; j < BLOCK_SIZE; j++) {
+            result[row + j] = 0.0;
+        }
+        for (int k = 0; k < BLOCK_SIZE; k++) {
+            double aik = a[row + k];
+            int bRow = k * BLOCK_SIZE;
+            for (int j = 0; j < BLOCK_SIZE; j++) {
+                result[row + j] += aik * b[bRow + j];
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.tadeasfort.steganomessages.service;
+
+/**
+ * Image work was turned away because the server already has as much queued
+ * as it will take. Controllers answer with 503 and a {@code Retry-After} of
+ * {@link #getRetryAfterSeconds()}.
+ */
+public class ServerBusyException extends IllegalStateException {
+
+    private final long retryAfterSeconds;
+
+    public ServerBusyException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
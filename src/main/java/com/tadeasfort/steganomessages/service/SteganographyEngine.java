@@ -0,0 +1,72 @@
+package com.tadeasfort.steganomessages.service;
+
+import com.tadeasfort.steganomessages.model.EngineType;
+
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * One embedding algorithm. Implementations are Spring beans collected by
+ * {@link SteganographyEngineRegistry}; every payload they write starts with a
+ * {@link PayloadHeader} carrying their {@link EngineType} id, which is how
+ * extraction finds the engine for a carrier.
+ */
+public interface SteganographyEngine {
+
+    EngineType type();
+
+    /**
+     * Maximum message length, in UTF-8 bytes, for a carrier of the given size.
+     * Messages that compress well can be longer.
+     */
+    int getMaxMessageLength(int width, int height);
+
+    /**
+     * Embeds {@code message} into a copy of {@code image}
+     */
+    BufferedImage embedMessage(BufferedImage image, String message);
+
+    /**
+     * Streams the carrier read from {@code imageInput} into a stego PNG at
+     * {@code filePath}, removing the partial file if embedding fails
+     */
+    default void embedMessage(InputStream imageInput, String message, String filePath) throws IOException {
+        embedMessage(imageInput, message, filePath, 1);
+    }
+
+    /**
+     * Like {@link #embedMessage(InputStream, String, String)}, but the carrier
+     * is every {@code subsampling}-th pixel of every {@code subsampling}-th
+     * row of the image, decoded at that size to begin with
+     */
+    void embedMessage(InputStream imageInput, String message, String filePath, int subsampling)
+            throws IOException;
+
+    String extractMessage(BufferedImage image);
+
+    /**
+     * Extracts the message from the carrier read from {@code input}, decoding
+     * no more of it than the payload occupies
+     *
+     * @throws IllegalArgumentException if the carrier holds no message of this
+     *                                  engine or it is corrupted
+     */
+    String extractMessage(ImageInputStream input) throws IOException;
+
+    /**
+     * Whether the start of the carrier read from {@code input} could be a
+     * payload of this engine. Only the header region is decoded; the stream
+     * position afterwards is unspecified.
+     */
+    boolean detect(ImageInputStream input) throws IOException;
+
+    /**
+     * Whether this engine also reads payloads without a header, which makes
+     * {@link #detect} much less selective. Such engines are probed last.
+     */
+    default boolean readsHeaderlessPayloads() {
+        return false;
+    }
+}
@@ -0,0 +1,90 @@
+package com.tadeasfort.steganomessages.service;
+
+import com.tadeasfort.steganomessages.model.EngineType;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The registered {@link SteganographyEngine}s, looked up by type for
+ * embedding and probed in turn for extraction.
+ */
+@Service
+@Slf4j
+public class SteganographyEngineRegistry {
+
+    private final ImageCodecService imageCodecService;
+    private final Map<EngineType, SteganographyEngine> engines = new EnumMap<>(EngineType.class);
+    private final List<SteganographyEngine> detectionOrder;
+    private final EngineType defaultType;
+
+    public SteganographyEngineRegistry(List<SteganographyEngine> engines, ImageCodecService imageCodecService,
+            @Value("${app.stego.engine:DCT}") EngineType defaultType) {
+        this.imageCodecService = imageCodecService;
+        for (SteganographyEngine engine : engines) {
+            if (this.engines.put(engine.type(), engine) != null) {
+                throw new IllegalStateException("Duplicate steganography engine " + engine.type());
+            }
+        }
+        if (!this.engines.containsKey(defaultType)) {
+            throw new IllegalStateException("Default steganography engine " + defaultType + " is not registered");
+        }
+        this.defaultType = defaultType;
+
+        // Engines that only accept their own header reject a foreign carrier
+        // within a few pixels; those that also read headerless payloads go last
+        this.detectionOrder = this.engines.values().stream()
+                .sorted(Comparator.comparing(SteganographyEngine::readsHeaderlessPayloads))
+                .toList();
+        log.info("Steganography engines {} registered, default {}", this.engines.keySet(), defaultType);
+    }
+
+    public EngineType defaultType() {
+        return defaultType;
+    }
+
+    /**
+     * The engine of the given type, or the default engine for {@code null}
+     */
+    public SteganographyEngine engine(EngineType type) {
+        SteganographyEngine engine = engines.get(type != null ? type : defaultType);
+        if (engine == null) {
+            throw new IllegalArgumentException("Steganography engine " + type + " is not available");
+        }
+        return engine;
+    }
+
+    /**
+     * Extracts the message from {@code imageInput} with whichever engine wrote
+     * it. Each engine checks only the header region, and the first that
+     * recognises it decodes the payload.
+     *
+     * @throws IllegalArgumentException if no engine finds a message
+     */
+    public String extractMessage(InputStream imageInput) throws IOException {
+        try (ImageInputStream input = imageCodecService.openStream(imageInput)) {
+            for (SteganographyEngine engine : detectionOrder) {
+                input.mark();
+                boolean detected;
+                try {
+                    detected = engine.detect(input);
+                } finally {
+                    input.reset();
+                }
+                if (detected) {
+                    log.debug("Carrier recognised by the {} engine", engine.type());
+                    return engine.extractMessage(input);
+                }
+            }
+        }
+        throw new IllegalArgumentException("No hidden message found in the image");
+    }
+}
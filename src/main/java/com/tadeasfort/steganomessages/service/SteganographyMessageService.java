@@ -1,24 +1,39 @@
 package com.tadeasfort.steganomessages.service;
 
+import com.tadeasfort.steganomessages.model.EngineType;
 import com.tadeasfort.steganomessages.model.SteganographyMessage;
 import com.tadeasfort.steganomessages.model.User;
 import com.tadeasfort.steganomessages.repository.SteganographyMessageRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.multipart.MultipartFile;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
+import java.awt.Dimension;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.Optional;
 import java.util.UUID;
 
+/**
+ * Creates, extracts and manages steganography messages.
+ * <p>
+ * Methods run in a transaction by default, except those that decode or
+ * embed images: they queue for admission, CPU workers and decode memory, and
+ * a transaction opened around them would hold a pooled database connection
+ * the whole time. They run without one and only open a short transaction
+ * for the records they write once the image work is done.
+ */
 @Service
 @RequiredArgsConstructor
 @Slf4j
@@ -26,38 +41,56 @@ import java.util.UUID;
 public class SteganographyMessageService {
 
     private final SteganographyMessageRepository messageRepository;
-    private final DCTSteganographyService dctSteganographyService;
+    private final SteganographyEngineRegistry engineRegistry;
+    private final ImageCodecService imageCodecService;
     private final FileStorageService fileStorageService;
     private final PasswordEncoder passwordEncoder;
     private final UserStatisticsService statisticsService;
-
+    private final CpuBulkhead cpuBulkhead;
+    private final AdmissionControl admissionControl;
+    private final TransactionTemplate transactionTemplate;
+
+    // Largest subsampling factor a fitted carrier is decoded at
+    static final int MAX_CARRIER_SUBSAMPLING = 64;
+
+    @Value("${app.stego.fit.margin:4.0}")
+    private double fitCapacityMargin;
+
+    @Value("${app.stego.fit.min-dimension:512}")
+    private int fitMinDimension;
+
+    /**
+     * Creates a message from a carrier that has already been validated and
+     * admitted, such as an upload buffered in memory that a background encode
+     * job reads after its request has ended. With {@code fitCarrier} the
+     * carrier is first shrunk by the largest integer subsampling factor that
+     * still leaves {@code app.stego.fit.margin} times the capacity the message
+     * needs and keeps both sides at least {@code app.stego.fit.min-dimension}
+     * pixels, so a one-line message in a phone photo is not embedded into,
+     * stored and served at full size.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public SteganographyMessage createMessage(User user, String title, String message,
-            MultipartFile imageFile, boolean isPublic,
-            String sharePassword, Integer expirationDays) throws IOException {
-
-        // Validate image file
-        fileStorageService.validateImageFile(imageFile);
-
-        // Load the image
-        BufferedImage originalImage = ImageIO.read(imageFile.getInputStream());
+            InputStreamSource carrier, String originalFilename, long fileSize, boolean isPublic,
+            String sharePassword, Integer expirationDays, EngineType engineType,
+            boolean fitCarrier) throws IOException {
+        SteganographyEngine engine = engineRegistry.engine(resolveEngine(user, engineType));
 
-        // Check if message can fit in the image
-        int maxLength = dctSteganographyService.getMaxMessageLength(originalImage);
-        if (message.length() > maxLength) {
-            throw new IllegalArgumentException(
-                    "Message too long for this image. Maximum length: " + maxLength + " characters");
-        }
-
-        // Embed the message
-        BufferedImage stegoImage = dctSteganographyService.embedMessage(originalImage, message);
+        int subsampling = fitCarrier && message != null ? fitCarrier(engine, carrier, message) : 1;
 
         // Generate unique filename for stego image
-        String originalFilename = imageFile.getOriginalFilename();
         String stegoFilename = UUID.randomUUID().toString() + ".png"; // Always save as PNG to avoid JPEG compression
 
-        // Save the stego image
+        // Embed the message, streaming the carrier through in strips so large
+        // images never have to be held in memory whole. Encode jobs already
+        // run on a CPU worker under their admission, so this runs in place
         String stegoFilePath = fileStorageService.getFilePath(stegoFilename).toString();
-        dctSteganographyService.saveImage(stegoImage, "png", stegoFilePath);
+        cpuBulkhead.call(() -> {
+            try (InputStream input = carrier.getInputStream()) {
+                engine.embedMessage(input, message, stegoFilePath, subsampling);
+            }
+            return null;
+        });
 
         // Create and save the message record
         SteganographyMessage stegoMessage = new SteganographyMessage();
@@ -67,8 +100,9 @@ public class SteganographyMessageService {
         stegoMessage.setOriginalFilename(originalFilename);
         stegoMessage.setStegoFilename(stegoFilename);
         stegoMessage.setFilePath(stegoFilePath);
-        stegoMessage.setFileSize(imageFile.getSize());
+        stegoMessage.setFileSize(fileSize);
         stegoMessage.setMimeType("image/png");
+        stegoMessage.setCarrierSubsampling(subsampling);
         stegoMessage.setPublic(isPublic);
         stegoMessage.setShareToken(UUID.randomUUID().toString());
 
@@ -81,28 +115,120 @@ public class SteganographyMessageService {
             stegoMessage.setExpiresAt(LocalDateTime.now().plusDays(expirationDays));
         }
 
-        stegoMessage = messageRepository.save(stegoMessage);
+        // Save the record and statistics together, now that the image is written
+        SteganographyMessage saved = transactionTemplate.execute(status -> {
+            SteganographyMessage record = messageRepository.save(stegoMessage);
+            statisticsService.recordMessageCreated(user, message);
+            return record;
+        });
+
+        log.info("Created steganography message with ID: {} for user: {} using the {} engine", saved.getId(),
+                user.getUsername(), engine.type());
+
+        return saved;
+    }
+
+    /**
+     * Pixels the carrier will be embedded at, read from its header: the cost
+     * admission control charges for creating the message.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public long carrierPixels(User user, InputStreamSource carrier, String message, EngineType engineType,
+            boolean fitCarrier) throws IOException {
+        Dimension size = readSize(carrier);
+        int subsampling = fitCarrier && message != null
+                ? fitCarrier(engineRegistry.engine(resolveEngine(user, engineType)), size, message)
+                : 1;
+        return (long) ((size.width + subsampling - 1) / subsampling) * ((size.height + subsampling - 1) / subsampling);
+    }
+
+    private int fitCarrier(SteganographyEngine engine, InputStreamSource carrier, String message)
+            throws IOException {
+        return fitCarrier(engine, readSize(carrier), message);
+    }
+
+    private int fitCarrier(SteganographyEngine engine, Dimension size, String message) {
+        int subsampling = carrierSubsampling(engine, size.width, size.height,
+                message.getBytes(StandardCharsets.UTF_8).length, fitCapacityMargin, fitMinDimension);
+        log.debug("Fitting {}x{} carrier with subsampling {}", size.width, size.height, subsampling);
+        return subsampling;
+    }
 
-        // Record statistics
-        statisticsService.recordMessageCreated(user, message);
+    private Dimension readSize(InputStreamSource image) throws IOException {
+        try (InputStream input = image.getInputStream()) {
+            return imageCodecService.readSize(input);
+        }
+    }
 
-        log.info("Created steganography message with ID: {} for user: {}", stegoMessage.getId(), user.getUsername());
+    /**
+     * The largest subsampling factor at which {@code engine} still holds
+     * {@code margin} times {@code messageBytes} and neither side of the
+     * carrier drops below {@code minDimension}, or 1 if even the full image
+     * does not. Capacity is measured on the uncompressed text, so the margin
+     * only grows once the payload is deflated.
+     */
+    static int carrierSubsampling(SteganographyEngine engine, int width, int height, int messageBytes,
+            double margin, int minDimension) {
+        double required = Math.max(1, messageBytes) * Math.max(1.0, margin);
+        int best = 1;
+        for (int s = 2; s <= MAX_CARRIER_SUBSAMPLING; s++) {
+            int scaledWidth = (width + s - 1) / s;
+            int scaledHeight = (height + s - 1) / s;
+            if (Math.min(scaledWidth, scaledHeight) < minDimension
+                    || engine.getMaxMessageLength(scaledWidth, scaledHeight) < required) {
+                break;
+            }
+            best = s;
+        }
+        return best;
+    }
 
-        return stegoMessage;
+    /**
+     * Engine for a new message: the one the request asked for, else the
+     * user's preference, else the application default.
+     */
+    public EngineType resolveEngine(User user, EngineType requested) {
+        if (requested != null) {
+            return requested;
+        }
+        if (user != null && user.getPreferredEngine() != null) {
+            return user.getPreferredEngine();
+        }
+        return engineRegistry.defaultType();
     }
 
-    public String extractMessage(MultipartFile imageFile) throws IOException {
+    /**
+     * Maximum message length, in UTF-8 bytes before compression, the image
+     * can carry with the given engine. Only the image header is read, so a truncated upload
+     * holding just the start of the file is enough.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public int getMessageCapacity(MultipartFile imageFile, EngineType engineType) throws IOException {
         fileStorageService.validateImageFile(imageFile);
 
-        BufferedImage image = ImageIO.read(imageFile.getInputStream());
-        String extractedMessage = dctSteganographyService.extractMessage(image);
+        Dimension size = readSize(imageFile);
+        return engineRegistry.engine(engineType).getMaxMessageLength(size.width, size.height);
+    }
 
-        log.info("Successfully extracted message from uploaded image");
-        return extractedMessage;
+    /**
+     * Extracts the message hidden in {@code imageFile}, once admission control
+     * has let its pixels in for {@code requester}.
+     *
+     * @throws ServerBusyException if there is no room for the work
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public String extractMessage(MultipartFile imageFile, Requester requester) throws IOException {
+        return extract(imageFile, requester);
     }
 
-    public String extractMessageWithUser(MultipartFile imageFile, User user) throws IOException {
-        String extractedMessage = extractMessage(imageFile);
+    /**
+     * Extracts like {@link #extractMessage}, then records the extraction in
+     * {@code user}'s statistics.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public String extractMessageWithUser(MultipartFile imageFile, User user, Requester requester)
+            throws IOException {
+        String extractedMessage = extract(imageFile, requester);
 
         // Record statistics for authenticated user
         if (user != null) {
@@ -112,6 +238,25 @@ public class SteganographyMessageService {
         return extractedMessage;
     }
 
+    private String extract(MultipartFile imageFile, Requester requester) throws IOException {
+        fileStorageService.validateImageFile(imageFile);
+
+        // Charge the whole image; only the header region is certain to be
+        // decoded, but the payload can reach the last row
+        Dimension size = readSize(imageFile);
+        String extractedMessage;
+        try (AdmissionControl.Admission admission = admissionControl.admit(requester,
+                (long) size.width * size.height)) {
+            // Find the engine from the payload header, then decode only as many
+            // rows of the upload as the payload occupies
+            extractedMessage = cpuBulkhead.call(admission,
+                    () -> engineRegistry.extractMessage(imageFile.getInputStream()));
+        }
+
+        log.info("Successfully extracted message from uploaded image");
+        return extractedMessage;
+    }
+
     public Page<SteganographyMessage> getUserMessages(User user, Pageable pageable) {
         return messageRepository.findByUserOrderByCreatedAtDesc(user, pageable);
     }
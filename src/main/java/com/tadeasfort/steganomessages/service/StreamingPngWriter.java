@@ -0,0 +1,375 @@
+package com.tadeasfort.steganomessages.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an 8-bit RGB PNG incrementally, a batch of rows at a time, so an
+ * image never has to exist in memory as a whole.
+ * <p>
+ * Rows are gathered into chunks of about {@value #CHUNK_BYTES} bytes that are
+ * filtered and deflated in parallel on the common fork/join pool, pigz-style:
+ * each chunk is compressed as an independent raw deflate segment, primed with
+ * the last 32 KB of the previous chunk as its dictionary and ended with a sync
+ * flush, so the segments concatenate into one valid zlib stream. Each chunk's
+ * Adler-32 is computed alongside and combined in order. Compressed chunks are
+ * written as IDAT chunks in order as they complete, with at most a bounded
+ * window in flight. A writer created on a {@link CpuBulkhead} worker compresses
+ * its chunks one after another on that thread instead, leaving the other
+ * cores to the bulkhead. The target channel is not closed by {@link #finish()}.
+ */
+final class StreamingPngWriter {
+
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private static final int CHUNK_BYTES = 1 << 17;
+    private static final int DICTIONARY_BYTES = 1 << 15;
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final int ADLER_BASE = 65521;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private final WritableByteChannel channel;
+    private final int width;
+    private final int height;
+    private final PngProfile profile;
+    private final int rowBytes;
+    private final int rowsPerChunk;
+    private final Executor executor;
+    private final int window;
+    private final ArrayDeque<CompletableFuture<Segment>> inFlight = new ArrayDeque<>();
+
+    private byte[] chunk;
+    private int chunkRows;
+    // Raw bytes of the last row before the current chunk, the filters' "prior" row
+    private byte[] previousRow;
+    private CompletableFuture<byte[]> previousFiltered = CompletableFuture.completedFuture(new byte[0]);
+    private long adler = 1;
+    private boolean headerWritten;
+    private int rowsWritten;
+
+    StreamingPngWriter(WritableByteChannel channel, int width, int height, PngProfile profile) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Image dimensions must be positive");
+        }
+        if ((long) width * BYTES_PER_PIXEL + 1 > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("Image too wide");
+        }
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.profile = profile;
+        this.rowBytes = 1 + width * BYTES_PER_PIXEL;
+        this.rowsPerChunk = Math.max(1, CHUNK_BYTES / rowBytes);
+        this.previousRow = new byte[rowBytes];
+        boolean serial = CpuBulkhead.isWorker();
+        this.executor = serial ? Runnable::run : ForkJoinPool.commonPool();
+        this.window = serial ? 1 : ForkJoinPool.getCommonPoolParallelism() + 1;
+
+        ByteBuffer header = ByteBuffer.allocate(13)
+                .putInt(width)
+                .putInt(height)
+                .put((byte) 8) // bit depth
+                .put((byte) 2) // colour type: truecolour
+                .put((byte) 0)
+                .put((byte) 0)
+                .put((byte) 0);
+        writeFully(ByteBuffer.wrap(SIGNATURE));
+        writeChunk("IHDR", header.array(), 0, header.capacity());
+    }
+
+    /**
+     * Appends {@code rows} rows of packed {@code 0xRRGGBB} pixels starting at
+     * {@code offset}, each {@code width} pixels long and stored back to back.
+     */
+    void writeRows(int[] pixels, int offset, int rows) throws IOException {
+        if (rowsWritten + rows > height) {
+            throw new IllegalStateException("More rows than the image height");
+        }
+        for (int row = 0; row < rows; row++) {
+            if (chunk == null) {
+                chunk = new byte[Math.min(rowsPerChunk, height - rowsWritten) * rowBytes];
+            }
+            int rowOffset = offset + row * width;
+            int target = chunkRows * rowBytes + 1;
+            for (int x = 0; x < width; x++, target += BYTES_PER_PIXEL) {
+                int rgb = pixels[rowOffset + x];
+                chunk[target] = (byte) (rgb >>> 16);
+                chunk[target + 1] = (byte) (rgb >>> 8);
+                chunk[target + 2] = (byte) rgb;
+            }
+            chunkRows++;
+            rowsWritten++;
+
+            if (chunk.length == chunkRows * rowBytes) {
+                submitChunk(rowsWritten == height);
+            }
+        }
+    }
+
+    /**
+     * Waits for the remaining chunks, then writes the zlib trailer and the
+     * IEND chunk.
+     */
+    void finish() throws IOException {
+        if (rowsWritten != height) {
+            throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows written");
+        }
+        try {
+            while (!inFlight.isEmpty()) {
+                writeSegment(inFlight.poll().join());
+            }
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+
+        byte[] trailer = ByteBuffer.allocate(4).putInt((int) adler).array();
+        writeChunk("IDAT", trailer, 0, trailer.length);
+        writeChunk("IEND", new byte[0], 0, 0);
+    }
+
+    /**
+     * Hands the current chunk to the pool: filtering only needs the raw row
+     * before it, deflating additionally waits for the previous chunk's
+     * filtered bytes to use as its dictionary.
+     */
+    private void submitChunk(boolean last) throws IOException {
+        byte[] raw = chunk;
+        byte[] prior = previousRow;
+        previousRow = Arrays.copyOfRange(raw, raw.length - rowBytes, raw.length);
+        chunk = null;
+        chunkRows = 0;
+
+        CompletableFuture<byte[]> filtered = CompletableFuture.supplyAsync(
+                () -> filterRows(raw, prior), executor);
+        CompletableFuture<Segment> segment = filtered.thenCombineAsync(previousFiltered,
+                (data, dictionary) -> deflate(data, dictionary, last), executor);
+        previousFiltered = filtered;
+        inFlight.add(segment);
+
+        try {
+            while (inFlight.size() >= window || (!inFlight.isEmpty() && inFlight.peek().isDone())) {
+                writeSegment(inFlight.poll().join());
+            }
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    private void writeSegment(Segment segment) throws IOException {
+        adler = combineAdler32(adler, segment.adler, segment.inputLength);
+        if (!headerWritten) {
+            // zlib header: deflate with a 32 KB window, level hint, no preset dictionary
+            int cmf = 0x78;
+            int flg = compressionLevelHint() << 6;
+            flg += 31 - ((cmf << 8) + flg) % 31;
+            byte[] withHeader = new byte[segment.length + 2];
+            withHeader[0] = (byte) cmf;
+            withHeader[1] = (byte) flg;
+            System.arraycopy(segment.data, 0, withHeader, 2, segment.length);
+            writeChunk("IDAT", withHeader, 0, withHeader.length);
+            headerWritten = true;
+        } else {
+            writeChunk("IDAT", segment.data, 0, segment.length);
+        }
+    }
+
+    private int compressionLevelHint() {
+        int level = profile.compressionLevel;
+        if (level <= 1) {
+            return 0;
+        }
+        if (level <= 5) {
+            return 1;
+        }
+        return level == 6 ? 2 : 3;
+    }
+
+    /**
+     * Filters every row of {@code raw}, whose filter-type bytes are still
+     * blank, given the raw row above the first one.
+     */
+    private byte[] filterRows(byte[] raw, byte[] prior) {
+        byte[] filtered = new byte[raw.length];
+        for (int row = 0; row < raw.length; row += rowBytes) {
+            byte[] above = row == 0 ? prior : raw;
+            int aboveOffset = row == 0 ? 0 : row - rowBytes;
+            int filter = profile.adaptiveFiltering ? chooseFilter(raw, row, above, aboveOffset) : FILTER_UP;
+            applyFilter(filter, raw, row, above, aboveOffset, filtered);
+        }
+        return filtered;
+    }
+
+    /**
+     * The usual PNG heuristic: the filter whose output has the smallest sum of
+     * absolute values when read as signed bytes.
+     */
+    private int chooseFilter(byte[] raw, int row, byte[] above, int aboveOffset) {
+        long none = 0;
+        long sub = 0;
+        long up = 0;
+        long average = 0;
+        long paeth = 0;
+        for (int i = 1; i < rowBytes; i++) {
+            int x = raw[row + i] & 0xFF;
+            int a = i > BYTES_PER_PIXEL ? raw[row + i - BYTES_PER_PIXEL] & 0xFF : 0;
+            int b = above[aboveOffset + i] & 0xFF;
+            int c = i > BYTES_PER_PIXEL ? above[aboveOffset + i - BYTES_PER_PIXEL] & 0xFF : 0;
+            none += Math.abs((byte) x);
+            sub += Math.abs((byte) (x - a));
+            up += Math.abs((byte) (x - b));
+            average += Math.abs((byte) (x - ((a + b) >>> 1)));
+            paeth += Math.abs((byte) (x - paethPredictor(a, b, c)));
+        }
+
+        int best = FILTER_NONE;
+        long bestSum = none;
+        long[] sums = { sub, up, average, paeth };
+        for (int filter = FILTER_SUB; filter <= FILTER_PAETH; filter++) {
+            if (sums[filter - 1] < bestSum) {
+                best = filter;
+                bestSum = sums[filter - 1];
+            }
+        }
+        return best;
+    }
+
+    private void applyFilter(int filter, byte[] raw, int row, byte[] above, int aboveOffset, byte[] filtered) {
+        filtered[row] = (byte) filter;
+        for (int i = 1; i < rowBytes; i++) {
+            int x = raw[row + i] & 0xFF;
+            int a = i > BYTES_PER_PIXEL ? raw[row + i - BYTES_PER_PIXEL] & 0xFF : 0;
+            int b = above[aboveOffset + i] & 0xFF;
+            int c = i > BYTES_PER_PIXEL ? above[aboveOffset + i - BYTES_PER_PIXEL] & 0xFF : 0;
+            int predicted = switch (filter) {
+                case FILTER_SUB -> a;
+                case FILTER_UP -> b;
+                case FILTER_AVERAGE -> (a + b) >>> 1;
+                case FILTER_PAETH -> paethPredictor(a, b, c);
+                default -> 0;
+            };
+            filtered[row + i] = (byte) (x - predicted);
+        }
+    }
+
+    private static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * Compresses one chunk as a raw deflate segment that ends on a byte
+     * boundary, or with the final block if it is the last chunk.
+     */
+    private Segment deflate(byte[] data, byte[] previous, boolean last) {
+        Deflater deflater = new Deflater(profile.compressionLevel, true);
+        try {
+            deflater.setStrategy(Deflater.FILTERED);
+            if (previous.length > 0) {
+                int length = Math.min(DICTIONARY_BYTES, previous.length);
+                deflater.setDictionary(previous, previous.length - length, length);
+            }
+            deflater.setInput(data);
+            if (last) {
+                deflater.finish();
+            }
+
+            byte[] output = new byte[data.length / 2 + 64];
+            int length = 0;
+            while (true) {
+                if (length == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                length += deflater.deflate(output, length, output.length - length,
+                        last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                if (last ? deflater.finished() : deflater.needsInput() && length < output.length) {
+                    break;
+                }
+            }
+
+            Adler32 checksum = new Adler32();
+            checksum.update(data);
+            return new Segment(output, length, checksum.getValue(), data.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Adler-32 of two concatenated byte runs from the checksums of each, as in
+     * zlib's {@code adler32_combine}.
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (ADLER_BASE << 1)) {
+            sum2 -= (ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    private void writeChunk(String type, byte[] data, int offset, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+
+        ByteBuffer[] buffers = {
+                ByteBuffer.allocate(8).putInt(length).put(typeBytes).flip(),
+                ByteBuffer.wrap(data, offset, length),
+                ByteBuffer.allocate(4).putInt((int) crc.getValue()).flip()
+        };
+        if (channel instanceof GatheringByteChannel gathering) {
+            // One write call per chunk on file channels
+            while (buffers[2].hasRemaining()) {
+                gathering.write(buffers);
+            }
+        } else {
+            for (ByteBuffer buffer : buffers) {
+                writeFully(buffer);
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private record Segment(byte[] data, int length, long adler, int inputLength) {
+    }
+}
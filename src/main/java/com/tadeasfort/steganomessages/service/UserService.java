@@ -1,5 +1,6 @@
 package com.tadeasfort.steganomessages.service;
 
+import com.tadeasfort.steganomessages.model.EngineType;
 import com.tadeasfort.steganomessages.model.User;
 import com.tadeasfort.steganomessages.repository.UserRepository;
 import lombok.extern.slf4j.Slf4j;
@@ -136,9 +137,10 @@ public class UserService {
         log.info("Password changed for user: {}", user.getUsername());
     }
 
-    public void updateProfile(User user, String firstName, String lastName) {
+    public void updateProfile(User user, String firstName, String lastName, EngineType preferredEngine) {
         user.setFirstName(firstName);
         user.setLastName(lastName);
+        user.setPreferredEngine(preferredEngine);
         userRepository.save(user);
 
         log.info("Profile updated for user: {}", user.getUsername());
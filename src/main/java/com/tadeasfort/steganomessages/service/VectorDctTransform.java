@@ -0,0 +1,85 @@
+package com.tadeasfort.steganomessages.service;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import static com.tadeasfort.steganomessages.service.DctKernel.BLOCK_SIZE;
+import static com.tadeasfort.steganomessages.service.DctKernel.DCT;
+import static com.tadeasfort.steganomessages.service.DctKernel.DCT_T;
+
+/**
+ * DCT kernel on the incubating Vector API. Each output row is accumulated as
+ * {@code acc + broadcast(a[i][k]) * b[k][*]} over ascending k, with separate
+ * multiply and add, so every lane performs exactly the scalar kernel's
+ * floating-point operations and the results stay bit-identical.
+ * <p>
+ * Only loaded reflectively by {@link DctKernel} when the
+ * {@code jdk.incubator.vector} module is present.
+ */
+final class VectorDctTransform implements DctKernel.Transform {
+
+    // Widest preferred shape whose lane count divides a block row
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED.length() <= BLOCK_SIZE
+            ? DoubleVector.SPECIES_PREFERRED
+            : DoubleVector.SPECIES_512;
+    private static final int LANES = SPECIES.length();
+
+    @Override
+    public String name() {
+        return "vector (" + SPECIES.vectorBitSize() + "-bit)";
+    }
+
+    @Override
+    public void forward(double[] block, double[] coefficients, double[] scratch) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            multiplyRow(DCT, block, scratch, i);
+        }
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            multiplyRow(scratch, DCT_T, coefficients, i);
+        }
+    }
+
+    @Override
+    public void inverse(double[] coefficients, double[] block, double[] scratch) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            multiplyRow(DCT_T, coefficients, scratch, i);
+        }
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            multiplyRow(scratch, DCT, block, i);
+        }
+    }
+
+    /**
+     * Runs both passes for just the rows holding the requested coefficients.
+     * That computes a few more coefficients than asked for, but whole rows are
+     * what the vector units are good at, and each stays bit-identical.
+     */
+    @Override
+    public void forwardPartial(double[] block, int[] indices, double[] coefficients, double[] scratch) {
+        int rows = 0;
+        for (int index : indices) {
+            rows |= 1 << (index / BLOCK_SIZE);
+        }
+        for (int u = 0; u < BLOCK_SIZE; u++) {
+            if ((rows & (1 << u)) != 0) {
+                multiplyRow(DCT, block, scratch, u);
+                multiplyRow(scratch, DCT_T, coefficients, u);
+            }
+        }
+    }
+
+    /**
+     * Row {@code i} of {@code result = a * b}.
+     */
+    private static void multiplyRow(double[] a, double[] b, double[] result, int i) {
+        int row = i * BLOCK_SIZE;
+        for (int j = 0; j < BLOCK_SIZE; j += LANES) {
+            DoubleVector acc = DoubleVector.zero(SPECIES);
+            for (int k = 0; k < BLOCK_SIZE; k++) {
+                DoubleVector bk = DoubleVector.fromArray(SPECIES, b, k * BLOCK_SIZE + j);
+                acc = acc.add(bk.mul(a[row + k]));
+            }
+            acc.intoArray(result, row + j);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.tadeasfort.steganomessages.config;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.thymeleaf.spring6.SpringTemplateEngine;
+import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MultipartUploadFilterTest {
+
+    private static final String BOUNDARY = "----formBoundary7MA4YWxkTrZu0gW";
+
+    @Test
+    void answersUploadsTurnedAwayWithAFragmentTheResultAreaCanShow() throws Exception {
+        StreamingMultipartResolver resolver = new StreamingMultipartResolver(512 * 1024, 1024 * 1024, 64 * 1024,
+                1024 * 1024, 0.5, Duration.ofMillis(100), Duration.ofSeconds(10));
+        SpringTemplateEngine templateEngine = new SpringTemplateEngine();
+        ClassLoaderTemplateResolver templateResolver = new ClassLoaderTemplateResolver();
+        templateResolver.setPrefix("templates/");
+        templateResolver.setSuffix(".html");
+        templateEngine.setTemplateResolver(templateResolver);
+        MultipartUploadFilter filter = new MultipartUploadFilter(resolver, templateEngine);
+
+        // Holds most of the anonymous share until cleaned up
+        MultipartHttpServletRequest held = resolver.resolveMultipart(request());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request(), response, new MockFilterChain());
+        resolver.cleanupMultipart(held);
+
+        assertEquals(503, response.getStatus());
+        assertEquals("1", response.getHeader("Retry-After"));
+        assertFalse(response.getContentAsString().contains("<html"));
+        assertTrue(response.getContentAsString().contains("The server is busy receiving other uploads."));
+    }
+
+    private static MockHttpServletRequest request() {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/decode");
+        request.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+        String head = "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"imageFile\"; filename=\"a.png\""
+                + "\r\nContent-Type: image/png\r\n\r\n";
+        String tail = "\r\n--" + BOUNDARY + "--\r\n";
+        byte[] body = new byte[300 * 1024];
+        byte[] start = head.getBytes(StandardCharsets.UTF_8);
+        byte[] end = tail.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(start, 0, body, 0, start.length);
+        System.arraycopy(end, 0, body, body.length - end.length, end.length);
+        request.setContent(body);
+        return request;
+    }
+}
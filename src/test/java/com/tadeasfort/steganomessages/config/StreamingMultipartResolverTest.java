@@ -0,0 +1,212 @@
+package com.tadeasfort.steganomessages.config;
+
+import com.tadeasfort.steganomessages.service.RetainableUpload;
+import com.tadeasfort.steganomessages.service.ServerBusyException;
+import jakarta.servlet.ServletInputStream;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.DelegatingServletInputStream;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartException;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class StreamingMultipartResolverTest {
+
+    private static final String BOUNDARY = "----formBoundary7MA4YWxkTrZu0gW";
+
+    private final StreamingMultipartResolver resolver = new StreamingMultipartResolver(512 * 1024, 1024 * 1024,
+            64 * 1024, 1024 * 1024, 0.5, Duration.ofSeconds(2), Duration.ofSeconds(10));
+
+    @Test
+    void readsFieldsAndFilesOnEitherSideOfBufferBoundaries() throws IOException {
+        // Larger than the reader's window, with delimiter look-alikes inside
+        byte[] image = new byte[300_000];
+        new Random(42).nextBytes(image);
+        byte[] lookAlike = ("\r\n--" + BOUNDARY.substring(0, 20)).getBytes(StandardCharsets.ISO_8859_1);
+        for (int offset = 65_500; offset < image.length - lookAlike.length; offset += 65_536) {
+            System.arraycopy(lookAlike, 0, image, offset, lookAlike.length);
+        }
+        byte[] body = new Body()
+                .field("title", "Žluťoučký kůň")
+                .file("imageFile", "carrier.png", image)
+                .field("engine", "LSB")
+                .end();
+
+        MultipartHttpServletRequest request = resolver.resolveMultipart(request(body));
+        MultipartFile file = request.getFile("imageFile");
+        resolver.cleanupMultipart(request);
+
+        assertEquals("Žluťoučký kůň", request.getParameter("title"));
+        assertEquals("LSB", request.getParameter("engine"));
+        assertEquals("carrier.png", file.getOriginalFilename());
+        assertEquals("image/png", file.getContentType());
+        assertEquals(image.length, file.getSize());
+        // Still readable once the request is over
+        assertArrayEquals(image, file.getInputStream().readAllBytes());
+        assertArrayEquals(image, file.getBytes());
+    }
+
+    @Test
+    void buffersManySmallFilesWithinTheRequestsReservation() throws IOException {
+        Body body = new Body();
+        for (int i = 0; i < 200; i++) {
+            body.file("imageFile", "carrier" + i + ".png", ("image " + i).getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Each part starts small, so 200 of them fit in the few KiB reserved for the body
+        MultipartHttpServletRequest request = resolver.resolveMultipart(request(body.end()));
+        resolver.cleanupMultipart(request);
+
+        List<MultipartFile> files = request.getFiles("imageFile");
+        assertEquals(200, files.size());
+        assertEquals("image 199", new String(files.get(199).getBytes(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void rejectsOversizedUploadsAndReleasesTheirMemory() {
+        byte[] body = new Body().file("imageFile", "large.png", new byte[600 * 1024]).end();
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            for (int i = 0; i < 3; i++) {
+                assertThrows(MaxUploadSizeExceededException.class, () -> resolver.resolveMultipart(request(body)));
+            }
+        });
+    }
+
+    @Test
+    void turnsAwayUploadsThatWaitTooLongForMemory() {
+        StreamingMultipartResolver shared = new StreamingMultipartResolver(512 * 1024, 1024 * 1024, 64 * 1024,
+                1024 * 1024, 0.5, Duration.ofMillis(100), Duration.ofSeconds(10));
+        byte[] body = new Body().file("imageFile", "carrier.png", new byte[300 * 1024]).end();
+
+        // The first anonymous upload takes most of the anonymous share until cleaned up
+        MultipartHttpServletRequest held = shared.resolveMultipart(request(body));
+        ServerBusyException busy = assertThrows(ServerBusyException.class,
+                () -> shared.resolveMultipart(request(body)));
+        assertEquals(1, busy.getRetryAfterSeconds());
+
+        // Signed-in users still have the rest of the memory
+        MockHttpServletRequest signedIn = request(body);
+        signedIn.getSession().setAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY,
+                new SecurityContextImpl(UsernamePasswordAuthenticationToken.authenticated("alice", null, List.of())));
+        shared.cleanupMultipart(shared.resolveMultipart(signedIn));
+
+        shared.cleanupMultipart(held);
+        shared.cleanupMultipart(shared.resolveMultipart(request(body)));
+    }
+
+    @Test
+    void retainedUploadsKeepTheirMemoryPastTheRequest() {
+        StreamingMultipartResolver shared = new StreamingMultipartResolver(512 * 1024, 1024 * 1024, 64 * 1024,
+                1024 * 1024, 0.5, Duration.ofMillis(100), Duration.ofSeconds(10));
+        byte[] body = new Body().file("imageFile", "carrier.png", new byte[300 * 1024]).end();
+
+        MultipartHttpServletRequest first = shared.resolveMultipart(request(body));
+        Runnable release = ((RetainableUpload) first.getFile("imageFile")).retain();
+        shared.cleanupMultipart(first);
+        assertThrows(ServerBusyException.class, () -> shared.resolveMultipart(request(body)));
+
+        release.run();
+        release.run();
+        MultipartHttpServletRequest second = shared.resolveMultipart(request(body));
+        shared.cleanupMultipart(second);
+        // Nothing holds the first request's memory any more
+        assertThrows(IllegalStateException.class, () -> ((RetainableUpload) first.getFile("imageFile")).retain());
+    }
+
+    @Test
+    void rejectsTruncatedBodies() {
+        byte[] body = new Body().field("title", "untitled").end();
+        byte[] truncated = Arrays.copyOf(body, body.length - 10);
+
+        assertThrows(MultipartException.class, () -> resolver.resolveMultipart(request(truncated)));
+    }
+
+    @Test
+    void rejectsBodiesWithoutLengthOrArrivingTooSlowly() {
+        MockHttpServletRequest chunked = new MockHttpServletRequest("POST", "/api/encode");
+        chunked.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+        assertThrows(MultipartException.class, () -> resolver.resolveMultipart(chunked));
+
+        StreamingMultipartResolver impatient = new StreamingMultipartResolver(512 * 1024, 1024 * 1024, 64 * 1024,
+                1024 * 1024, 0.5, Duration.ofSeconds(2), Duration.ofMillis(100));
+        byte[] body = new Body().field("title", "trickled").end();
+        MockHttpServletRequest trickled = new MockHttpServletRequest("POST", "/api/encode") {
+
+            @Override
+            public ServletInputStream getInputStream() {
+                return new DelegatingServletInputStream(new ByteArrayInputStream(body)) {
+
+                    // One byte every 20 ms
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        LockSupport.parkNanos(20_000_000);
+                        return super.read(b, off, Math.min(len, 1));
+                    }
+                };
+            }
+        };
+        trickled.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+        trickled.setContent(body);
+
+        MultipartException e = assertThrows(MultipartException.class, () -> impatient.resolveMultipart(trickled));
+        assertInstanceOf(SocketTimeoutException.class, e.getCause());
+    }
+
+    private static MockHttpServletRequest request(byte[] body) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/encode");
+        request.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+        request.setContent(body);
+        return request;
+    }
+
+    private static final class Body {
+
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        Body field(String name, String value) {
+            write("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n");
+            output.writeBytes(value.getBytes(StandardCharsets.UTF_8));
+            write("\r\n");
+            return this;
+        }
+
+        Body file(String name, String filename, byte[] content) {
+            write("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"; filename=\""
+                    + filename + "\"\r\nContent-Type: image/png\r\n\r\n");
+            output.writeBytes(content);
+            write("\r\n");
+            return this;
+        }
+
+        byte[] end() {
+            write("--" + BOUNDARY + "--\r\n");
+            return output.toByteArray();
+        }
+
+        private void write(String text) {
+            output.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
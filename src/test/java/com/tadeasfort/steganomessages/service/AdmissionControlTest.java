@@ -0,0 +1,47 @@
+package com.tadeasfort.steganomessages.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AdmissionControlTest {
+
+    private static final Requester ANONYMOUS = new Requester("ip:192.0.2.1", false);
+    private static final Requester SIGNED_IN = new Requester("user:1", true);
+
+    @Test
+    void keepsALaneOpenForSignedInUsers() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        AdmissionControl admission = new AdmissionControl(registry, 1000, 0.5, 4, 100);
+
+        AdmissionControl.Admission first = admission.admit(ANONYMOUS, 400);
+        ServerBusyException busy = assertThrows(ServerBusyException.class, () -> admission.admit(ANONYMOUS, 300));
+        assertEquals(2, busy.getRetryAfterSeconds());
+
+        AdmissionControl.Admission signedIn = admission.admit(SIGNED_IN, 600);
+        assertEquals(4, signedIn.weight());
+        assertEquals(1, first.weight());
+        assertThrows(ServerBusyException.class, () -> admission.admit(SIGNED_IN, 1));
+        assertEquals(1000.0, registry.get(AdmissionControl.QUEUED_PIXELS_GAUGE).gauge().value());
+        assertEquals(1.0, registry.get(AdmissionControl.REJECTED_COUNTER).tag("lane", "anonymous").counter().count());
+
+        first.close();
+        first.close();
+        signedIn.close();
+        assertEquals(0, admission.queuedPixels());
+    }
+
+    @Test
+    void admitsOversizedWorkOnlyWhenIdle() {
+        AdmissionControl admission = new AdmissionControl(new SimpleMeterRegistry(), 1000, 0.5, 4, 100);
+
+        try (AdmissionControl.Admission huge = admission.admit(ANONYMOUS, 50_000)) {
+            ServerBusyException busy = assertThrows(ServerBusyException.class,
+                    () -> admission.admit(SIGNED_IN, 50_000));
+            assertEquals(120, busy.getRetryAfterSeconds());
+        }
+        admission.admit(SIGNED_IN, 50_000).close();
+    }
+}
@@ -0,0 +1,171 @@
+package com.tadeasfort.steganomessages.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CpuBulkheadTest {
+
+    @Test
+    void runsCallsOnWorkersAndNestedCallsInPlace() throws IOException {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        CpuBulkhead bulkhead = new CpuBulkhead(registry, 1, 4);
+        try {
+            String caller = Thread.currentThread().getName();
+            String worker = bulkhead.call(() -> Thread.currentThread().getName());
+            assertNotEquals(caller, worker);
+
+            // A second queued call would wait forever behind the only worker
+            assertEquals(worker, bulkhead.call(() -> bulkhead.call(() -> Thread.currentThread().getName())));
+            assertThrows(IOException.class, () -> bulkhead.call(() -> {
+                throw new IOException("broken carrier");
+            }));
+            assertEquals(3, registry.get(CpuBulkhead.WAIT_TIMER).timer().count());
+        } finally {
+            bulkhead.shutdown();
+        }
+    }
+
+    @Test
+    void rejectsWorkBeyondTheQueueAndReportsItsDepth() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        CpuBulkhead bulkhead = new CpuBulkhead(registry, 1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            bulkhead.execute(null, () -> {
+                started.countDown();
+                awaitQuietly(release);
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Runnable queued = () -> {
+            };
+            bulkhead.execute(null, queued);
+
+            assertEquals(1, bulkhead.queueDepth());
+            assertEquals(0, bulkhead.tasksAhead(queued));
+            assertEquals(1.0, registry.get(CpuBulkhead.QUEUE_GAUGE).gauge().value());
+            assertEquals(1.0, registry.get(CpuBulkhead.ACTIVE_GAUGE).gauge().value());
+            assertThrows(IllegalStateException.class, () -> bulkhead.call(() -> "rejected"));
+        } finally {
+            release.countDown();
+            bulkhead.shutdown();
+        }
+    }
+
+    @Test
+    void concurrentSubmittersNeverOverfillTheQueue() throws Exception {
+        CpuBulkhead bulkhead = new CpuBulkhead(new SimpleMeterRegistry(), 1, 4);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService submitters = Executors.newFixedThreadPool(16);
+        try {
+            bulkhead.execute(null, () -> {
+                started.countDown();
+                awaitQuietly(release);
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            CountDownLatch go = new CountDownLatch(1);
+            AtomicInteger accepted = new AtomicInteger();
+            CountDownLatch ran = new CountDownLatch(4);
+            List<Future<?>> attempts = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                attempts.add(submitters.submit(() -> {
+                    awaitQuietly(go);
+                    try {
+                        bulkhead.execute(null, ran::countDown);
+                        accepted.incrementAndGet();
+                    } catch (ServerBusyException e) {
+                        // The queue is full
+                    }
+                }));
+            }
+            go.countDown();
+            for (Future<?> attempt : attempts) {
+                attempt.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(4, accepted.get());
+            assertEquals(4, bulkhead.queueDepth());
+
+            // Slots come back as workers take their tasks
+            release.countDown();
+            assertTrue(ran.await(10, TimeUnit.SECONDS));
+            assertEquals("drained", bulkhead.call(() -> "drained"));
+        } finally {
+            release.countDown();
+            submitters.shutdownNow();
+            bulkhead.shutdown();
+        }
+    }
+
+    @Test
+    void interleavesABurstFromOneRequesterWithOthers() throws Exception {
+        AdmissionControl admissionControl = new AdmissionControl(new SimpleMeterRegistry(), Long.MAX_VALUE, 1, 4, 1);
+        CpuBulkhead bulkhead = new CpuBulkhead(new SimpleMeterRegistry(), 1, 16);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        try {
+            bulkhead.execute(null, () -> {
+                started.countDown();
+                awaitQuietly(release);
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            Requester burst = new Requester("ip:192.0.2.1", false);
+            Requester other = new Requester("ip:192.0.2.2", false);
+            Requester signedIn = new Requester("user:1", true);
+            CountDownLatch done = new CountDownLatch(6);
+            for (int i = 0; i < 3; i++) {
+                String name = "burst" + i;
+                bulkhead.execute(admissionControl.admit(burst, 1000), () -> {
+                    order.add(name);
+                    done.countDown();
+                });
+            }
+            bulkhead.execute(admissionControl.admit(other, 1000), () -> {
+                order.add("other");
+                done.countDown();
+            });
+            // Twice the pixels of a burst task, but weighted four times
+            for (int i = 0; i < 2; i++) {
+                String name = "signedIn" + i;
+                bulkhead.execute(admissionControl.admit(signedIn, 2000), () -> {
+                    order.add(name);
+                    done.countDown();
+                });
+            }
+
+            release.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(List.of("burst0", "other", "signedIn0", "signedIn1", "burst1", "burst2"), order);
+        } finally {
+            release.countDown();
+            bulkhead.shutdown();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package com.tadeasfort.steganomessages.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static com.tadeasfort.steganomessages.service.TestImages.encode;
+import static com.tadeasfort.steganomessages.service.TestImages.texturedImage;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DCTSteganographyServiceTest {
+
+    private final DCTSteganographyService service = new DCTSteganographyService();
+
+    @Test
+    void roundTripsAsciiMessage() {
+        BufferedImage carrier = texturedImage(203, 117, 1);
+
+        BufferedImage stego = service.embedMessage(carrier, "Meet me at noon");
+
+        assertEquals("Meet me at noon", service.extractMessage(stego));
+    }
+
+    @Test
+    void roundTripsMultiByteUtf8Message() {
+        BufferedImage carrier = texturedImage(160, 160, 2);
+        String message = "Příliš žluťoučký kůň ✓ 🙂";
+
+        BufferedImage stego = service.embedMessage(carrier, message);
+
+        assertEquals(message, service.extractMessage(stego));
+    }
+
+    @Test
+    void roundTripsMessageFillingTheCarrier() {
+        BufferedImage carrier = texturedImage(64, 72, 3);
+        // Random text does not compress, so it needs every block
+        String message = randomText(new Random(3), service.getMaxMessageLength(carrier));
+
+        BufferedImage stego = service.embedMessage(carrier, message);
+
+        assertEquals(message, service.extractMessage(stego));
+    }
+
+    @Test
+    void embeddingOnlyRewritesPayloadBlocks() {
+        BufferedImage carrier = texturedImage(203, 117, 4);
+        int[] original = carrier.getRGB(0, 0, 203, 117, null, 0, 203);
+        String message = "short";
+        int payloadBlocks = PayloadHeader.LENGTH + message.length();
+
+        BufferedImage stego = service.embedMessage(carrier, message);
+
+        assertArrayEquals(original, carrier.getRGB(0, 0, 203, 117, null, 0, 203), "carrier modified");
+        int blocksPerRow = 203 / 8;
+        for (int y = 0; y < 117; y++) {
+            for (int x = 0; x < 203; x++) {
+                boolean inBlock = x < blocksPerRow * 8 && y < (117 / 8) * 8;
+                int block = (y / 8) * blocksPerRow + x / 8;
+                if (!inBlock || block >= payloadBlocks) {
+                    assertEquals(original[y * 203 + x], stego.getRGB(x, y), "pixel " + x + "," + y);
+                }
+            }
+        }
+    }
+
+    @Test
+    void parallelEmbeddingMatchesSequential() {
+        BufferedImage carrier = texturedImage(120, 400, 8);
+        String message = "parallel rows ".repeat(40);
+
+        BufferedImage sequential = new DCTSteganographyService(Long.MAX_VALUE).embedMessage(carrier, message);
+        BufferedImage parallel = new DCTSteganographyService(0).embedMessage(carrier, message);
+
+        for (int y = 0; y < carrier.getHeight(); y++) {
+            for (int x = 0; x < carrier.getWidth(); x++) {
+                assertEquals(sequential.getRGB(x, y), parallel.getRGB(x, y), "pixel " + x + "," + y);
+            }
+        }
+        assertEquals(message, service.extractMessage(parallel));
+    }
+
+    @Test
+    void bulkheadWorkersEmbedAndExtractOnTheirOwnThread() throws IOException {
+        BufferedImage carrier = texturedImage(120, 400, 8);
+        String message = "parallel rows ".repeat(40);
+        BufferedImage expected = service.embedMessage(carrier, message);
+        byte[] png = encode(carrier, "png");
+
+        // Past the threshold, yet a worker keeps the rows and blocks to itself
+        DCTSteganographyService parallel = new DCTSteganographyService(0, 120 * 64);
+        CpuBulkhead bulkhead = new CpuBulkhead(new SimpleMeterRegistry(), 1, 4);
+        try {
+            byte[] stego = bulkhead.call(() -> {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(png))) {
+                    parallel.embedMessage(input, message, output);
+                }
+                return output.toByteArray();
+            });
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(stego));
+            assertArrayEquals(expected.getRGB(0, 0, 120, 400, null, 0, 120), decoded.getRGB(0, 0, 120, 400, null, 0, 120));
+            assertEquals(message, bulkhead.call(() -> parallel.extractMessage(new ByteArrayInputStream(stego))));
+        } finally {
+            bulkhead.shutdown();
+        }
+    }
+
+    @Test
+    void streamingEmbeddingMatchesInMemoryEmbedding() throws IOException {
+        BufferedImage carrier = texturedImage(203, 117, 9);
+        byte[] png = encode(carrier, "png");
+        String message = "streamed through strips ".repeat(12);
+        BufferedImage expected = service.embedMessage(carrier, message);
+
+        // 20 rows of pixels per strip rounds down to strips of 16 rows
+        DCTSteganographyService streaming = new DCTSteganographyService(Long.MAX_VALUE, 203 * 20);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(png))) {
+            streaming.embedMessage(input, message, output);
+        }
+
+        BufferedImage stego = ImageIO.read(new ByteArrayInputStream(output.toByteArray()));
+        for (int y = 0; y < carrier.getHeight(); y++) {
+            for (int x = 0; x < carrier.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), stego.getRGB(x, y), "pixel " + x + "," + y);
+            }
+        }
+        assertEquals(message, service.extractMessage(stego));
+    }
+
+    @Test
+    void subsampledCarrierHoldsMessageAtReducedSize(@TempDir Path dir) throws IOException {
+        BufferedImage carrier = texturedImage(203, 117, 12);
+        byte[] png = encode(carrier, "png");
+        Path stegoFile = dir.resolve("fitted.png");
+
+        service.embedMessage(new ByteArrayInputStream(png), "fitted", stegoFile.toString(), 3);
+
+        BufferedImage stego = ImageIO.read(stegoFile.toFile());
+        assertEquals(68, stego.getWidth());
+        assertEquals(39, stego.getHeight());
+        assertEquals("fitted", service.extractMessage(stego));
+    }
+
+    @Test
+    void bandedExtractionReadsPngAndBmpCarriers() throws IOException {
+        BufferedImage carrier = texturedImage(203, 160, 10);
+        String message = "read band by band ".repeat(15);
+        BufferedImage stego = service.embedMessage(carrier, message);
+
+        // Two block rows per band at most, so the payload spans several bands
+        DCTSteganographyService banded = new DCTSteganographyService(0, 203 * 16);
+        for (String format : new String[] { "png", "bmp" }) {
+            byte[] encoded = encode(stego, format);
+
+            assertEquals(message, banded.extractMessage(new ByteArrayInputStream(encoded)), format);
+        }
+    }
+
+    @Test
+    void bandedExtractionReadsLegacyFormatAndRejectsCleanCarriers() throws IOException {
+        DCTSteganographyService banded = new DCTSteganographyService(Long.MAX_VALUE, 96 * 8);
+        try (InputStream legacy = getClass().getResourceAsStream("/images/legacy-delimiter.png")) {
+            assertEquals("Hidden in the old delimiter format", banded.extractMessage(legacy));
+        }
+
+        byte[] clean = encode(texturedImage(96, 64, 11), "png");
+        assertThrows(IllegalArgumentException.class,
+                () -> banded.extractMessage(new ByteArrayInputStream(clean)));
+    }
+
+    @Test
+    void parallelExtractionMatchesSequentialOnRandomPayloads() {
+        DCTSteganographyService sequential = new DCTSteganographyService(Long.MAX_VALUE);
+        DCTSteganographyService parallel = new DCTSteganographyService(0);
+        Random random = new Random(9);
+
+        for (int trial = 0; trial < 12; trial++) {
+            BufferedImage carrier = texturedImage(64 + random.nextInt(200), 64 + random.nextInt(400), trial);
+            int length = 1 + random.nextInt(sequential.getMaxMessageLength(carrier));
+            String message = randomText(random, length);
+            BufferedImage stego = sequential.embedMessage(carrier, message);
+
+            assertEquals(message, sequential.extractMessage(stego));
+            assertEquals(message, parallel.extractMessage(stego));
+            assertEquals(extractionOutcome(sequential, carrier), extractionOutcome(parallel, carrier));
+        }
+    }
+
+    @Test
+    void parallelExtractionReadsLegacyFormat() throws IOException {
+        BufferedImage legacy;
+        try (InputStream input = getClass().getResourceAsStream("/images/legacy-delimiter.png")) {
+            legacy = ImageIO.read(input);
+        }
+
+        assertEquals("Hidden in the old delimiter format", new DCTSteganographyService(0).extractMessage(legacy));
+    }
+
+    @Test
+    void matrixEmbeddingDoublesCapacityAndReadsBack() throws IOException {
+        BufferedImage carrier = texturedImage(203, 96, 11);
+        DCTSteganographyService matrix = new DCTSteganographyService(new ImageCodecService(new SimpleMeterRegistry()),
+                0, 203 * 16, PngProfile.FAST, new DCTSteganographyService.Layout(true, false));
+        int blocks = (203 / 8) * (96 / 8);
+        assertEquals(2 * (blocks - PayloadHeader.LENGTH), matrix.getMaxMessageLength(203, 96));
+
+        String message = randomText(new Random(11), matrix.getMaxMessageLength(carrier));
+        assertThrows(IllegalArgumentException.class, () -> service.embedMessage(carrier, message));
+        BufferedImage stego = matrix.embedMessage(carrier, message);
+
+        // Any instance reads it, in memory or band by band in parallel
+        assertEquals(message, service.extractMessage(stego));
+        byte[] png = encode(stego, "png");
+        assertEquals(message, matrix.extractMessage(new ByteArrayInputStream(png)));
+    }
+
+    @Test
+    void rgbLayoutMultipliesCapacityAndKeepsColour() throws IOException {
+        BufferedImage carrier = texturedImage(203, 96, 12);
+        byte[] png = encode(carrier, "png");
+        int blocks = (203 / 8) * (96 / 8);
+
+        for (boolean matrix : new boolean[] { false, true }) {
+            DCTSteganographyService rgb = new DCTSteganographyService(new ImageCodecService(new SimpleMeterRegistry()),
+                    0, 203 * 16, PngProfile.FAST, new DCTSteganographyService.Layout(matrix, true));
+            assertEquals((matrix ? 6 : 3) * (blocks - PayloadHeader.LENGTH), rgb.getMaxMessageLength(203, 96));
+
+            String message = randomText(new Random(12), rgb.getMaxMessageLength(carrier));
+            BufferedImage stego = rgb.embedMessage(carrier, message);
+            assertEquals(message, service.extractMessage(stego), "matrix " + matrix);
+
+            // Streamed in strips, the output is the same and reads back band by band
+            ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+            try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(png))) {
+                rgb.embedMessage(input, message, streamed);
+            }
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(streamed.toByteArray()));
+            assertArrayEquals(stego.getRGB(0, 0, 203, 96, null, 0, 203), decoded.getRGB(0, 0, 203, 96, null, 0, 203));
+            assertEquals(message, rgb.extractMessage(new ByteArrayInputStream(streamed.toByteArray())));
+
+            assertTrue(meanChannelError(carrier, stego) < 8, "matrix " + matrix);
+        }
+        // Writing payload blocks back as gray loses the carrier's colour
+        String message = randomText(new Random(12), service.getMaxMessageLength(carrier));
+        assertTrue(meanChannelError(carrier, service.embedMessage(carrier, message)) > 30);
+    }
+
+    @Test
+    void rejectsMessageBeyondCapacity() {
+        BufferedImage carrier = texturedImage(64, 64, 4);
+        // Random text still deflates a little, so overshoot by a margin
+        String message = randomText(new Random(4), 2 * service.getMaxMessageLength(carrier));
+
+        assertThrows(IllegalArgumentException.class, () -> service.embedMessage(carrier, message));
+    }
+
+    @Test
+    void reportsMissingMessage() {
+        BufferedImage carrier = texturedImage(64, 64, 5);
+
+        assertThrows(IllegalArgumentException.class, () -> service.extractMessage(carrier));
+    }
+
+    @Test
+    void stopsReadingAfterDeclaredLength() {
+        BufferedImage stego = service.embedMessage(texturedImage(128, 64, 6), "short");
+
+        // Overwrite everything past the header and the five payload blocks
+        Random random = new Random(6);
+        int firstUnusedBlock = PayloadHeader.LENGTH + 5;
+        for (int y = 0; y < stego.getHeight(); y++) {
+            for (int x = 0; x < stego.getWidth(); x++) {
+                if ((y / 8) * 16 + x / 8 >= firstUnusedBlock) {
+                    stego.setRGB(x, y, random.nextInt());
+                }
+            }
+        }
+
+        assertEquals("short", service.extractMessage(stego));
+    }
+
+    @Test
+    void detectsCorruptedPayload() {
+        BufferedImage stego = service.embedMessage(texturedImage(128, 64, 7), "checksummed");
+
+        // Flatten the first payload block after the header
+        for (int y = 8; y < 16; y++) {
+            for (int x = 0; x < 8; x++) {
+                stego.setRGB(x, y, 0x808080);
+            }
+        }
+
+        IllegalArgumentException error = assertThrows(IllegalArgumentException.class,
+                () -> service.extractMessage(stego));
+        assertEquals("The hidden message is corrupted", error.getMessage());
+    }
+
+    @Test
+    void extractsLegacyDelimiterFormat() throws IOException {
+        BufferedImage legacy;
+        try (InputStream input = getClass().getResourceAsStream("/images/legacy-delimiter.png")) {
+            legacy = ImageIO.read(input);
+        }
+
+        assertEquals("Hidden in the old delimiter format", service.extractMessage(legacy));
+    }
+
+    private static String extractionOutcome(DCTSteganographyService service, BufferedImage image) {
+        try {
+            return service.extractMessage(image);
+        } catch (IllegalArgumentException e) {
+            return "error: " + e.getMessage();
+        }
+    }
+
+    private static double meanChannelError(BufferedImage expected, BufferedImage actual) {
+        long error = 0;
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int a = expected.getRGB(x, y);
+                int b = actual.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    error += Math.abs(((a >> shift) & 0xFF) - ((b >> shift) & 0xFF));
+                }
+            }
+        }
+        return error / (3.0 * expected.getWidth() * expected.getHeight());
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) (' ' + random.nextInt(95)));
+        }
+        return text.toString();
+    }
+}
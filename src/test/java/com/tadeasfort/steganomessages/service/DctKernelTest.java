@@ -0,0 +1,185 @@
+package com.tadeasfort.steganomessages.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DctKernelTest {
+
+    private static final int N = DctKernel.BLOCK_SIZE;
+
+    @Test
+    void forwardIsBitIdenticalToMatrixFormulation() {
+        Random random = new Random(42);
+        double[][] dct = referenceDctMatrix();
+        DctKernel.Workspace workspace = new DctKernel.Workspace();
+
+        for (int trial = 0; trial < 1000; trial++) {
+            double[][] block = randomBlock(random);
+            double[][] expected = multiply(multiply(dct, block), transpose(dct));
+
+            DctKernel.forward(flatten(block), workspace.coefficients, workspace.scratch);
+
+            assertBitIdentical(expected, workspace.coefficients);
+        }
+    }
+
+    @Test
+    void inverseIsBitIdenticalToMatrixFormulation() {
+        Random random = new Random(7);
+        double[][] idct = transpose(referenceDctMatrix());
+        DctKernel.Workspace workspace = new DctKernel.Workspace();
+
+        for (int trial = 0; trial < 1000; trial++) {
+            double[][] coefficients = randomBlock(random);
+            double[][] expected = multiply(multiply(idct, coefficients), transpose(idct));
+
+            DctKernel.inverse(flatten(coefficients), workspace.pixels, workspace.scratch);
+
+            assertBitIdentical(expected, workspace.pixels);
+        }
+    }
+
+    @Test
+    void partialForwardMatchesFullTransformOnEmbeddingPositions() {
+        Random random = new Random(11);
+        int[] embedIndices = { 9, 10, 17, 18, 11, 25, 19, 26 };
+        DctKernel.Workspace workspace = new DctKernel.Workspace();
+        double[] partial = new double[DctKernel.BLOCK_AREA];
+
+        for (int trial = 0; trial < 1000; trial++) {
+            double[] block = flatten(randomBlock(random));
+            DctKernel.forward(block, workspace.coefficients, workspace.scratch);
+            DctKernel.forwardPartial(block, embedIndices, partial, workspace.scratch);
+
+            for (int index : embedIndices) {
+                assertEquals(Double.doubleToRawLongBits(workspace.coefficients[index]),
+                        Double.doubleToRawLongBits(partial[index]), "coefficient " + index);
+            }
+        }
+    }
+
+    @Test
+    void partialForwardOverAllPositionsMatchesFullTransform() {
+        Random random = new Random(13);
+        int[] allIndices = new int[DctKernel.BLOCK_AREA];
+        for (int i = 0; i < allIndices.length; i++) {
+            allIndices[i] = allIndices.length - 1 - i;
+        }
+        DctKernel.Workspace workspace = new DctKernel.Workspace();
+        double[] partial = new double[DctKernel.BLOCK_AREA];
+        double[] block = flatten(randomBlock(random));
+
+        DctKernel.forward(block, workspace.coefficients, workspace.scratch);
+        DctKernel.forwardPartial(block, allIndices, partial, workspace.scratch);
+
+        assertArrayEquals(workspace.coefficients, partial);
+    }
+
+    @Test
+    void inverseRestoresBlock() {
+        Random random = new Random(3);
+        DctKernel.Workspace workspace = new DctKernel.Workspace();
+        double[] block = flatten(randomBlock(random));
+
+        DctKernel.forward(block, workspace.coefficients, workspace.scratch);
+        DctKernel.inverse(workspace.coefficients, workspace.pixels, workspace.scratch);
+
+        assertArrayEquals(block, workspace.pixels, 1e-9);
+    }
+
+    @Test
+    void vectorTransformIsBitIdenticalToScalar() {
+        Random random = new Random(17);
+        DctKernel.Transform scalar = new ScalarDctTransform();
+        DctKernel.Transform vector = new VectorDctTransform();
+        int[] embedIndices = { 9, 10, 17, 18, 11, 25, 19, 26 };
+        double[] expected = new double[DctKernel.BLOCK_AREA];
+        double[] actual = new double[DctKernel.BLOCK_AREA];
+        double[] scratch = new double[DctKernel.BLOCK_AREA];
+
+        for (int trial = 0; trial < 1000; trial++) {
+            double[] block = flatten(randomBlock(random));
+
+            scalar.forward(block, expected, scratch);
+            vector.forward(block, actual, scratch);
+            assertArrayEquals(expected, actual);
+
+            scalar.inverse(block, expected, scratch);
+            vector.inverse(block, actual, scratch);
+            assertArrayEquals(expected, actual);
+
+            scalar.forwardPartial(block, embedIndices, expected, scratch);
+            vector.forwardPartial(block, embedIndices, actual, scratch);
+            for (int index : embedIndices) {
+                assertEquals(Double.doubleToRawLongBits(expected[index]),
+                        Double.doubleToRawLongBits(actual[index]), "coefficient " + index);
+            }
+        }
+    }
+
+    private static void assertBitIdentical(double[][] expected, double[] actual) {
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                assertEquals(Double.doubleToRawLongBits(expected[i][j]),
+                        Double.doubleToRawLongBits(actual[i * N + j]), "element " + i + "," + j);
+            }
+        }
+    }
+
+    private static double[][] randomBlock(Random random) {
+        double[][] block = new double[N][N];
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                block[i][j] = random.nextInt(256) - 128;
+            }
+        }
+        return block;
+    }
+
+    private static double[] flatten(double[][] matrix) {
+        double[] flat = new double[N * N];
+        for (int i = 0; i < N; i++) {
+            System.arraycopy(matrix[i], 0, flat, i * N, N);
+        }
+        return flat;
+    }
+
+    // Reference implementation the service used before the flat kernel
+
+    private static double[][] referenceDctMatrix() {
+        double[][] matrix = new double[N][N];
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                double ci = (i == 0) ? 1.0 / Math.sqrt(2.0) : 1.0;
+                matrix[i][j] = ci * Math.sqrt(2.0 / N) * Math.cos((2 * j + 1) * i * Math.PI / (2 * N));
+            }
+        }
+        return matrix;
+    }
+
+    private static double[][] multiply(double[][] a, double[][] b) {
+        double[][] result = new double[N][N];
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                for (int k = 0; k < N; k++) {
+                    result[i][j] += a[i][k] * b[k][j];
+                }
+            }
+        }
+        return result;
+    }
+
+    private static double[][] transpose(double[][] matrix) {
+        double[][] transposed = new double[N][N];
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                transposed[j][i] = matrix[i][j];
+            }
+        }
+        return transposed;
+    }
+}
@@ -0,0 +1,167 @@
+package com.tadeasfort.steganomessages.service;
+
+import com.tadeasfort.steganomessages.model.SteganographyMessage;
+import com.tadeasfort.steganomessages.model.User;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.mock.web.MockMultipartFile;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class EncodeJobServiceTest {
+
+    @TempDir
+    Path uploads;
+
+    private final SteganographyMessageService messageService = mock(SteganographyMessageService.class);
+    private final CpuBulkhead bulkhead = new CpuBulkhead(new SimpleMeterRegistry(), 1, 8);
+    private final AdmissionControl admissionControl = new AdmissionControl(new SimpleMeterRegistry(), 1_000_000, 0.5,
+            4, 1_000_000);
+    private final Requester requester = new Requester("user:1", true);
+
+    @AfterEach
+    void shutdown() {
+        bulkhead.shutdown();
+    }
+
+    @Test
+    void runsJobInTheBackgroundFromTheBufferedUpload() throws Exception {
+        User user = user(1L);
+        RetainedUpload upload = new RetainedUpload();
+        AtomicReference<InputStreamSource> carrier = new AtomicReference<>();
+        AtomicInteger holdsWhileRunning = new AtomicInteger();
+        when(messageService.createMessage(eq(user), eq("title"), eq("secret"), any(InputStreamSource.class),
+                eq("carrier.png"), anyLong(), anyBoolean(), isNull(), isNull(), isNull(), anyBoolean()))
+                .thenAnswer(invocation -> {
+                    carrier.set(invocation.getArgument(3));
+                    holdsWhileRunning.set(upload.holds.get());
+                    return message(7L);
+                });
+        when(messageService.carrierPixels(eq(user), any(InputStreamSource.class), eq("secret"), isNull(), eq(false)))
+                .thenReturn(256L);
+        EncodeJobService jobs = new EncodeJobService(messageService, new FileStorageService(uploads.toString(), new ImageCodecService(new SimpleMeterRegistry())),
+                bulkhead, admissionControl, 4);
+
+        EncodeJob job = jobs.submit(requester, user, "title", "secret", upload, false, null, null, null, false);
+        awaitFinished(job);
+
+        assertEquals(EncodeJob.Status.SUCCEEDED, job.getStatus());
+        assertEquals(7L, job.getMessageId());
+        assertSame(upload, carrier.get());
+        awaitReleased();
+        // The job kept the upload's memory reserved until it was done
+        assertEquals(1, holdsWhileRunning.get());
+        assertEquals(0, upload.holds.get());
+        assertTrue(jobs.findJob(job.getId(), user).isPresent());
+        assertTrue(jobs.findJob(job.getId(), user(2L)).isEmpty());
+    }
+
+    @Test
+    void rejectsSubmissionsBeyondTheQueue() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        when(messageService.createMessage(any(), anyString(), anyString(), any(InputStreamSource.class), any(),
+                anyLong(), anyBoolean(), any(), any(), any(), anyBoolean()))
+                .thenAnswer(invocation -> {
+                    started.countDown();
+                    release.await();
+                    throw new IllegalArgumentException("Message too long for this image");
+                });
+        EncodeJobService jobs = new EncodeJobService(messageService, new FileStorageService(uploads.toString(), new ImageCodecService(new SimpleMeterRegistry())),
+                bulkhead, admissionControl, 1);
+        User user = user(1L);
+
+        EncodeJob running = jobs.submit(requester, user, "a", "a", upload(), false, null, null, null, false);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        EncodeJob queued = jobs.submit(requester, user, "b", "b", upload(), false, null, null, null, false);
+        assertEquals(0, jobs.jobsAhead(queued));
+        assertEquals(EncodeJob.Status.QUEUED, queued.getStatus());
+        RetainedUpload rejected = new RetainedUpload();
+        assertThrows(IllegalStateException.class,
+                () -> jobs.submit(requester, user, "c", "c", rejected, false, null, null, null, false));
+        assertEquals(0, rejected.holds.get());
+
+        release.countDown();
+        awaitFinished(running);
+        awaitFinished(queued);
+        assertEquals(EncodeJob.Status.FAILED, running.getStatus());
+        assertEquals("Message too long for this image", running.getError());
+    }
+
+    private static void awaitFinished(EncodeJob job) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!job.getStatus().isFinished() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(job.getStatus().isFinished(), "job did not finish");
+    }
+
+    private void awaitReleased() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (admissionControl.queuedPixels() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, admissionControl.queuedPixels());
+    }
+
+    private static MockMultipartFile upload() throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB), "png", png);
+        return new MockMultipartFile("imageFile", "carrier.png", "image/png", png.toByteArray());
+    }
+
+    /**
+     * An upload that counts who is holding its memory
+     */
+    private static final class RetainedUpload extends MockMultipartFile implements RetainableUpload {
+
+        private final AtomicInteger holds = new AtomicInteger();
+
+        RetainedUpload() throws IOException {
+            super("imageFile", "carrier.png", "image/png", upload().getBytes());
+        }
+
+        @Override
+        public Runnable retain() {
+            holds.incrementAndGet();
+            return holds::decrementAndGet;
+        }
+    }
+
+    private static SteganographyMessage message(Long id) {
+        SteganographyMessage message = new SteganographyMessage();
+        message.setId(id);
+        return message;
+    }
+
+    private static User user(Long id) {
+        User user = new User();
+        user.setId(id);
+        user.setUsername("user" + id);
+        return user;
+    }
+}
@@ -0,0 +1,184 @@
+package com.tadeasfort.steganomessages.service;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static com.tadeasfort.steganomessages.service.TestImages.encode;
+import static com.tadeasfort.steganomessages.service.TestImages.randomImage;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImageCodecServiceTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final ImageCodecService codec = new ImageCodecService(registry);
+
+    @Test
+    void sniffsFormatsFromMagicBytes() throws IOException {
+        BufferedImage image = randomImage(16, 16, 1);
+        for (ImageFormat format : ImageFormat.values()) {
+            byte[] data = encode(image, format.formatName());
+
+            assertEquals(Optional.of(format), ImageFormat.sniff(data, data.length));
+            assertEquals(format, codec.detectFormat(codec.openStream(new ByteArrayInputStream(data))));
+        }
+        byte[] gif = "GIF89a".getBytes(StandardCharsets.US_ASCII);
+        assertFalse(ImageFormat.sniff(gif, gif.length).isPresent());
+    }
+
+    @Test
+    void readsImageSizeFromHeaderOnly() throws IOException {
+        byte[] head = Arrays.copyOf(encode(randomImage(203, 117, 2), "png"), 64);
+
+        assertEquals(new Dimension(203, 117), codec.readSize(new ByteArrayInputStream(head)));
+    }
+
+    @Test
+    void rejectsUnreadableImageHeader() {
+        byte[] garbage = "definitely not an image".getBytes(StandardCharsets.US_ASCII);
+
+        assertThrows(IllegalArgumentException.class, () -> codec.readSize(new ByteArrayInputStream(garbage)));
+        assertThrows(IllegalArgumentException.class, () -> codec.read(new ByteArrayInputStream(garbage)));
+    }
+
+    @Test
+    void reusesPooledCodecsAndRecordsTimings(@TempDir Path directory) throws IOException {
+        BufferedImage image = randomImage(40, 30, 3);
+
+        for (int i = 0; i < 3; i++) {
+            Path file = directory.resolve("image" + i + ".bmp");
+            codec.write(image, ImageFormat.BMP, file);
+            try (InputStream input = Files.newInputStream(file)) {
+                BufferedImage decoded = codec.read(input);
+                assertEquals(image.getRGB(7, 9), decoded.getRGB(7, 9));
+            }
+        }
+
+        assertEquals(3, timer(ImageCodecService.DECODE_TIMER, ImageFormat.BMP).count());
+        assertEquals(3, timer(ImageCodecService.ENCODE_TIMER, ImageFormat.BMP).count());
+        assertEquals(0, timer(ImageCodecService.DECODE_TIMER, ImageFormat.PNG).count());
+    }
+
+    @Test
+    void recordsStripDecodingWhenClosed() throws IOException {
+        byte[] png = encode(randomImage(24, 24, 4), "png");
+
+        try (RasterStripSource source = codec.openStrips(codec.openStream(new ByteArrayInputStream(png)))) {
+            source.read(0, 24);
+            assertEquals(0, timer(ImageCodecService.DECODE_TIMER, ImageFormat.PNG).count());
+        }
+        assertEquals(1, timer(ImageCodecService.DECODE_TIMER, ImageFormat.PNG).count());
+    }
+
+    @Test
+    void rejectsDecompressionBombFromItsHeader() throws IOException {
+        // A few hundred bytes declaring a 100000x100000 image
+        byte[] bomb = withDeclaredSize(encode(randomImage(8, 8, 5), "png"), 100_000, 100_000);
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> codec.readSize(new ByteArrayInputStream(bomb)));
+        assertTrue(e.getMessage().contains("100000x100000"));
+        assertThrows(IllegalArgumentException.class,
+                () -> codec.openStrips(codec.openStream(new ByteArrayInputStream(bomb))));
+        assertThrows(IllegalArgumentException.class, () -> codec.read(new ByteArrayInputStream(bomb)));
+    }
+
+    @Test
+    void decodesWaitForDecodeMemory() throws Exception {
+        SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        ImageCodecService small = new ImageCodecService(meters, ImageCodecService.DEFAULT_MAX_PIXELS,
+                ImageCodecService.DEFAULT_MAX_DIMENSION, 64 * 1024, ImageCodecService.DEFAULT_DECODE_WAIT);
+        byte[] large = encode(randomImage(200, 200, 6), "png");
+        byte[] bmp = encode(randomImage(40, 30, 7), "bmp");
+
+        // Whole 200x200 decodes need more than the budget holds; strips fit
+        assertThrows(IllegalArgumentException.class, () -> small.read(new ByteArrayInputStream(large)));
+
+        CompletableFuture<BufferedImage> waiting;
+        try (RasterStripSource source = small.openStrips(small.openStream(new ByteArrayInputStream(large)), 1,
+                200 * 32)) {
+            assertEquals(64 * 1024, meters.get(ImageCodecService.DECODE_RESERVED_GAUGE).gauge().value());
+            waiting = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return small.read(new ByteArrayInputStream(bmp));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            source.read(0, 32);
+            Thread.sleep(200);
+            assertFalse(waiting.isDone());
+        }
+        assertEquals(40, waiting.get(5, TimeUnit.SECONDS).getWidth());
+        assertEquals(0, meters.get(ImageCodecService.DECODE_RESERVED_GAUGE).gauge().value());
+    }
+
+    @Test
+    void refusesDecodesThatCannotReserveMemoryInTime() throws IOException {
+        ImageCodecService small = new ImageCodecService(new SimpleMeterRegistry(), ImageCodecService.DEFAULT_MAX_PIXELS,
+                ImageCodecService.DEFAULT_MAX_DIMENSION, 64 * 1024, Duration.ofMillis(100));
+        byte[] large = encode(randomImage(200, 200, 9), "png");
+        byte[] bmp = encode(randomImage(40, 30, 10), "bmp");
+
+        try (RasterStripSource source = small.openStrips(small.openStream(new ByteArrayInputStream(large)), 1,
+                200 * 32)) {
+            ServerBusyException busy = assertThrows(ServerBusyException.class,
+                    () -> small.read(new ByteArrayInputStream(bmp)));
+            assertEquals(1, busy.getRetryAfterSeconds());
+        }
+        assertEquals(40, small.read(new ByteArrayInputStream(bmp)).getWidth());
+    }
+
+    @Test
+    void reservesWholeImageForSourcesThatRestartEveryStrip() throws IOException {
+        SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        ImageCodecService budgeted = new ImageCodecService(meters, ImageCodecService.DEFAULT_MAX_PIXELS,
+                ImageCodecService.DEFAULT_MAX_DIMENSION, 1024 * 1024, ImageCodecService.DEFAULT_DECODE_WAIT);
+        byte[] bmp = encode(randomImage(40, 30, 8), "bmp");
+
+        try (RasterStripSource source = budgeted.openStrips(budgeted.openStream(new ByteArrayInputStream(bmp)), 1,
+                40 * 2)) {
+            assertFalse(source.isSequential());
+            // 40x30 pixels of 8 working bytes plus 3 decoded, rounded up to KiB
+            assertEquals(13 * 1024, meters.get(ImageCodecService.DECODE_RESERVED_GAUGE).gauge().value());
+        }
+    }
+
+    /**
+     * Rewrites the IHDR dimensions of {@code png}, keeping its CRC valid.
+     */
+    private static byte[] withDeclaredSize(byte[] png, int width, int height) {
+        byte[] bomb = png.clone();
+        ByteBuffer ihdr = ByteBuffer.wrap(bomb);
+        ihdr.putInt(16, width).putInt(20, height);
+        CRC32 crc = new CRC32();
+        crc.update(bomb, 12, 17);
+        ihdr.putInt(29, (int) crc.getValue());
+        return bomb;
+    }
+
+    private Timer timer(String name, ImageFormat format) {
+        return registry.get(name).tag("format", format.formatName()).timer();
+    }
+}
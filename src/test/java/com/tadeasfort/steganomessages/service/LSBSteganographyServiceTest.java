@@ -0,0 +1,104 @@
+package com.tadeasfort.steganomessages.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.Random;
+
+import static com.tadeasfort.steganomessages.service.TestImages.encode;
+import static com.tadeasfort.steganomessages.service.TestImages.randomImage;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LSBSteganographyServiceTest {
+
+    private final LSBSteganographyService service = new LSBSteganographyService();
+
+    @Test
+    void roundTripsMessageFillingTheCarrier() {
+        BufferedImage carrier = randomImage(61, 37, 1);
+        String message = "Ünïcødé ✓ ".repeat(200);
+        message = message.substring(0, Math.min(message.length(), service.getMaxMessageLength(61, 37) / 3));
+
+        BufferedImage stego = service.embedMessage(carrier, message);
+
+        assertEquals(message, service.extractMessage(stego));
+        assertEquals(61 * 37 * 3 / 8 - PayloadHeader.LENGTH, service.getMaxMessageLength(61, 37));
+    }
+
+    @Test
+    void changesOnlyLowBitsOfPayloadPixels() {
+        BufferedImage carrier = randomImage(40, 30, 2);
+        int[] original = carrier.getRGB(0, 0, 40, 30, null, 0, 40);
+        String message = "low bits only";
+
+        BufferedImage stego = service.embedMessage(carrier, message);
+
+        assertArrayEquals(original, carrier.getRGB(0, 0, 40, 30, null, 0, 40), "carrier modified");
+        int payloadBits = (PayloadHeader.LENGTH + message.length()) * 8;
+        for (int i = 0; i < original.length; i++) {
+            int changed = (original[i] ^ stego.getRGB(i % 40, i / 40)) & 0xFFFFFF;
+            int allowed = i * 3 < payloadBits ? 0x010101 : 0;
+            assertEquals(0, changed & ~allowed, "pixel " + i);
+        }
+    }
+
+    @Test
+    void streamingEmbeddingAndBandedExtractionMatchInMemory(@TempDir Path directory) throws IOException {
+        BufferedImage carrier = randomImage(97, 80, 3);
+        String message = "strip by strip ".repeat(50);
+        BufferedImage expected = service.embedMessage(carrier, message);
+
+        // Seven rows per strip, so the payload spans many strips at unaligned bit offsets
+        LSBSteganographyService strips = new LSBSteganographyService(
+                new ImageCodecService(new SimpleMeterRegistry()), 97 * 7,
+                PngProfile.FAST);
+        Path stegoFile = directory.resolve("stego.png");
+        strips.embedMessage(new ByteArrayInputStream(encode(carrier, "bmp")), message, stegoFile.toString());
+
+        BufferedImage stego = ImageIO.read(stegoFile.toFile());
+        assertArrayEquals(expected.getRGB(0, 0, 97, 80, null, 0, 97), stego.getRGB(0, 0, 97, 80, null, 0, 97));
+        try (InputStream input = Files.newInputStream(stegoFile)) {
+            assertEquals(message, strips.extractMessage(ImageIO.createImageInputStream(input)));
+        }
+    }
+
+    @Test
+    void rejectsForeignAndOversizedPayloads() throws IOException {
+        BufferedImage carrier = randomImage(64, 64, 4);
+        BufferedImage dctStego = new DCTSteganographyService().embedMessage(carrier, "written by DCT");
+
+        assertThrows(IllegalArgumentException.class, () -> service.extractMessage(carrier));
+        assertThrows(IllegalArgumentException.class, () -> service.extractMessage(dctStego));
+        assertFalse(service.detect(ImageIO.createImageInputStream(new ByteArrayInputStream(encode(dctStego, "png")))));
+        assertTrue(service.detect(ImageIO.createImageInputStream(
+                new ByteArrayInputStream(encode(service.embedMessage(carrier, "mine"), "png")))));
+
+        // Random hex compresses at most two to one
+        byte[] noise = new byte[service.getMaxMessageLength(64, 64) + 1];
+        new Random(4).nextBytes(noise);
+        String tooLong = HexFormat.of().formatHex(noise);
+        assertThrows(IllegalArgumentException.class, () -> service.embedMessage(carrier, tooLong));
+    }
+
+    @Test
+    void compressedMessageOutgrowsRawCapacity() {
+        BufferedImage carrier = randomImage(48, 48, 5);
+        String message = "the same line over and over\n".repeat(60);
+        assertTrue(message.length() > service.getMaxMessageLength(48, 48));
+
+        assertEquals(message, service.extractMessage(service.embedMessage(carrier, message)));
+    }
+}
@@ -0,0 +1,78 @@
+package com.tadeasfort.steganomessages.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LumaPlaneTest {
+
+    @Test
+    void takesLuminanceOfRequestedRows() {
+        RgbRaster raster = randomRaster(19, 11);
+
+        LumaPlane plane = LumaPlane.of(raster, 3, 5);
+
+        assertEquals(19, plane.width);
+        assertEquals(5, plane.height);
+        for (int y = 0; y < 5; y++) {
+            for (int x = 0; x < 19; x++) {
+                int rgb = raster.pixels[(y + 3) * 19 + x];
+                int expected = (int) (0.299 * ((rgb >> 16) & 0xFF) + 0.587 * ((rgb >> 8) & 0xFF)
+                        + 0.114 * (rgb & 0xFF));
+                assertEquals(expected, plane.luma[y * 19 + x] & 0xFF, "pixel " + x + "," + y);
+            }
+        }
+    }
+
+    @Test
+    void writesOnlyRequestedColumnsBackAsGray() {
+        RgbRaster raster = randomRaster(16, 8);
+        int[] original = raster.pixels.clone();
+        LumaPlane plane = LumaPlane.of(raster, 0, 8);
+        plane.luma[2 * 16 + 1] = (byte) 200;
+
+        plane.copyGrayTo(raster, 2, 4, 8);
+
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 16; x++) {
+                int i = y * 16 + x;
+                int expected = y >= 2 && y < 6 && x < 8 ? (plane.luma[i] & 0xFF) * 0x010101 : original[i];
+                assertEquals(expected, raster.pixels[i], "pixel " + x + "," + y);
+            }
+        }
+        assertEquals(0xC8C8C8, raster.pixels[2 * 16 + 1]);
+    }
+
+    @Test
+    void writesChannelsAndLuminanceBackKeepingColour() {
+        RgbRaster raster = randomRaster(16, 8);
+        int[] original = raster.pixels.clone();
+        LumaPlane green = LumaPlane.channel(raster, 0, 8, 8);
+        LumaPlane luma = LumaPlane.of(raster, 0, 8);
+        assertEquals((original[5] >> 8) & 0xFF, green.luma[5] & 0xFF);
+
+        green.luma[3 * 16 + 9] = (byte) 7;
+        green.copyChannelTo(raster, 3, 1, 8, 16, 8);
+        assertEquals((original[3 * 16 + 9] & 0xFF00FF) | 0x000700, raster.pixels[3 * 16 + 9]);
+
+        int i = 3 * 16 + 2;
+        int rgb = 0x604020;
+        raster.pixels[i] = rgb;
+        luma.luma[i] = (byte) (LumaPlane.luminance(rgb) + 5);
+        luma.copyLuminanceTo(raster, 3, 1, 0, 8);
+        assertEquals(0x654525, raster.pixels[i]);
+        assertEquals(LumaPlane.luminance(rgb) + 5, LumaPlane.luminance(raster.pixels[i]));
+        assertEquals(original[4 * 16 + 2], raster.pixels[4 * 16 + 2]);
+    }
+
+    private static RgbRaster randomRaster(int width, int height) {
+        Random random = new Random(width * 31L + height);
+        RgbRaster raster = RgbRaster.create(width, height);
+        for (int i = 0; i < raster.pixels.length; i++) {
+            raster.pixels[i] = random.nextInt(0x1000000);
+        }
+        return raster;
+    }
+}
@@ -0,0 +1,32 @@
+package com.tadeasfort.steganomessages.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MatrixCodeTest {
+
+    @Test
+    void reachesEveryMessageWithAtMostOneFlip() {
+        for (int k = 1; k <= 4; k++) {
+            MatrixCode code = new MatrixCode(k);
+            for (int parities = 0; parities < 1 << code.n(); parities++) {
+                for (int message = 0; message < 1 << k; message++) {
+                    int flip = code.flipIndex(parities, message);
+                    assertTrue(flip >= -1 && flip < code.n());
+
+                    int embedded = flip < 0 ? parities : parities ^ (1 << flip);
+                    assertEquals(message, code.syndrome(embedded), "k=" + k + " parities=" + parities);
+                }
+            }
+        }
+    }
+
+    @Test
+    void rejectsUnsupportedParameters() {
+        assertThrows(IllegalArgumentException.class, () -> new MatrixCode(0));
+        assertThrows(IllegalArgumentException.class, () -> new MatrixCode(6));
+    }
+}
@@ -0,0 +1,52 @@
+package com.tadeasfort.steganomessages.service;
+
+import com.tadeasfort.steganomessages.model.EngineType;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PayloadCodecTest {
+
+    @Test
+    void deflatesRepetitiveText() {
+        String message = "Meet me by the old oak tree at noon. ".repeat(40);
+
+        byte[] payload = PayloadCodec.pack(EngineType.DCT, message);
+        PayloadHeader header = PayloadHeader.parse(payload);
+
+        assertEquals(PayloadHeader.FLAG_DEFLATE, header.flags());
+        assertTrue(payload.length < message.length() / 4, "payload of " + payload.length + " bytes");
+        assertEquals(message, PayloadCodec.unpack(header, payload, PayloadHeader.LENGTH));
+    }
+
+    @Test
+    void keepsShortTextRaw() {
+        String message = "Ünïcødé ✓";
+
+        byte[] payload = PayloadCodec.pack(EngineType.LSB, message);
+        PayloadHeader header = PayloadHeader.parse(payload);
+
+        assertEquals(0, header.flags());
+        assertEquals(message.getBytes(StandardCharsets.UTF_8).length, header.length());
+        assertEquals(message, PayloadCodec.unpack(header, payload, PayloadHeader.LENGTH));
+    }
+
+    @Test
+    void rejectsUnknownFlagsAndBrokenStreams() {
+        byte[] text = "abc".getBytes(StandardCharsets.UTF_8);
+        byte[] future = PayloadHeader.describe(EngineType.DCT, 0x80, text).prepend(text);
+        PayloadScanner scanner = new PayloadScanner(future.length);
+        for (int i = 0; i < future.length && !scanner.isComplete(); i++) {
+            scanner.accept(future[i] & 0xFF);
+        }
+        IllegalArgumentException error = assertThrows(IllegalArgumentException.class, scanner::message);
+        assertEquals("The hidden message was written by a newer version of the application", error.getMessage());
+
+        PayloadHeader broken = PayloadHeader.describe(EngineType.DCT, PayloadHeader.FLAG_DEFLATE, text);
+        assertThrows(IllegalArgumentException.class, () -> PayloadCodec.unpack(broken, text, 0));
+    }
+}
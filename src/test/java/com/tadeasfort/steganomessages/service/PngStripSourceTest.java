@@ -0,0 +1,149 @@
+package com.tadeasfort.steganomessages.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import static com.tadeasfort.steganomessages.service.TestImages.encode;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PngStripSourceTest {
+
+    private static final ImageCodecService CODEC = new ImageCodecService(new SimpleMeterRegistry());
+
+    @Test
+    void decodesJdkWrittenPngsInStrips() throws IOException {
+        for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB }) {
+            BufferedImage image = randomImage(type, 97, 61);
+
+            try (RasterStripSource source = open(encode(image, "png"))) {
+                assertTrue(source.isSequential());
+                assertStripsMatch(image, source, 16);
+            }
+        }
+    }
+
+    @Test
+    void decodesStreamingWriterOutput() throws IOException {
+        BufferedImage image = randomImage(BufferedImage.TYPE_INT_RGB, 150, 90);
+        int[] pixels = image.getRGB(0, 0, 150, 90, null, 0, 150);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] &= 0xFFFFFF;
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        StreamingPngWriter writer = new StreamingPngWriter(Channels.newChannel(png), 150, 90, PngProfile.BALANCED);
+        writer.writeRows(pixels, 0, 90);
+        writer.finish();
+
+        try (RasterStripSource source = open(png.toByteArray())) {
+            assertStripsMatch(image, source, 8);
+        }
+    }
+
+    @Test
+    void readsLuminanceWithoutRgbStrips() throws IOException {
+        BufferedImage image = randomImage(BufferedImage.TYPE_INT_ARGB, 41, 30);
+        byte[] png = encode(image, "png");
+
+        try (RasterStripSource rgb = open(png); RasterStripSource luma = open(png)) {
+            for (int y = 0; y < 30; y += 8) {
+                int rows = Math.min(8, 30 - y);
+                LumaPlane expected = LumaPlane.of(rgb.read(y, rows));
+                assertArrayEquals(expected.luma, luma.readLuma(y, rows).luma, "strip at row " + y);
+            }
+        }
+    }
+
+    @Test
+    void leavesOtherLayoutsToImageReaders() throws IOException {
+        byte[] gray = encode(randomImage(BufferedImage.TYPE_BYTE_GRAY, 20, 20), "png");
+        byte[] bmp = encode(randomImage(BufferedImage.TYPE_INT_RGB, 20, 20), "bmp");
+
+        for (byte[] data : new byte[][] { gray, bmp }) {
+            try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+                assertNull(PngStripSource.open(input));
+            }
+            try (RasterStripSource source = open(data)) {
+                assertFalse(source.isSequential());
+            }
+        }
+    }
+
+    @Test
+    void subsamplesEveryNthPixelOfEveryNthRow() throws IOException {
+        BufferedImage image = randomImage(BufferedImage.TYPE_INT_ARGB, 101, 67);
+
+        for (String format : new String[] { "png", "bmp" }) {
+            BufferedImage carrier = format.equals("bmp") ? toRgb(image) : image;
+            byte[] data = encode(carrier, format);
+            for (int subsampling : new int[] { 2, 3, 7 }) {
+                try (RasterStripSource source = open(data, subsampling)) {
+                    assertEquals((101 + subsampling - 1) / subsampling, source.width());
+                    assertEquals((67 + subsampling - 1) / subsampling, source.height());
+                    assertStripsMatch(carrier, source, 5, subsampling);
+                }
+            }
+        }
+    }
+
+    private static void assertStripsMatch(BufferedImage image, RasterStripSource source, int stripRows)
+            throws IOException {
+        assertEquals(image.getWidth(), source.width());
+        assertEquals(image.getHeight(), source.height());
+        assertStripsMatch(image, source, stripRows, 1);
+    }
+
+    private static void assertStripsMatch(BufferedImage image, RasterStripSource source, int stripRows,
+            int subsampling) throws IOException {
+        for (int y = 0; y < source.height(); y += stripRows) {
+            int rows = Math.min(stripRows, source.height() - y);
+            RgbRaster strip = source.read(y, rows);
+            for (int row = 0; row < rows; row++) {
+                for (int x = 0; x < source.width(); x++) {
+                    assertEquals(image.getRGB(x * subsampling, (y + row) * subsampling) & 0xFFFFFF,
+                            strip.pixels[row * source.width() + x], "pixel " + x + "," + (y + row));
+                }
+            }
+        }
+    }
+
+    private static BufferedImage toRgb(BufferedImage image) {
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        rgb.getGraphics().drawImage(image, 0, 0, null);
+        return rgb;
+    }
+
+    private static RasterStripSource open(byte[] data) throws IOException {
+        return open(data, 1);
+    }
+
+    private static RasterStripSource open(byte[] data, int subsampling) throws IOException {
+        // Memory-backed stream, so there is nothing to release beyond the source
+        return CODEC.openStrips(CODEC.openStream(new ByteArrayInputStream(data)), subsampling);
+    }
+
+    private static BufferedImage randomImage(int type, int width, int height) {
+        Random random = new Random(width * 31L + height);
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int base = (x * 3 + y * 5) & 0xFF;
+                image.setRGB(x, y, (random.nextInt(256) << 24) | (base << 16)
+                        | (((base + random.nextInt(16)) & 0xFF) << 8) | random.nextInt(256));
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,95 @@
+package com.tadeasfort.steganomessages.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class RgbRasterTest {
+
+    @Test
+    void plainIntRgbImageIsWrappedWithoutCopy() {
+        BufferedImage image = randomImage(BufferedImage.TYPE_INT_RGB, 21, 13);
+
+        assertSame(image, RgbRaster.of(image).image);
+    }
+
+    @Test
+    void copyNeverSharesPixelsWithImage() {
+        BufferedImage image = randomImage(BufferedImage.TYPE_INT_RGB, 21, 13);
+        int before = image.getRGB(3, 4);
+
+        RgbRaster copy = RgbRaster.copyOf(image);
+        copy.pixels[4 * 21 + 3] ^= 0xFFFFFF;
+
+        assertNotSame(image, copy.image);
+        assertEquals(before, image.getRGB(3, 4));
+        assertEquals((before ^ 0xFFFFFF) & 0xFFFFFF, copy.image.getRGB(3, 4) & 0xFFFFFF);
+    }
+
+    @Test
+    void normalisedPixelsMatchGetRgbForCommonLayouts() {
+        int[] types = {
+                BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR,
+                BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_USHORT_GRAY, BufferedImage.TYPE_BYTE_INDEXED,
+                BufferedImage.TYPE_INT_BGR
+        };
+        for (int type : types) {
+            assertMatchesGetRgb(randomImage(type, 37, 70));
+        }
+    }
+
+    @Test
+    void normalisesSixteenBitRgbImage() {
+        ComponentColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                false, false, Transparency.OPAQUE, DataBuffer.TYPE_USHORT);
+        WritableRaster raster = colorModel.createCompatibleWritableRaster(19, 130);
+        Random random = new Random(5);
+        for (int y = 0; y < raster.getHeight(); y++) {
+            for (int x = 0; x < raster.getWidth(); x++) {
+                for (int band = 0; band < 3; band++) {
+                    raster.setSample(x, y, band, random.nextInt(65536));
+                }
+            }
+        }
+
+        assertMatchesGetRgb(new BufferedImage(colorModel, raster, false, null));
+    }
+
+    @Test
+    void normalisesSubImage() {
+        BufferedImage parent = randomImage(BufferedImage.TYPE_3BYTE_BGR, 50, 40);
+
+        assertMatchesGetRgb(parent.getSubimage(7, 5, 30, 20));
+    }
+
+    private static void assertMatchesGetRgb(BufferedImage image) {
+        RgbRaster raster = RgbRaster.of(image);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(image.getRGB(x, y) & 0xFFFFFF, raster.pixels[y * raster.width + x],
+                        "type " + image.getType() + " pixel " + x + "," + y);
+            }
+        }
+    }
+
+    private static BufferedImage randomImage(int type, int width, int height) {
+        Random random = new Random(type);
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,87 @@
+package com.tadeasfort.steganomessages.service;
+
+import com.tadeasfort.steganomessages.model.EngineType;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static com.tadeasfort.steganomessages.service.TestImages.encode;
+import static com.tadeasfort.steganomessages.service.TestImages.texturedImage;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SteganographyEngineRegistryTest {
+
+    private final ImageCodecService codec = new ImageCodecService(new SimpleMeterRegistry());
+    private final DCTSteganographyService dct = new DCTSteganographyService();
+    private final LSBSteganographyService lsb = new LSBSteganographyService();
+    private final SteganographyEngineRegistry registry =
+            new SteganographyEngineRegistry(List.of(dct, lsb), codec, EngineType.DCT);
+
+    @Test
+    void extractsWithWhicheverEngineWroteThePayload() throws IOException {
+        BufferedImage carrier = texturedImage(160, 96, 1);
+
+        for (SteganographyEngine engine : List.<SteganographyEngine>of(dct, lsb)) {
+            String message = "written by " + engine.type();
+            byte[] stego = encode(engine.embedMessage(carrier, message), "png");
+
+            assertEquals(message, registry.extractMessage(new ByteArrayInputStream(stego)), engine.type().name());
+        }
+    }
+
+    @Test
+    void fallsBackToLegacyDctCarriersAndRejectsCleanOnes() throws IOException {
+        try (InputStream legacy = getClass().getResourceAsStream("/images/legacy-delimiter.png")) {
+            assertEquals("Hidden in the old delimiter format", registry.extractMessage(legacy));
+        }
+
+        byte[] clean = encode(texturedImage(96, 64, 2), "png");
+        IllegalArgumentException error = assertThrows(IllegalArgumentException.class,
+                () -> registry.extractMessage(new ByteArrayInputStream(clean)));
+        assertTrue(error.getMessage().contains("No hidden message"));
+    }
+
+    @Test
+    void resolvesDefaultEngineAndRejectsDuplicates() {
+        assertSame(dct, registry.engine(null));
+        assertSame(lsb, registry.engine(EngineType.LSB));
+        assertThrows(IllegalStateException.class,
+                () -> new SteganographyEngineRegistry(List.of(dct, new DCTSteganographyService()), codec,
+                        EngineType.DCT));
+        assertThrows(IllegalStateException.class,
+                () -> new SteganographyEngineRegistry(List.of(dct), codec, EngineType.LSB));
+    }
+
+    @Test
+    void scannerStillReadsVersionOneHeaders() {
+        byte[] message = "written before engine ids".getBytes(StandardCharsets.UTF_8);
+        byte[] payload = ByteBuffer.allocate(14 + message.length)
+                .put(new byte[] { 'S', 'M', 'S', 'G', 1, 0 })
+                .putInt(message.length)
+                .putInt(PayloadHeader.checksum(message, 0, message.length))
+                .put(message)
+                .array();
+
+        PayloadScanner dctScanner = new PayloadScanner(1000);
+        PayloadScanner lsbScanner = new PayloadScanner(1000, EngineType.LSB, false);
+        for (byte value : payload) {
+            dctScanner.accept(value & 0xFF, 0);
+            if (!lsbScanner.isComplete()) {
+                lsbScanner.accept(value & 0xFF);
+            }
+        }
+
+        assertEquals("written before engine ids", dctScanner.message());
+        assertTrue(lsbScanner.isRejected());
+    }
+}
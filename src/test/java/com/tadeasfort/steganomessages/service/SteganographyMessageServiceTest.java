@@ -0,0 +1,32 @@
+package com.tadeasfort.steganomessages.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SteganographyMessageServiceTest {
+
+    private final DCTSteganographyService dct = new DCTSteganographyService();
+
+    @Test
+    void fitsCarrierToTheSmallestSizeKeepingTheMargin() {
+        // A 100-byte message with a margin of four needs 400 bytes of capacity
+        int subsampling = SteganographyMessageService.carrierSubsampling(dct, 6000, 8000, 100, 4.0, 64);
+
+        int width = (6000 + subsampling - 1) / subsampling;
+        int height = (8000 + subsampling - 1) / subsampling;
+        assertTrue(dct.getMaxMessageLength(width, height) >= 400);
+        int nextWidth = (6000 + subsampling) / (subsampling + 1);
+        int nextHeight = (8000 + subsampling) / (subsampling + 1);
+        assertTrue(dct.getMaxMessageLength(nextWidth, nextHeight) < 400
+                || subsampling == SteganographyMessageService.MAX_CARRIER_SUBSAMPLING);
+    }
+
+    @Test
+    void keepsMinimumDimensionAndSmallCarriers() {
+        assertEquals(8, SteganographyMessageService.carrierSubsampling(dct, 6000, 4096, 10, 4.0, 512));
+        assertEquals(1, SteganographyMessageService.carrierSubsampling(dct, 800, 600, 10, 4.0, 512));
+        assertEquals(1, SteganographyMessageService.carrierSubsampling(dct, 400, 400, 100000, 4.0, 16));
+    }
+}
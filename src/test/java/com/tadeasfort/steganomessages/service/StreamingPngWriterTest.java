@@ -0,0 +1,140 @@
+package com.tadeasfort.steganomessages.service;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamingPngWriterTest {
+
+    @Test
+    void writesRowsInBatchesThatDecodeToTheSamePixels() throws IOException {
+        // Several compression chunks, fed in batches that do not line up with them
+        int width = 401;
+        int height = 357;
+        int[] pixels = randomPixels(width, height, 1);
+
+        for (PngProfile profile : PngProfile.values()) {
+            byte[] png = write(pixels, width, height, 40, profile);
+
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+            assertEquals(width, decoded.getWidth());
+            assertEquals(height, decoded.getHeight());
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    assertEquals(pixels[y * width + x], decoded.getRGB(x, y) & 0xFFFFFF,
+                            profile + " pixel " + x + "," + y);
+                }
+            }
+        }
+    }
+
+    @Test
+    void producesOneCompleteChecksummedZlibStream() throws IOException, DataFormatException {
+        int width = 300;
+        int height = 500;
+        byte[] png = write(randomPixels(width, height, 3), width, height, 64, PngProfile.BALANCED);
+
+        // Concatenate the IDAT payloads and inflate them with zlib's own checks
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.wrap(png, 8, png.length - 8);
+        while (buffer.hasRemaining()) {
+            int length = buffer.getInt();
+            int type = buffer.getInt();
+            if (type == 0x49444154) {
+                idat.write(png, buffer.position(), length);
+            }
+            buffer.position(buffer.position() + length + 4);
+        }
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(idat.toByteArray());
+        byte[] raw = new byte[height * (1 + width * 3)];
+        int inflated = 0;
+        while (!inflater.finished()) {
+            int n = inflater.inflate(raw, inflated, raw.length - inflated);
+            assertTrue(n > 0 || !inflater.needsInput(), "zlib stream ended early");
+            inflated += n;
+        }
+        inflater.end();
+        assertEquals(raw.length, inflated);
+    }
+
+    @Test
+    void advertisesEachProfilesLevelInTheZlibHeader() throws IOException {
+        int[] levels = { 0, 1, 2 };
+        for (PngProfile profile : PngProfile.values()) {
+            byte[] png = write(randomPixels(16, 16, 5), 16, 16, 16, profile);
+
+            ByteBuffer buffer = ByteBuffer.wrap(png, 8, png.length - 8);
+            while (buffer.getInt(buffer.position() + 4) != 0x49444154) {
+                buffer.position(buffer.position() + buffer.getInt(buffer.position()) + 12);
+            }
+            int flg = png[buffer.position() + 9] & 0xFF;
+            assertEquals(levels[profile.ordinal()], flg >> 6, profile.toString());
+        }
+    }
+
+    @Test
+    void combinesAdler32OfConcatenatedRuns() {
+        byte[] data = new byte[100_000];
+        new Random(4).nextBytes(data);
+        Adler32 whole = new Adler32();
+        whole.update(data);
+        Adler32 head = new Adler32();
+        head.update(data, 0, 70_001);
+        Adler32 tail = new Adler32();
+        tail.update(data, 70_001, data.length - 70_001);
+
+        assertEquals(whole.getValue(),
+                StreamingPngWriter.combineAdler32(head.getValue(), tail.getValue(), data.length - 70_001));
+    }
+
+    @Test
+    void refusesToFinishIncompleteImage() throws IOException {
+        StreamingPngWriter writer = new StreamingPngWriter(Channels.newChannel(new ByteArrayOutputStream()), 10, 10,
+                PngProfile.FAST);
+        writer.writeRows(randomPixels(10, 4, 2), 0, 4);
+
+        assertThrows(IllegalStateException.class, writer::finish);
+    }
+
+    private static byte[] write(int[] pixels, int width, int height, int batchRows, PngProfile profile)
+            throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        StreamingPngWriter writer = new StreamingPngWriter(Channels.newChannel(output), width, height, profile);
+        for (int y = 0; y < height; y += batchRows) {
+            writer.writeRows(pixels, y * width, Math.min(batchRows, height - y));
+        }
+        writer.finish();
+        assertTrue(output.size() > 0);
+        return output.toByteArray();
+    }
+
+    private static int[] randomPixels(int width, int height, long seed) {
+        // Smooth gradients with noise, so every filter type gets picked somewhere
+        Random random = new Random(seed);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int base = (x + 2 * y) & 0xFF;
+                int noise = y % 50 < 10 ? random.nextInt(1 << 24) : random.nextInt(4) * 0x010101;
+                pixels[y * width + x] = ((base << 16) | (base << 8) | (255 - base)) ^ noise;
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,55 @@
+package com.tadeasfort.steganomessages.service;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Carrier images shared by the steganography and codec tests.
+ */
+final class TestImages {
+
+    private TestImages() {
+    }
+
+    static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(image, format, output);
+        return output.toByteArray();
+    }
+
+    /**
+     * Smooth gradients with mild noise, close enough to a photo for the DCT
+     * engine to keep its error low.
+     */
+    static BufferedImage texturedImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int base = (int) (128 + 80 * Math.sin(x / 9.0) * Math.cos(y / 13.0));
+                int red = Math.min(255, Math.max(0, base + random.nextInt(41) - 20));
+                int green = Math.min(255, Math.max(0, 255 - base + random.nextInt(41) - 20));
+                int blue = Math.min(255, Math.max(0, base / 2 + random.nextInt(41) - 20));
+                image.setRGB(x, y, (red << 16) | (green << 8) | blue);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Uniform RGB noise, which neither compresses nor smooths out.
+     */
+    static BufferedImage randomImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        return image;
+    }
+}